@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Adaptive Replacement Cache (ARC) of Megiddo and Modha.
+ * <p>
+ * Resident pages are split between T1 (seen once recently) and T2 (seen at
+ * least twice recently). B1 and B2 remember the ids of pages recently
+ * evicted from T1 and T2. A miss that hits one of the ghost lists shifts the
+ * target size p of T1 towards the list that would have kept the page, so the
+ * policy adapts between recency and frequency. A long scan only churns T1.
+ * <p>
+ * Since the BufferPool asks for a victim before it reads the missing page,
+ * the victim is chosen using the current target p only; the ghost list
+ * adaptation happens when the missing page is reported.
+ */
+public class ARCEvictionPolicy extends AbstractEvictionPolicy {
+
+    private final LinkedHashSet<PageId> t1 = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> t2 = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> b1 = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> b2 = new LinkedHashSet<PageId>();
+
+    private final int c;
+    /** Target size of T1; volatile so tests can read it without the policy lock. */
+    private volatile int p = 0;
+
+    /**
+     * @param numPages the number of pages in the buffer pool
+     */
+    public ARCEvictionPolicy(int numPages) {
+        if (numPages < 1)
+            throw new IllegalArgumentException("buffer pool must hold at least one page");
+        this.c = numPages;
+    }
+
+    /** @return the current target size of T1 (for testing) */
+    int getTarget() {
+        return p;
+    }
+
+    protected void recordHit(PageId pid) {
+        if (t1.remove(pid) || t2.remove(pid))
+            t2.add(pid);
+    }
+
+    protected void recordMiss(PageId pid) {
+        if (b1.remove(pid)) {
+            p = Math.min(c, p + Math.max(b2.size() / Math.max(b1.size(), 1), 1));
+            t2.add(pid);
+        } else if (b2.remove(pid)) {
+            p = Math.max(0, p - Math.max(b1.size() / Math.max(b2.size(), 1), 1));
+            t2.add(pid);
+        } else if (!t1.contains(pid) && !t2.contains(pid)) {
+            t1.add(pid);
+        }
+        trimGhosts();
+    }
+
+    protected void forget(PageId pid) {
+        if (!t1.remove(pid))
+            t2.remove(pid);
+    }
+
+    protected PageId victim(Evictable evictable) {
+        PageId pid = null;
+        if (!t1.isEmpty() && (t1.size() > p || t2.isEmpty())) {
+            pid = evictInto(t1, b1, evictable);
+            if (pid == null)
+                pid = evictInto(t2, b2, evictable);
+        } else {
+            pid = evictInto(t2, b2, evictable);
+            if (pid == null)
+                pid = evictInto(t1, b1, evictable);
+        }
+        return pid;
+    }
+
+    private PageId evictInto(LinkedHashSet<PageId> resident, LinkedHashSet<PageId> ghost,
+            Evictable evictable) {
+        PageId pid = LRUEvictionPolicy.removeFirstEvictable(resident, evictable);
+        if (pid != null)
+            ghost.add(pid);
+        return pid;
+    }
+
+    /** Keep |T1| + |B1| <= c and |T1| + |T2| + |B1| + |B2| <= 2c. */
+    private void trimGhosts() {
+        while (t1.size() + b1.size() > c && !b1.isEmpty())
+            removeOldest(b1);
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * c) {
+            if (!b2.isEmpty())
+                removeOldest(b2);
+            else if (!b1.isEmpty())
+                removeOldest(b1);
+            else
+                break;
+        }
+    }
+
+    private static void removeOldest(LinkedHashSet<PageId> list) {
+        Iterator<PageId> it = list.iterator();
+        it.next();
+        it.remove();
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Helper for implementing EvictionPolicies. Handles the hit / miss counters
+ * and serializes access to the policy state, so subclasses only need to
+ * maintain their own lists.
+ * <p>
+ * Hits are the common case and must not serialize the threads of the
+ * BufferPool on one lock. A hit only bumps a counter and queues the page id;
+ * the queued hits are applied to the policy state the next time the state
+ * is locked anyway (a miss, a removal or a victim choice), or by the hit
+ * that fills the queue if the state is free at that moment. If it is not,
+ * further hits are dropped until the queue is drained: recency is a hint,
+ * and a victim is still chosen from the up to date resident lists.
+ */
+public abstract class AbstractEvictionPolicy implements EvictionPolicy {
+
+    /** Most hits queued before they are applied or dropped. */
+    static final int MAX_PENDING_HITS = 128;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final ConcurrentLinkedQueue<PageId> pendingHits = new ConcurrentLinkedQueue<PageId>();
+    private final AtomicInteger numPending = new AtomicInteger();
+    /** Guards the lists of the subclass. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public void pageHit(PageId pid) {
+        hits.incrementAndGet();
+        if (numPending.get() >= MAX_PENDING_HITS) {
+            // only drain if nobody holds the state, otherwise drop the hit
+            if (!lock.tryLock())
+                return;
+            try {
+                drainHits();
+            } finally {
+                lock.unlock();
+            }
+        }
+        pendingHits.add(pid);
+        numPending.incrementAndGet();
+    }
+
+    public void pageMiss(PageId pid) {
+        misses.incrementAndGet();
+        lock.lock();
+        try {
+            drainHits();
+            recordMiss(pid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        lock.lock();
+        try {
+            drainHits();
+            forget(pid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public PageId chooseVictim(Evictable evictable) {
+        lock.lock();
+        try {
+            drainHits();
+            return victim(evictable);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Apply the queued hits to the policy state; the lock must be held. */
+    private void drainHits() {
+        PageId pid;
+        while ((pid = pendingHits.poll()) != null) {
+            numPending.decrementAndGet();
+            recordHit(pid);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + "(hits=" + getHits() + ", misses="
+                + getMisses() + ")";
+    }
+
+    /**
+     * Update the policy state for a request on a resident page. Hits are
+     * applied late, so the page may no longer be resident; such hits must
+     * be ignored.
+     */
+    protected abstract void recordHit(PageId pid);
+
+    /** Update the policy state for a page that just became resident. */
+    protected abstract void recordMiss(PageId pid);
+
+    /** Drop a resident page from the policy state. */
+    protected abstract void forget(PageId pid);
+
+    /**
+     * Pick a victim among the resident pages accepted by evictable and drop
+     * it from the resident lists.
+     * @return the victim, or null if there is none
+     */
+    protected abstract PageId victim(Evictable evictable);
+}
@@ -0,0 +1,323 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds a BTreeFile from unsorted input of any size. The
+ * input is sorted on the key field by an {@link ExternalSort} with a bounded
+ * amount of memory, then the pages of the tree are written bottom-up in one
+ * pass over the sorted tuples, without going through the BufferPool or the
+ * log.
+ * <p>
+ * Since the number of tuples is known once they are sorted, the shape of the
+ * whole tree is planned before the first page is written: the leaves are
+ * numbered first, in key order, followed by each level of internal pages.
+ * A page is therefore written as soon as it is full, with its parent and
+ * sibling pointers already set, and only one page per level is ever held in
+ * memory. Each level is spread evenly over its pages, which are filled up to
+ * the fill factor and never less than half, like the pages of a tree built by
+ * inserts.
+ *
+ * @see BTreeFileEncoder
+ */
+public class BTreeBulkLoader {
+
+	/** Default fraction of each page filled, leaving no room for later inserts. */
+	public static final double DEFAULT_FILL_FACTOR = 1.0;
+
+	/** Default number of pages of memory for sorting the input. */
+	public static final int DEFAULT_MEMORY_PAGES = 1024;
+
+	private final BTreeFile bf;
+	private final TupleDesc td;
+	private final int[] keyFields;
+	private double fillFactor;
+	private int memoryPages;
+
+	/**
+	 * Create a loader for an empty BTreeFile that is already in the catalog.
+	 *
+	 * @param bf - the BTreeFile to load
+	 */
+	public BTreeBulkLoader(BTreeFile bf) {
+		this.bf = bf;
+		this.td = bf.getTupleDesc();
+		this.keyFields = bf.keyFields();
+		this.fillFactor = DEFAULT_FILL_FACTOR;
+		this.memoryPages = DEFAULT_MEMORY_PAGES;
+	}
+
+	/**
+	 * Set the fraction of each page to fill; a lower fill factor leaves room
+	 * for inserts before pages split.
+	 *
+	 * @param fillFactor - between 0.5 and 1
+	 */
+	public void setFillFactor(double fillFactor) {
+		if(fillFactor < 0.5 || fillFactor > 1.0) {
+			throw new IllegalArgumentException("fill factor must be between 0.5 and 1");
+		}
+		this.fillFactor = fillFactor;
+	}
+
+	/**
+	 * Set the number of pages of memory the sort of the input may use.
+	 *
+	 * @param memoryPages - at least 3
+	 */
+	public void setMemoryPages(int memoryPages) {
+		if(memoryPages < 3) {
+			throw new IllegalArgumentException("the sort needs at least 3 pages of memory");
+		}
+		this.memoryPages = memoryPages;
+	}
+
+	/**
+	 * Load the tuples of an operator. The operator is opened and closed by
+	 * this method.
+	 *
+	 * @param input - the tuples to load, in any order
+	 * @return the loaded BTreeFile
+	 */
+	public BTreeFile load(OpIterator input)
+			throws IOException, DbException, TransactionAbortedException {
+		if(!td.equals(input.getTupleDesc())) {
+			throw new DbException("input tuples do not match the schema of the BTreeFile");
+		}
+		ExternalSort sort = newSort();
+		try {
+			input.open();
+			while(input.hasNext()) {
+				sort.add(input.next());
+			}
+			input.close();
+			build(sort);
+		} finally {
+			sort.close();
+		}
+		return bf;
+	}
+
+	/**
+	 * Load the tuples of a text file with one tuple per line, its fields
+	 * separated by fieldSeparator, as read by {@link HeapFileEncoder}.
+	 *
+	 * @param inFile - the text file of tuples, in any order
+	 * @param fieldSeparator - the character between the fields of a line
+	 * @return the loaded BTreeFile
+	 * @throws IOException if a line does not hold a tuple of the BTreeFile
+	 */
+	public BTreeFile load(File inFile, char fieldSeparator)
+			throws IOException, DbException, TransactionAbortedException {
+		ExternalSort sort = newSort();
+		BufferedReader br = new BufferedReader(new FileReader(inFile));
+		try {
+			String line;
+			while((line = br.readLine()) != null) {
+				if(line.trim().length() > 0) {
+					sort.add(parseLine(line, fieldSeparator));
+				}
+			}
+			br.close();
+			build(sort);
+		} finally {
+			br.close();
+			sort.close();
+		}
+		return bf;
+	}
+
+	private ExternalSort newSort() throws DbException {
+		if(bf.getFile().length() > BTreeRootPtrPage.getPageSize()) {
+			throw new DbException("can only bulk load an empty BTreeFile");
+		}
+		return new ExternalSort(td, new BTreeFileEncoder.TupleComparator(keyFields), memoryPages);
+	}
+
+	private Tuple parseLine(String line, char fieldSeparator) throws IOException {
+		String[] values = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+		if(values.length != td.numFields()) {
+			throw new IOException("expected " + td.numFields() + " fields: " + line);
+		}
+		Tuple t = new Tuple(td);
+		for(int i = 0; i < values.length; i++) {
+			String s = values[i].trim();
+			if(td.getFieldType(i) == Type.INT_TYPE) {
+				try {
+					t.setField(i, new IntField(Integer.parseInt(s)));
+				} catch(NumberFormatException e) {
+					throw new IOException("bad integer " + s + " in line: " + line);
+				}
+			}
+			else {
+				if(s.length() > Type.STRING_LEN) {
+					s = s.substring(0, Type.STRING_LEN);
+				}
+				t.setField(i, new StringField(s, Type.STRING_LEN));
+			}
+		}
+		return t;
+	}
+
+	/** @return the types of the key fields */
+	private Type[] keyTypes() {
+		Type[] types = new Type[keyFields.length];
+		for(int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(keyFields[i]);
+		}
+		return types;
+	}
+
+	/**
+	 * @return the number of pages to spread n items over, filling each up to
+	 * the fill factor of cap items but with no fewer than min items, unless
+	 * there is only one page
+	 */
+	private int pagesFor(long n, int cap, int min) {
+		int target = Math.min(cap, Math.max(min, (int) (cap * fillFactor)));
+		long pages = (n + target - 1) / target;
+		while(pages > 1 && n / pages < min) {
+			pages--;
+		}
+		return (int) Math.max(1, pages);
+	}
+
+	/**
+	 * Write out the sorted tuples as the pages of the tree, then the root pointer.
+	 */
+	private void build(ExternalSort sort)
+			throws IOException, DbException, TransactionAbortedException {
+		int tableid = bf.getId();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		int pageSize = BufferPool.getPageSize();
+		DbFileIterator it = sort.iterator();
+		if(sort.numTuples() == 0) {
+			bf.writePage(new BTreeRootPtrPage(rootPtrId, BTreeRootPtrPage.createEmptyPageData()));
+			Database.getBufferPool().discardPage(rootPtrId);
+			return;
+		}
+
+		// plan the number of pages on each level, from the leaves up
+		int maxTuples = (pageSize * 8 - 3 * BTreeLeafPage.INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+		int maxEntries = BTreeInternalPage.getMaxEntries(keyTypes(), pageSize);
+		ArrayList<Level> levels = new ArrayList<Level>();
+		long items = sort.numTuples();
+		int firstPage = 1;
+		do {
+			boolean leaves = levels.isEmpty();
+			int pages = leaves ? pagesFor(items, maxTuples, maxTuples / 2)
+					: pagesFor(items, maxEntries + 1, maxEntries / 2 + 1);
+			levels.add(new Level(levels.size(), firstPage, pages, items));
+			firstPage += pages;
+			items = pages;
+		} while(items > 1);
+
+		it.open();
+		Level leafLevel = levels.get(0);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		Type[] typeAr = new Type[td.numFields()];
+		for(int i = 0; i < typeAr.length; i++) {
+			typeAr[i] = td.getFieldType(i);
+		}
+		Field prevKey = null;
+		while(it.hasNext()) {
+			tuples.add(it.next());
+			if(tuples.size() == leafLevel.size(leafLevel.current)) {
+				int index = leafLevel.current++;
+				BTreePageId pid = new BTreePageId(tableid, leafLevel.firstPage + index, BTreePageId.LEAF);
+				BTreeLeafPage page = new BTreeLeafPage(pid, BTreeFileEncoder.convertToLeafPage(tuples,
+						pageSize, td.numFields(), typeAr, keyFields), keyFields);
+				if(index > 0) {
+					page.setLeftSiblingId(new BTreePageId(tableid, pid.getPageNumber() - 1, BTreePageId.LEAF));
+				}
+				if(index < leafLevel.pages - 1) {
+					page.setRightSiblingId(new BTreePageId(tableid, pid.getPageNumber() + 1, BTreePageId.LEAF));
+				}
+				// the key copied up is shortened like the separators of a split
+				Field lowKey = bf.getKey(tuples.get(0));
+				if(prevKey != null) {
+					lowKey = BTreeFile.separator(prevKey, lowKey);
+				}
+				prevKey = bf.getKey(tuples.get(tuples.size() - 1));
+				page.setParentId(addToParent(levels, leafLevel, lowKey, pid));
+				bf.writePage(page);
+				tuples.clear();
+			}
+		}
+		it.close();
+
+		Level top = levels.get(levels.size() - 1);
+		int rootCategory = (levels.size() == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+		bf.writePage(new BTreeRootPtrPage(rootPtrId,
+				BTreeFileEncoder.convertToRootPtrPage(top.firstPage, rootCategory, 0)));
+		Database.getBufferPool().discardPage(rootPtrId);
+	}
+
+	/**
+	 * Add a finished page to the internal page above it, writing that page
+	 * out if it is now finished too.
+	 *
+	 * @param levels - the levels of the tree
+	 * @param level - the level of the finished page
+	 * @param lowKey - the first key under the finished page
+	 * @param pid - the id of the finished page
+	 * @return the id of the parent of the finished page
+	 */
+	private BTreePageId addToParent(ArrayList<Level> levels, Level level, Field lowKey, BTreePageId pid)
+			throws IOException, DbException {
+		int tableid = bf.getId();
+		if(level.depth == levels.size() - 1) {
+			return BTreeRootPtrPage.getId(tableid);
+		}
+		Level parent = levels.get(level.depth + 1);
+		BTreePageId parentId = new BTreePageId(tableid, parent.firstPage + parent.current, BTreePageId.INTERNAL);
+		parent.lowKeys.add(lowKey);
+		parent.children.add(pid);
+		if(parent.children.size() == parent.size(parent.current)) {
+			parent.current++;
+			ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+			for(int i = 1; i < parent.children.size(); i++) {
+				entries.add(new BTreeEntry(parent.lowKeys.get(i), parent.children.get(i - 1), parent.children.get(i)));
+			}
+			BTreeInternalPage page = new BTreeInternalPage(parentId, BTreeFileEncoder.convertToInternalPage(entries,
+					BufferPool.getPageSize(), keyTypes(), pid.pgcateg()), keyFields);
+			page.setParentId(addToParent(levels, parent, parent.lowKeys.get(0), parentId));
+			bf.writePage(page);
+			parent.lowKeys.clear();
+			parent.children.clear();
+		}
+		return parentId;
+	}
+
+	/**
+	 * One level of the planned tree, and the page of it being filled.
+	 */
+	private static class Level {
+		final int depth;
+		final int firstPage;
+		final int pages;
+		final long items;
+		/** Index of the page being filled. */
+		int current;
+		/** Children of the internal page being filled, and the first key under each. */
+		final ArrayList<BTreePageId> children;
+		final ArrayList<Field> lowKeys;
+
+		Level(int depth, int firstPage, int pages, long items) {
+			this.depth = depth;
+			this.firstPage = firstPage;
+			this.pages = pages;
+			this.items = items;
+			this.current = 0;
+			this.children = new ArrayList<BTreePageId>();
+			this.lowKeys = new ArrayList<Field>();
+		}
+
+		/** @return the number of items on the page with the given index */
+		int size(int index) {
+			long base = items / pages;
+			return (int) (base + (index < items % pages ? 1 : 0));
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -24,6 +25,8 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final int[] keyFields;
+	private final PageChannel channel;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +37,30 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] {key}, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields, such as (tenant_id, ts).
+	 * Its keys are {@link CompositeField}s which compare field by field, so the
+	 * tuples sharing a value of the first fields are stored together and can
+	 * be found by an index search on those fields alone.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keys - the fields which index is keyed on, in the order they are compared
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keys, TupleDesc td) {
+		if (keys.length == 0) {
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
+		}
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = td;
+		this.channel = new PageChannel(f);
 	}
 
 	/**
@@ -47,6 +70,15 @@ public class BTreeFile implements DbFile {
 		return f;
 	}
 
+	/**
+	 * Release the file descriptor of this B+ tree. The Catalog calls this
+	 * when the table is replaced or removed; the tree stays usable, and the
+	 * next read or write opens the file again.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+
 	/**
 	 * Returns an ID uniquely identifying this BTreeFile. Implementation note:
 	 * you will need to generate this tableid somewhere and ensure that each
@@ -78,14 +110,12 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-				if (retval == -1) {
+				int retval = channel.read(ByteBuffer.wrap(pageBuf), 0);
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BTreeRootPtrPage.getPageSize()) {
@@ -98,13 +128,8 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-				if (retval == -1) {
+				int retval = channel.read(ByteBuffer.wrap(pageBuf), pageOffset(id.getPageNumber()));
+				if (retval == 0) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
 				if (retval < BufferPool.getPageSize()) {
@@ -113,11 +138,11 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
@@ -127,17 +152,16 @@ public class BTreeFile implements DbFile {
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
 	}
 
+	/**
+	 * @return the offset in the file of the (non root pointer) page with the given number
+	 */
+	private long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo-1) * BufferPool.getPageSize();
+	}
+
 	/**
 	 * Write a page to disk.  This should not be called directly but should 
 	 * be called from the BufferPool when pages are flushed to disk
@@ -148,15 +172,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			channel.write(ByteBuffer.wrap(data), 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			channel.write(ByteBuffer.wrap(data), pageOffset(page.getId().getPageNumber()));
 		}
 	}
 	
@@ -176,10 +196,37 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Returns the indexes of the fields that this B+ tree is keyed on, in the
+	 * order they are compared
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple of this B+ tree: its key field, or a
+	 * CompositeField of its key fields
+	 */
+	public Field getKey(Tuple t) {
+		return BTreePage.keyOf(t, keyFields);
+	}
+
+	/**
+	 * Function which finds and locks the leaf page in the B+ tree corresponding to
+	 * the left-most page possibly containing the key field f. It descends from the
+	 * page pid, which may be the root pointer page, through the internal pages
+	 * without locking them, and locks only the leaf page, with permission perm.
+	 * 
+	 * Internal pages are not locked, so a writer does not wait for the transactions
+	 * that merely searched through them to commit, and a search does not wait for
+	 * the writers either: of an internal page that another transaction has locked
+	 * to change, it reads the last committed version. Each page is read under its
+	 * short-term read latch, one page at a time. The committed versions read on the
+	 * way down all belong to one tree unless a commit changed internal pages in the
+	 * meantime, which the search tells by the {@link TreeVersion} of this tree; it then
+	 * starts again from pid, keeping the lock on the leaf page it found. The same
+	 * check covers the wait for the lock on the leaf page, which is taken without
+	 * any latch held.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
@@ -188,16 +235,84 @@ public class BTreeFile implements DbFile {
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * pid is the root pointer page of a tree without a root yet
 	 * 
 	 */
 	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		BufferPool bp = Database.getBufferPool();
+		LatchTable latches = bp.getLatchTable();
+		LockManager lm = bp.getLockManager();
+		TreeVersion tree = bp.getTreeVersion(tableid);
+		while(true) {
+			long version = tree.awaitStable();
+			BTreePageId cur = pid;
+			try {
+				while(cur != null && cur.pgcateg() != BTreePageId.LEAF) {
+					BTreePageId latched = cur;
+					latches.readLatch(latched);
+					try {
+						Page p;
+						if(dirtypages.containsKey(cur)) {
+							p = dirtypages.get(cur);
+						}
+						else {
+							p = bp.getPage(null, cur, Permissions.READ_ONLY);
+							if(lm.conflicts(tid, cur, LockManager.Mode.S)) {
+								p = p.getBeforeImage();
+							}
+						}
+						cur = (cur.pgcateg() == BTreePageId.ROOT_PTR)
+								? ((BTreeRootPtrPage) p).getRootId() : childFor((BTreeInternalPage) p, f);
+					} finally {
+						latches.readUnlatch(latched);
+					}
+				}
+			} catch(DbException e) {
+				// a page emptied by a merge committed after its parent was read
+				if(tree.get() == version) {
+					throw e;
+				}
+				continue;
+			}
+			if(cur == null) { // the tree has no root yet
+				if(tree.get() == version) {
+					return null;
+				}
+				continue;
+			}
+			if(!dirtypages.containsKey(cur) && !bp.tryLockPage(tid, cur, perm)) {
+				bp.getPage(tid, cur, perm);
+			}
+			if(tree.get() == version) {
+				return (BTreeLeafPage) getPage(tid, dirtypages, cur, perm);
+			}
+			// the tree changed under the search, so search it again
+		}
 	}
-	
+
+	/**
+	 * @return the child of an internal page to search for the key field f, the
+	 * left-most one if f is null
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		if(e == null) {
+			throw new DbException("internal page " + page.getId() + " has no entries");
+		}
+		return e.getRightChild();
+	}
+
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
@@ -213,7 +328,20 @@ public class BTreeFile implements DbFile {
 	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, searchKey(f));
+	}
+
+	/**
+	 * A search on the first key field of a tree keyed on several fields is a
+	 * search on a one-field prefix of its keys.
+	 * 
+	 * @return f as a key of this tree, to compare against the keys of its pages
+	 */
+	private Field searchKey(Field f) {
+		if(f == null || keyFields.length == 1 || f instanceof CompositeField) {
+			return f;
+		}
+		return new CompositeField(new Field[] {f});
 	}
 
 	/**
@@ -247,10 +375,80 @@ public class BTreeFile implements DbFile {
 		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
 		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
 		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+
+		// move the upper half of the tuples to the new page
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		for(int i = page.getNumTuples() / 2; i > 0 && it.hasNext(); i--) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+
+		// link the new page in between the page and its right sibling
+		BTreePageId rightId = page.getRightSiblingId();
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(newPage.getId());
+		}
+		newPage.setRightSiblingId(rightId);
+		newPage.setLeftSiblingId(page.getId());
+		page.setRightSiblingId(newPage.getId());
+
+		// copy the first key of the new page up into the parent, as short as
+		// it can be while still separating the two pages
+		Field key = separator(getKey(page.reverseIterator().next()),
+				getKey(newPage.iterator().next()));
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), key);
+		parent.insertEntry(new BTreeEntry(key, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, key)) {
+			return newPage;
+		}
+		return page;
 	}
 	
+	/**
+	 * Suffix truncation of the separators copied up from the leaves: the
+	 * shortest prefix of the first key of a right-hand page that is still
+	 * greater than the last key of the page to its left. Only string keys
+	 * can be shortened; other keys are returned as they are.
+	 * 
+	 * @param left - the last key of the left-hand page
+	 * @param right - the first key of the right-hand page
+	 * @return a key greater than left, unless left equals right, and no greater than right
+	 */
+	static Field separator(Field left, Field right) {
+		if(!(right instanceof StringField) || !left.compare(Op.LESS_THAN, right)) {
+			return right;
+		}
+		String l = ((StringField) left).getValue();
+		String r = ((StringField) right).getValue();
+		int shared = 0;
+		while(shared < l.length() && shared < r.length() && l.charAt(shared) == r.charAt(shared)) {
+			shared++;
+		}
+		return new StringField(r.substring(0, Math.min(shared + 1, r.length())), Type.STRING_LEN);
+	}
+
+	/**
+	 * @return the total size of the entries of an internal page
+	 * @see BTreeInternalPage#getEntrySize(Field)
+	 */
+	private int entrySizes(BTreeInternalPage page) {
+		int size = 0;
+		Iterator<BTreeEntry> it = page.iterator();
+		while(it.hasNext()) {
+			size += page.getEntrySize(it.next().getKey());
+		}
+		return size;
+	}
+
 	/**
 	 * Split an internal page to make room for new entries and recursively split its parent page
 	 * as needed to accommodate a new entry. The new entry for the parent should have a key matching 
@@ -285,7 +483,39 @@ public class BTreeFile implements DbFile {
 		// the parent pointers of all the children moving to the new page.  updateParentPointers()
 		// will be useful here.  Return the page into which an entry with the given key field
 		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// move the upper half of the entries to the new page, and take out
+		// the middle one to push it up. The halves are measured by the size
+		// of the entries, which only differ for variable-length keys
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		int half = entrySizes(page) / 2;
+		int moved = 0;
+		BTreeEntry middle = it.next();
+		while(moving.isEmpty() || moved + page.getEntrySize(middle.getKey()) <= half) {
+			moving.add(middle);
+			moved += page.getEntrySize(middle.getKey());
+			middle = it.next();
+		}
+		for(BTreeEntry e : moving) {
+			page.deleteKeyAndRightChild(e);
+			newPage.insertEntry(e);
+		}
+		page.deleteKeyAndRightChild(middle);
+		updateParentPointers(tid, dirtypages, newPage);
+
+		middle.setLeftChild(page.getId());
+		middle.setRightChild(newPage.getId());
+		BTreeInternalPage parent = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), middle.getKey());
+		parent.insertEntry(middle);
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, middle.getKey())) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -399,6 +629,10 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * Before an internal page or the root pointer page is changed, the readers searching
+	 * through it under a latch are waited for.
+	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -417,6 +651,9 @@ public class BTreeFile implements DbFile {
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
+				if(pid.pgcateg() == BTreePageId.INTERNAL || pid.pgcateg() == BTreePageId.ROOT_PTR) {
+					Database.getBufferPool().getLatchTable().drain(pid);
+				}
 				dirtypages.put(pid, p);
 			}
 			return p;
@@ -431,35 +668,51 @@ public class BTreeFile implements DbFile {
 	 * @param t - the tuple to insert
 	 * @return a list of all pages that were dirtied by this operation. Could include
 	 * many pages since parent pointers will need to be updated when an internal node splits.
+	 * If the insert fails part way, the pages it changed are handed to the BufferPool so
+	 * that the abort of the transaction puts them back.
 	 * @see #splitLeafPage(TransactionId, HashMap, BTreeLeafPage, Field)
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		boolean done = false;
+		try {
+			insertTuple(tid, dirtypages, t);
+			done = true;
+		} finally {
+			if(!done) {
+				Database.getBufferPool().pagesAbandoned(tid, dirtypages.values());
+			}
+		}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
-		}
+	private void insertTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		createIfEmpty();
 
 		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// searching from the root pointer page without locking the pages on the way
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, getKey(t));
+		if(leafPage == null) { // the root has just been created, so set the root pointer to point to it
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
+			if(rootPtr.getRootId() == null) {
+				rootPtr.setRootId(new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+			}
+			leafPage = findLeafPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE, getKey(t));
+		}
+
+		// only a split locks the pages above the leaf, if there are no more slots available
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, getKey(t));	
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 	
 	/**
@@ -581,6 +834,24 @@ public class BTreeFile implements DbFile {
         // Move some of the tuples from the sibling to the page so
 		// that the tuples are evenly distributed. Be sure to update
 		// the corresponding parent entry.
+		int toMove = sibling.getNumTuples() - (page.getNumTuples() + sibling.getNumTuples()) / 2;
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = isRightSibling ? sibling.iterator() : sibling.reverseIterator();
+		for(int i = 0; i < toMove && it.hasNext(); i++) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			sibling.deleteTuple(t);
+			page.insertTuple(t);
+		}
+
+		// the key of the entry separates the last key of the left-hand page
+		// from the first key of the right-hand page
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		entry.setKey(separator(getKey(left.reverseIterator().next()),
+				getKey(right.iterator().next())));
+		parent.updateEntry(entry);
 	}
 
 	/**
@@ -661,6 +932,22 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
+		// move entries until the page is at least as full as its sibling
+		int pageSize = entrySizes(page);
+		int siblingSize = entrySizes(leftSibling);
+		while(pageSize < siblingSize) {
+			BTreeEntry last = leftSibling.reverseIterator().next();
+			pageSize += page.getEntrySize(parentEntry.getKey());
+			siblingSize -= leftSibling.getEntrySize(last.getKey());
+			BTreePageId firstChild = page.getNumEntries() > 0
+					? page.iterator().next().getLeftChild() : page.getChildId(0);
+			// the parent key comes down, and the last key of the left sibling goes up
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), last.getRightChild(), firstChild));
+			parentEntry.setKey(last.getKey());
+			parent.updateEntry(parentEntry);
+			leftSibling.deleteKeyAndRightChild(last);
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -689,6 +976,22 @@ public class BTreeFile implements DbFile {
 		// that the entries are evenly distributed. Be sure to update
 		// the corresponding parent entry. Be sure to update the parent
 		// pointers of all children in the entries that were moved.
+		// move entries until the page is at least as full as its sibling
+		int pageSize = entrySizes(page);
+		int siblingSize = entrySizes(rightSibling);
+		while(pageSize < siblingSize) {
+			BTreeEntry first = rightSibling.iterator().next();
+			pageSize += page.getEntrySize(parentEntry.getKey());
+			siblingSize -= rightSibling.getEntrySize(first.getKey());
+			BTreePageId lastChild = page.getNumEntries() > 0
+					? page.reverseIterator().next().getRightChild() : page.getChildId(0);
+			// the parent key comes down, and the first key of the right sibling goes up
+			page.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, first.getLeftChild()));
+			parentEntry.setKey(first.getKey());
+			parent.updateEntry(parentEntry);
+			rightSibling.deleteKeyAndLeftChild(first);
+		}
+		updateParentPointers(tid, dirtypages, page);
 	}
 	
 	/**
@@ -719,6 +1022,25 @@ public class BTreeFile implements DbFile {
 		// the sibling pointers, and make the right page available for reuse.
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		ArrayList<Tuple> moving = new ArrayList<Tuple>();
+		Iterator<Tuple> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(Tuple t : moving) {
+			rightPage.deleteTuple(t);
+			leftPage.insertTuple(t);
+		}
+
+		BTreePageId rightId = rightPage.getRightSiblingId();
+		leftPage.setRightSiblingId(rightId);
+		if(rightId != null) {
+			BTreeLeafPage right = (BTreeLeafPage) getPage(tid, dirtypages, rightId, Permissions.READ_WRITE);
+			right.setLeftSiblingId(leftPage.getId());
+		}
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 
 	/**
@@ -752,6 +1074,26 @@ public class BTreeFile implements DbFile {
 		// and make the right page available for reuse
 		// Delete the entry in the parent corresponding to the two pages that are merging -
 		// deleteParentEntry() will be useful here
+		BTreePageId lastChild = leftPage.getNumEntries() > 0
+				? leftPage.reverseIterator().next().getRightChild() : leftPage.getChildId(0);
+		BTreePageId firstChild = rightPage.getNumEntries() > 0
+				? rightPage.iterator().next().getLeftChild() : rightPage.getChildId(0);
+		// pull the parent key down between the two pages' children
+		leftPage.insertEntry(new BTreeEntry(parentEntry.getKey(), lastChild, firstChild));
+
+		ArrayList<BTreeEntry> moving = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = rightPage.iterator();
+		while(it.hasNext()) {
+			moving.add(it.next());
+		}
+		for(BTreeEntry e : moving) {
+			rightPage.deleteKeyAndLeftChild(e);
+			leftPage.insertEntry(e);
+		}
+		updateParentPointers(tid, dirtypages, leftPage);
+
+		setEmptyPage(tid, dirtypages, rightPage.getId().getPageNumber());
+		deleteParentEntry(tid, dirtypages, leftPage, parent, parentEntry);
 	}
 	
 	/**
@@ -781,7 +1123,7 @@ public class BTreeFile implements DbFile {
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
 			// page will become the new root
@@ -815,7 +1157,23 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		boolean done = false;
+		try {
+			deleteTuple(tid, dirtypages, t);
+			done = true;
+		} finally {
+			if(!done) {
+				Database.getBufferPool().pagesAbandoned(tid, dirtypages.values());
+			}
+		}
 
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
+		dirtyPagesArr.addAll(dirtypages.values());
+		return dirtyPagesArr;
+	}
+
+	private void deleteTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, Tuple t) 
+			throws DbException, IOException, TransactionAbortedException {
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
@@ -827,10 +1185,6 @@ public class BTreeFile implements DbFile {
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 
 	/**
@@ -845,23 +1199,26 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
+		createIfEmpty();
 
 		// get a read lock on the root pointer page
 		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
+	/**
+	 * Create the root pointer page and the root page if the file is empty.
+	 * 
+	 * @throws IOException
+	 */
+	private synchronized void createIfEmpty() throws IOException {
+		if(f.length() == 0) {
+			byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+			byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+			channel.write(ByteBuffer.wrap(emptyRootPtrData), 0);
+			channel.write(ByteBuffer.wrap(emptyLeafData), emptyRootPtrData.length);
+		}
+	}
+
 	/**
 	 * Get the page number of the first empty page in this BTreeFile.
 	 * Creates a new page if none of the existing pages are empty.
@@ -910,11 +1267,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				channel.write(ByteBuffer.wrap(emptyData), channel.size());
 				emptyPageNo = numPages();
 			}
 		}
@@ -945,10 +1299,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		channel.write(ByteBuffer.wrap(BTreePage.createEmptyPageData()), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1066,7 +1417,20 @@ public class BTreeFile implements DbFile {
 	 * @return an iterator for all the tuples in this file
 	 */
 	public DbFileIterator iterator(TransactionId tid) {
-		return new BTreeFileIterator(this, tid);
+		return iterator(tid, 0);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in sorted order that
+	 * asks the BufferPool's {@link Prefetcher} to read the next prefetchPages
+	 * leaves ahead of the scan in the background.
+	 * @param tid - the transaction id
+	 * @param prefetchPages - the number of leaves to read ahead; 0 disables
+	 * prefetching
+	 * @return an iterator for all the tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid, int prefetchPages) {
+		return new BTreeFileIterator(this, tid, prefetchPages);
 	}
 
 }
@@ -1081,6 +1445,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	TransactionId tid;
 	BTreeFile f;
+	int prefetchPages;
+	/** Leaves read since the last prefetch request. */
+	int sincePrefetch = 0;
 
 	/**
 	 * Constructor for this iterator
@@ -1088,18 +1455,42 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * @param tid - the transaction id
 	 */
 	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+		this(f, tid, 0);
+	}
+
+	/**
+	 * Constructor for this iterator
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param prefetchPages - the number of leaves to read ahead of the scan
+	 */
+	public BTreeFileIterator(BTreeFile f, TransactionId tid, int prefetchPages) {
 		this.f = f;
 		this.tid = tid;
+		this.prefetchPages = prefetchPages;
+	}
+
+	/**
+	 * Ask for the leaves after the current one once the scan is half way
+	 * through the leaves it asked for last time
+	 */
+	private void prefetchAfter(BTreeLeafPage leaf) {
+		if (prefetchPages <= 0 || sincePrefetch++ % Math.max(1, prefetchPages / 2) != 0)
+			return;
+		Database.getBufferPool().getPrefetcher().prefetchLeaves(
+				leaf.getRightSiblingId(), prefetchPages);
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		curp = f.findLeafPage(tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY, null);
+		if(curp == null) {
+			return;
+		}
+		sincePrefetch = 0;
+		prefetchAfter(curp);
 		it = curp.iterator();
 	}
 
@@ -1122,6 +1513,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			else {
 				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
 						nextp, Permissions.READ_ONLY);
+				prefetchAfter(curp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1181,17 +1573,17 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(f.getId());
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, rootPtrId, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, rootPtrId, Permissions.READ_ONLY, null);
+		}
+		if(curp != null) {
+			it = curp.iterator();
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1207,7 +1599,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				if (f.getKey(t).compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1216,7 +1608,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						f.getKey(t).compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
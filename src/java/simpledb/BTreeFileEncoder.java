@@ -8,7 +8,8 @@ import simpledb.Predicate.Op;
 /**
  * BTreeFileEncoder reads a comma delimited text file and converts it to
  * pages of binary data in the appropriate format for simpledb B+ tree
- * pages.
+ * pages. The faster convert methods sort all tuples in memory; inputs
+ * larger than memory are loaded with a {@link BTreeBulkLoader} instead.
  */
 
 public class BTreeFileEncoder {
@@ -111,7 +112,7 @@ public class BTreeFileEncoder {
 	 * comparator to sort Tuples by key field
 	 */
 	public static class TupleComparator implements Comparator<Tuple> {
-		private int keyField;
+		private int[] keyFields;
 
 		/** 
 		 * Construct a TupleComparator
@@ -119,21 +120,33 @@ public class BTreeFileEncoder {
 		 * @param keyField - the index of the field the tuples are keyed on
 		 */
 		public TupleComparator(int keyField) {
-			this.keyField = keyField;
+			this(new int[] {keyField});
+		}
+
+		/** 
+		 * Construct a TupleComparator for tuples keyed on several fields
+		 * 
+		 * @param keyFields - the indexes of the fields the tuples are keyed on,
+		 * in the order they are compared
+		 */
+		public TupleComparator(int[] keyFields) {
+			this.keyFields = keyFields.clone();
 		}
 
 		/**
-		 * Compare two tuples based on their key field
+		 * Compare two tuples based on their key fields
 		 * 
 		 * @return -1 if t1 < t2, 1 if t1 > t2, 0 if t1 == t2
 		 */
 		public int compare(Tuple t1, Tuple t2) {
 			int cmp = 0;
-			if(t1.getField(keyField).compare(Op.LESS_THAN, t2.getField(keyField))) {
-				cmp = -1;
-			}
-			else if(t1.getField(keyField).compare(Op.GREATER_THAN, t2.getField(keyField))) {
-				cmp = 1;
+			for(int i = 0; i < keyFields.length && cmp == 0; i++) {
+				if(t1.getField(keyFields[i]).compare(Op.LESS_THAN, t2.getField(keyFields[i]))) {
+					cmp = -1;
+				}
+				else if(t1.getField(keyFields[i]).compare(Op.GREATER_THAN, t2.getField(keyFields[i]))) {
+					cmp = 1;
+				}
 			}
 			return cmp;
 		}
@@ -506,6 +519,24 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, new int[] {keyField});
+	}
+
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * of an index keyed on several fields
+	 * 
+	 * @param tuples - the set of tuples
+	 * @param npagebytes - number of bytes per page
+	 * @param numFields - number of fields in each tuple
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyFields - the fields of the tuples the B+ tree will be keyed on
+	 * @return a byte array which can be passed to the BTreeLeafPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToLeafPage(ArrayList<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int[] keyFields)
+					throws IOException {
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -525,7 +556,7 @@ public class BTreeFileEncoder {
 		DataOutputStream dos = new DataOutputStream(baos);
 
 		// write out the pointers and the header of the page,
-		// then sort the tuples on the keyField and write out the tuples.
+		// then sort the tuples on the keyFields and write out the tuples.
 		//
 		// in the header, write a 1 for bits that correspond to records we've
 		// written and 0 for empty slots.
@@ -554,7 +585,7 @@ public class BTreeFileEncoder {
 		if (i % 8 > 0)
 			dos.writeByte(headerbyte);
 
-		Collections.sort(tuples, new TupleComparator(keyField));
+		Collections.sort(tuples, new TupleComparator(keyFields));
 		for(int t = 0; t < recordcount; t++) {
 			TupleDesc td = tuples.get(t).getTupleDesc();
 			for(int j = 0; j < td.numFields(); j++) {
@@ -619,12 +650,45 @@ public class BTreeFileEncoder {
 	 * @param keyType - the type of the key field
 	 * @param childPageCategory - the category of the child pages (either internal or leaf)
 	 * @return a byte array which can be passed to the BTreeInternalPage constructor
-	 * @throws IOException
+	 * @throws IOException if variable-length keys do not fit on the page
 	 */
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, new Type[] {keyType}, childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * of an index keyed on several fields
+	 * 
+	 * @param entries - the set of entries
+	 * @param npagebytes - number of bytes per page
+	 * @param keyTypes - the types of the key fields
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException if variable-length keys do not fit on the page
+	 */
+	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			Type[] keyTypes, int childPageCategory)
+					throws IOException {
+		if (BTreeInternalPage.usesVariableLengthKeys(keyTypes)) {
+			Collections.sort(entries, new EntryComparator());
+			ArrayList<Field> keys = new ArrayList<Field>();
+			ArrayList<Integer> children = new ArrayList<Integer>();
+			keys.add(null);
+			children.add(entries.get(0).getLeftChild().getPageNumber());
+			for (BTreeEntry e : entries) {
+				keys.add(e.getKey());
+				children.add(e.getRightChild().getPageNumber());
+			}
+			return BTreeInternalPage.createVariableLengthPageData(0, childPageCategory, keys, children, npagebytes);
+		}
+
+		int keySize = 0;
+		for (Type t : keyTypes)
+			keySize += t.getLen();
+		int nentrybytes = keySize + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -673,7 +737,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keySize; j++) {
 				dos.writeByte(0);
 			}
 		}
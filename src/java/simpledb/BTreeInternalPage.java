@@ -8,6 +8,16 @@ import simpledb.Predicate.Op;
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Pages keyed on fixed-width fields store every key in a slot of the full
+ * width of its type. Pages keyed on strings use a variable-length layout
+ * instead, where the entries are stored back to back in key order and each
+ * key is prefix-compressed against the one before it: only the length of the
+ * prefix it shares with that key and the rest of its bytes are written. Since
+ * BTreeFile also shortens the separators it copies up from the leaves, a page
+ * of string keys holds many more entries than its 132-byte keys would allow.
+ * Its capacity is counted in entries of the longest possible key, so that the
+ * splits and merges of BTreeFile never overfill it.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -18,9 +28,24 @@ public class BTreeInternalPage extends BTreePage {
 	private final Field keys[];
 	private final int children[];
 	private final int numSlots;
+	/** Whether the entries use the variable-length layout. */
+	private final boolean variableLength;
 	
 	private int childCategory; // either leaf or internal
 
+	/**
+	 * Bytes of a page in the variable-length layout outside of its entries: the
+	 * parent pointer, the child page category, the number of slots in use and
+	 * the first child pointer.
+	 */
+	private static final int VAR_HEADER_SIZE = 2 * INDEX_SIZE + 1 + 2;
+
+	/**
+	 * Bytes of an entry in the variable-length layout besides the bytes of its
+	 * key: the shared prefix length, the suffix length and the child pointer.
+	 */
+	private static final int VAR_ENTRY_OVERHEAD = 2 + INDEX_SIZE;
+
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
 		assert(this.getId().pgcateg() == BTreePageId.INTERNAL);
@@ -37,7 +62,10 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		if (checkOccupancy && depth > 0) {
-			assert (getNumEntries() >= getMaxEntries() / 2);
+			// pages of variable-length keys are split and balanced by bytes,
+			// so the entry count alone says little about how full they are
+			assert (getNumEntries() >= getMaxEntries() / 2 ||
+					(variableLength && getNumEmptySlots() <= getMaxEntries() - getMaxEntries() / 4));
 		}
 	}
 	
@@ -57,6 +85,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * A page keyed on strings instead has a variable-length layout: the parent
+	 * pointer and child page category, the number of child pointers as a short,
+	 * the first child pointer, then for each entry the length of the prefix its
+	 * key shares with the key before it, the length of the rest of the key, the
+	 * rest of the key and the child pointer to its right. The remaining bytes of
+	 * the page are zero.
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,8 +100,22 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreeInternalPage of an index keyed on several fields, whose keys
+	 * are {@link CompositeField}s stored one field after the other.
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, in the order they are compared
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.variableLength = usesVariableLengthKeys(getKeyTypes());
+		this.numSlots = variableLength ? getMaxSlots() : getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -81,6 +129,16 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = (int) dis.readByte();
 
+		if (variableLength) {
+			header = new byte[getHeaderSize()];
+			keys = new Field[numSlots];
+			children = new int[numSlots];
+			readVariableLengthEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -113,23 +171,86 @@ public class BTreeInternalPage extends BTreePage {
 
 	/** 
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
+	 * A page of variable-length keys may hold more, if its keys are shorter than
+	 * the longest possible key.
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		return getMaxEntries(getKeyTypes(), BufferPool.getPageSize());
+	}
+
+	/**
+	 * @param keyTypes - the types of the key fields
+	 * @param pageSize - the number of bytes in a page
+	 * @return the maximum number of entries an internal page with keys of the
+	 * given types can hold, in entries of the longest key for variable-length keys.
+	 * Two such entries are held back from the page, so that a merge, which pulls
+	 * down a key from the parent, or a longer key replacing one of its keys still
+	 * fits on the page.
+	 */
+	static int getMaxEntries(Type[] keyTypes, int pageSize) {
+		if (usesVariableLengthKeys(keyTypes)) {
+			int widest = VAR_ENTRY_OVERHEAD + getMaxKeyBytes(keyTypes);
+			return (pageSize - VAR_HEADER_SIZE) / widest - 2;
+		}
+		int keySize = getKeySize(keyTypes);
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
 		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
-		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
+		int entriesPerPage = (pageSize*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
 
+	/**
+	 * @return whether internal pages with keys of the given types use the
+	 * variable-length layout, which they do if any key field is a string
+	 */
+	static boolean usesVariableLengthKeys(Type[] keyTypes) {
+		for (Type t : keyTypes)
+			if (t == Type.STRING_TYPE)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @return the number of bytes of a key with fields of the given types,
+	 * stored at their full width
+	 */
+	private static int getKeySize(Type[] keyTypes) {
+		int size = 0;
+		for (Type t : keyTypes)
+			size += t.getLen();
+		return size;
+	}
+
+	/**
+	 * @return the most bytes a key with fields of the given types takes in
+	 * the variable-length layout
+	 * @see #keyBytes(Field)
+	 */
+	private static int getMaxKeyBytes(Type[] keyTypes) {
+		if (keyTypes.length == 1)
+			return Type.STRING_LEN;
+		int size = 0;
+		for (Type t : keyTypes)
+			size += (t == Type.STRING_TYPE ? 1 + Type.STRING_LEN : t.getLen());
+		return size;
+	}
+
+	/**
+	 * @return the number of slots of a page in the variable-length layout,
+	 * which is enough for a page of empty keys
+	 */
+	private int getMaxSlots() {
+		return (BufferPool.getPageSize() - VAR_HEADER_SIZE) / VAR_ENTRY_OVERHEAD + 1;
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -145,7 +266,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -161,6 +282,170 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Read the entries of a page in the variable-length layout into the first
+	 * slots of the page.
+	 */
+	private void readVariableLengthEntries(DataInputStream dis) throws IOException {
+		int used = dis.readUnsignedShort();
+		if (used == 0)
+			return;
+		children[0] = dis.readInt();
+		markSlotUsed(0, true);
+		byte[] prev = new byte[0];
+		for (int i=1; i<used; i++) {
+			int shared = dis.readUnsignedByte();
+			int suffix = dis.readUnsignedByte();
+			byte[] bs = new byte[shared + suffix];
+			System.arraycopy(prev, 0, bs, 0, shared);
+			dis.readFully(bs, shared, suffix);
+			keys[i] = parseKeyBytes(bs);
+			children[i] = dis.readInt();
+			markSlotUsed(i, true);
+			prev = bs;
+		}
+	}
+
+	/**
+	 * @return the bytes of a key in the variable-length layout. A string key
+	 * is one byte per character, as written by {@link StringField#serialize};
+	 * the fields of a composite key follow each other, with a length byte
+	 * before each string.
+	 */
+	private static byte[] keyBytes(Field key) {
+		if (key instanceof StringField)
+			return stringBytes((StringField) key);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		CompositeField c = (CompositeField) key;
+		for (int i=0; i<c.numFields(); i++) {
+			Field f = c.getField(i);
+			if (f instanceof StringField) {
+				byte[] bs = stringBytes((StringField) f);
+				baos.write(bs.length);
+				baos.write(bs, 0, bs.length);
+			}
+			else {
+				int v = ((IntField) f).getValue();
+				baos.write(v >>> 24);
+				baos.write(v >>> 16);
+				baos.write(v >>> 8);
+				baos.write(v);
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	private static byte[] stringBytes(StringField f) {
+		String s = f.getValue();
+		byte[] bs = new byte[s.length()];
+		for (int i=0; i<bs.length; i++)
+			bs[i] = (byte) s.charAt(i);
+		return bs;
+	}
+
+	/**
+	 * @return the key written as the given bytes by {@link #keyBytes(Field)}
+	 */
+	private Field parseKeyBytes(byte[] bs) throws IOException {
+		Type[] types = getKeyTypes();
+		if (types.length == 1)
+			return new StringField(new String(bs, "ISO-8859-1"), Type.STRING_LEN);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bs));
+		Field[] fields = new Field[types.length];
+		for (int i=0; i<types.length; i++) {
+			if (types[i] == Type.STRING_TYPE) {
+				byte[] chars = new byte[dis.readUnsignedByte()];
+				dis.readFully(chars);
+				fields[i] = new StringField(new String(chars, "ISO-8859-1"), Type.STRING_LEN);
+			}
+			else {
+				fields[i] = new IntField(dis.readInt());
+			}
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return whether a field is a key of this page: a field of the key type,
+	 * or a composite field with a field of each key type
+	 */
+	private boolean isKey(Field key) {
+		Type[] types = getKeyTypes();
+		if (types.length == 1)
+			return key.getType().equals(types[0]);
+		if (!(key instanceof CompositeField) || ((CompositeField) key).numFields() != types.length)
+			return false;
+		for (int i=0; i<types.length; i++)
+			if (!((CompositeField) key).getField(i).getType().equals(types[i]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Read a key at its full width.
+	 */
+	private Field parseKey(DataInputStream dis) throws java.text.ParseException {
+		Type[] types = getKeyTypes();
+		if (types.length == 1)
+			return types[0].parse(dis);
+		Field[] fields = new Field[types.length];
+		for (int i=0; i<types.length; i++)
+			fields[i] = types[i].parse(dis);
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return the length of the common prefix of two keys
+	 */
+	private static int sharedPrefix(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		int i = 0;
+		while (i < n && a[i] == b[i])
+			i++;
+		return i;
+	}
+
+	/**
+	 * @return the number of bytes the entries of this page take in the
+	 * variable-length layout, with their keys prefix-compressed
+	 */
+	private int getEntryBytes() {
+		int bytes = 0;
+		byte[] prev = new byte[0];
+		for (int i=1; i<numSlots; i++) {
+			if (isSlotUsed(i)) {
+				byte[] bs = keyBytes(keys[i]);
+				bytes += VAR_ENTRY_OVERHEAD + bs.length - sharedPrefix(prev, bs);
+				prev = bs;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return whether the entries of this page would still fit on it with its
+	 * key in the given slot replaced by the given key
+	 */
+	private boolean fitsWithKey(int slot, Field key) {
+		Field old = keys[slot];
+		keys[slot] = key;
+		int bytes = getEntryBytes();
+		keys[slot] = old;
+		return VAR_HEADER_SIZE + bytes <= BufferPool.getPageSize();
+	}
+
+	/**
+	 * Returns the most bytes an entry with the given key takes up on this page.
+	 * BTreeFile uses it to balance pages of variable-length keys by the space
+	 * their entries take rather than by their number.
+	 * @param key - the key of the entry
+	 */
+	public int getEntrySize(Field key) {
+		if (variableLength)
+			return VAR_ENTRY_OVERHEAD + keyBytes(key).length;
+		return getKeySize(getKeyTypes()) + INDEX_SIZE;
+	}
+
 	/**
 	 * Read keys from the source file.
 	 */
@@ -168,7 +453,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<getKeySize(getKeyTypes()); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -181,7 +466,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -232,6 +517,24 @@ public class BTreeInternalPage extends BTreePage {
 	 * @return A byte array correspond to the bytes of this page.
 	 */
 	public byte[] getPageData() {
+		if (variableLength) {
+			ArrayList<Field> entryKeys = new ArrayList<Field>();
+			ArrayList<Integer> entryChildren = new ArrayList<Integer>();
+			for (int i=0; i<numSlots; i++) {
+				if (isSlotUsed(i)) {
+					entryKeys.add(keys[i]);
+					entryChildren.add(children[i]);
+				}
+			}
+			try {
+				return createVariableLengthPageData(parent, childCategory, entryKeys, entryChildren,
+						BufferPool.getPageSize());
+			} catch (IOException e) {
+				// this really shouldn't happen
+				e.printStackTrace();
+				return null;
+			}
+		}
 		int len = BufferPool.getPageSize();
 		ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
 		DataOutputStream dos = new DataOutputStream(baos);
@@ -269,7 +572,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<getKeySize(getKeyTypes()); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -316,7 +619,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				getKeySize(getKeyTypes()) * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -333,6 +636,42 @@ public class BTreeInternalPage extends BTreePage {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Generates the bytes of a page in the variable-length layout.
+	 * @param parent - the page number of the parent, 0 for the root pointer
+	 * @param childCategory - the category of the child pages (either internal or leaf)
+	 * @param keys - the keys of the entries in order, starting with null for the first child
+	 * @param children - the page numbers of the children, one for each key
+	 * @param pageSize - the number of bytes in a page
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException if the entries do not fit on a page
+	 */
+	static byte[] createVariableLengthPageData(int parent, int childCategory, List<Field> keys,
+			List<Integer> children, int pageSize) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(pageSize);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(parent);
+		dos.writeByte((byte) childCategory);
+		dos.writeShort(children.size());
+		byte[] prev = new byte[0];
+		for (int i=0; i<children.size(); i++) {
+			if (i > 0) {
+				byte[] bs = keyBytes(keys.get(i));
+				int shared = sharedPrefix(prev, bs);
+				dos.writeByte(shared);
+				dos.writeByte(bs.length - shared);
+				dos.write(bs, shared, bs.length - shared);
+				prev = bs;
+			}
+			dos.writeInt(children.get(i));
+		}
+		if (dos.size() > pageSize)
+			throw new IOException("internal page entries do not fit on a page");
+		dos.write(new byte[pageSize - dos.size()]);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
 	/**
 	 * Delete the specified entry (key + 1 child pointer) from the page. The recordId
 	 * is used to find the specified entry, so it must not be null. After deletion, the 
@@ -409,6 +748,8 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("tried to update entry on invalid page or table");
 		if (!isSlotUsed(rid.getTupleNumber()))
 			throw new DbException("tried to update null entry.");
+		if (variableLength && !fitsWithKey(rid.getTupleNumber(), e.getKey()))
+			throw new DbException("not enough room on page to update entry with key " + e.getKey());
 		
 		for(int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
 			if(isSlotUsed(i)) {
@@ -441,7 +782,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!isKey(e.getKey()))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -457,7 +798,7 @@ public class BTreeInternalPage extends BTreePage {
 			throw new DbException("child page category mismatch in insertEntry");
 
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().getPageNumber();
 			children[1] = e.getRightChild().getPageNumber();
 			keys[1] = e.getKey();
@@ -478,6 +819,8 @@ public class BTreeInternalPage extends BTreePage {
 
 		if (emptySlot == -1)
 			throw new DbException("called insertEntry on page with no empty slots.");        
+		if (variableLength && VAR_HEADER_SIZE + getEntryBytes() + getEntrySize(e.getKey()) > BufferPool.getPageSize())
+			throw new DbException("called insertEntry on page with no room for key " + e.getKey());
 
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
@@ -562,13 +905,27 @@ public class BTreeInternalPage extends BTreePage {
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		return numSlots - getNumFreeSlots() - 1;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a page of
+	 * variable-length keys, this is the number of entries of the longest
+	 * possible key that can still be added to it.
 	 */
 	public int getNumEmptySlots() {
+		if (variableLength) {
+			int widest = VAR_ENTRY_OVERHEAD + getMaxKeyBytes(getKeyTypes());
+			int free = BufferPool.getPageSize() - VAR_HEADER_SIZE - 2 * widest - getEntryBytes();
+			return Math.min(getNumFreeSlots(), Math.max(0, free / widest));
+		}
+		return getNumFreeSlots();
+	}
+
+	/**
+	 * @return the number of slots of this page not holding an entry
+	 */
+	private int getNumFreeSlots() {
 		int cnt = 0;
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -617,6 +974,14 @@ public class BTreeInternalPage extends BTreePage {
 		return new BTreeInternalPageReverseIterator(this);
 	}
 
+	/**
+	 * @return the number of slots on this page, including the slot of the
+	 * first child pointer
+	 */
+	protected int getNumSlots() {
+		return numSlots;
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith key out of this page
 	 * @param i - the index of the key
@@ -741,7 +1106,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getNumSlots() - 1;
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -761,8 +1126,17 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null) {
+					continue;
+				}
+				// the left child is in the previous slot in use, which is not
+				// always the one right before this entry
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev)) {
+					prev--;
+				}
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
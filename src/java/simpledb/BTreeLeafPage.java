@@ -26,8 +26,9 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = (fieldid == keyField ? keyOf(t) : t.getField(fieldid));
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -62,7 +63,19 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] {key});
+	}
+
+	/**
+	 * Create a BTreeLeafPage of an index keyed on several fields.
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keys - the fields which the index is keyed on, in the order they are compared
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keys) throws IOException {
+		super(id, keys);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -137,7 +150,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -324,10 +337,10 @@ public class BTreeLeafPage extends BTreePage {
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
+		Field key = keyOf(t);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(keyOf(tuples[i]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
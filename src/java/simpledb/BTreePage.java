@@ -19,6 +19,7 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -49,11 +50,58 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] {key});
+	}
+
+	/**
+	 * Create a page of an index keyed on several fields.
+	 * @see #BTreePage(BTreePageId, int)
+	 * 
+	 * @param id - the id of this page
+	 * @param keys - the fields which the index is keyed on, in the order they are compared
+	 */
+	public BTreePage(BTreePageId id, int[] keys) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keys[0];
+		this.keyFields = keys.clone();
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * @param t - a tuple of the index
+	 * @param keys - the fields which the index is keyed on
+	 * @return the key of the tuple: its key field, or a {@link CompositeField}
+	 * of its key fields if there are several
+	 */
+	static Field keyOf(Tuple t, int[] keys) {
+		if(keys.length == 1) {
+			return t.getField(keys[0]);
+		}
+		Field[] fields = new Field[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			fields[i] = t.getField(keys[i]);
+		}
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return the key of a tuple of the index this page belongs to
+	 */
+	protected Field keyOf(Tuple t) {
+		return keyOf(t, keyFields);
+	}
+
+	/**
+	 * @return the types of the key fields of the index, in key order
+	 */
+	protected Type[] getKeyTypes() {
+		Type[] types = new Type[keyFields.length];
+		for(int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(keyFields[i]);
+		}
+		return types;
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
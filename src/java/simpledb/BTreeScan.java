@@ -15,6 +15,7 @@ public class BTreeScan implements OpIterator {
 	private TupleDesc myTd;
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
+	private int tableid;
 	private String tablename;
 	private String alias;
 
@@ -52,6 +53,13 @@ public class BTreeScan implements OpIterator {
 		return this.tablename;
 	}
 
+	/**
+	 * @return the id of the table the operator scans
+	 */
+	public int getTableId() {
+		return this.tableid;
+	}
+
 	/**
 	 * @return Return the alias of the table this operator scans. 
 	 * */
@@ -74,6 +82,7 @@ public class BTreeScan implements OpIterator {
 	 */
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
+		this.tableid = tableid;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
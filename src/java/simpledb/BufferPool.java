@@ -2,7 +2,13 @@ package simpledb;
 
 import java.io.*;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -12,8 +18,44 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a concurrent map, and reading, flushing, discarding or
+ * evicting a page only locks the stripe the page hashes to, so threads
+ * working on different pages do not wait for each other. Locks are always
+ * taken in the order LogFile, then page stripe; the eviction policy is never
+ * called while a stripe is held.
+ * <p>
+ * In off-heap mode the pages of HeapFiles are read into the frames of a
+ * preallocated {@link PageArena} and read their tuples in place, so the
+ * page images of the pool do not live on the garbage collected heap.
+ * <p>
+ * Scans can ask the pool's {@link Prefetcher} to read the pages they will
+ * need next in the background, so their page misses overlap with work.
+ * <p>
+ * A commit logs the transaction's dirty pages and waits only for the log to
+ * be forced (commits that arrive together share one force, see
+ * {@link LogFile#logCommit}); the pages themselves are written back later by
+ * the pool's {@link PageCleaner}, or by {@link #flushCommittedPages} before
+ * the pool is discarded.
+ * <p>
+ * Read-only transactions read multi-version HeapFiles from a snapshot kept
+ * by the pool's {@link VersionStore}, without locks.
+ * <p>
+ * Locks are taken through the pool's {@link LockManager}: getPage() locks
+ * the page (and its table in the intention mode), while HeapFiles change
+ * tuples under tuple locks, so several transactions can change different
+ * tuples of one page at the same time. Each such page remembers which
+ * transaction owns each changed slot; a commit logs and installs only the
+ * slots of the committing transaction, and an abort only puts those back.
+ * <p>
+ * Access methods that read pages without locking them, like the descent
+ * through the internal pages of a B+ tree, use the short-term latches of
+ * the pool's {@link LatchTable} instead. Such a descent reads the last
+ * committed version of a page another transaction is changing, and checks
+ * with the {@link TreeVersion} of the tree that no commit changed the tree
+ * under it.
  * 
- * @Threadsafe, all fields are final
+ * @Threadsafe
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -26,13 +68,130 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Number of locks the page table is striped over. */
+    private static final int NUM_STRIPES = 64;
+
+    private final int numPages;
+    /** The page size when this pool was created, which its pages have. */
+    private final int poolPageSize;
+    private final ConcurrentHashMap<PageId, Page> pages;
+    private final EvictionPolicy policy;
+    /** Frames in use or reserved by a pending read; never exceeds numPages. */
+    private final AtomicInteger usedFrames;
+    private final Object[] stripes;
+    /** Off-heap frames, or null if pages are kept on the heap. */
+    private final PageArena arena;
+    /** Arena frame of each resident page read into the arena. */
+    private final ConcurrentHashMap<PageId, Integer> frames;
+    private final Prefetcher prefetcher;
+    private final PageCleaner cleaner;
+    private final VersionStore versions;
+    private final LockManager lockManager;
+    private final LatchTable latches;
+    /** Version of the inner pages of each B+ tree, by table id. */
+    private final ConcurrentHashMap<Integer, TreeVersion> treeVersions;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, using the
+     * scan resistant 2Q replacement policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        // some code goes here
+        this(numPages, new TwoQueueEvictionPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and uses the
+     * given policy to pick pages to evict.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
+        this(numPages, policy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the page replacement policy
+     * @param offHeap if true, preallocate numPages frames of direct memory
+     *        and keep the pages of HeapFiles in them
+     */
+    public BufferPool(int numPages, EvictionPolicy policy, boolean offHeap) {
+        this.numPages = numPages;
+        this.poolPageSize = pageSize;
+        this.arena = offHeap ? new PageArena(numPages, pageSize) : null;
+        this.frames = new ConcurrentHashMap<PageId, Integer>();
+        this.pages = new ConcurrentHashMap<PageId, Page>();
+        this.policy = policy;
+        this.usedFrames = new AtomicInteger(0);
+        this.stripes = new Object[NUM_STRIPES];
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Object();
+        this.prefetcher = new Prefetcher(this);
+        this.cleaner = new PageCleaner(this);
+        this.versions = new VersionStore(this);
+        this.lockManager = new LockManager();
+        this.latches = new LatchTable();
+        this.treeVersions = new ConcurrentHashMap<Integer, TreeVersion>();
+    }
+
+    /** @return true if this buffer pool keeps HeapFile pages off-heap */
+    public boolean isOffHeap() {
+        return arena != null;
+    }
+
+    /** @return the lock guarding the frame of the specified page */
+    private Object stripeFor(PageId pid) {
+        return stripes[(pid.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    /** @return the prefetcher that reads pages into this buffer pool in the background */
+    public Prefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /** @return the old versions of pages kept for the snapshots of read-only transactions */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /** @return the lock manager of this buffer pool */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** @return the short-term latches on the pages of this buffer pool */
+    public LatchTable getLatchTable() {
+        return latches;
+    }
+
+    /**
+     * @return the version of the committed internal and root pointer pages
+     * of the B+ tree with the given table id
+     */
+    TreeVersion getTreeVersion(int tableId) {
+        TreeVersion version = treeVersions.get(tableId);
+        if (version == null) {
+            version = new TreeVersion();
+            TreeVersion raced = treeVersions.putIfAbsent(tableId, version);
+            if (raced != null)
+                version = raced;
+        }
+        return version;
+    }
+
+    /** @return the cleaner that writes back the pages of committed transactions */
+    public PageCleaner getPageCleaner() {
+        return cleaner;
+    }
+
+    /** @return the replacement policy of this buffer pool, with its hit / miss counters */
+    public EvictionPolicy getEvictionPolicy() {
+        return policy;
     }
     
     public static int getPageSize() {
@@ -60,6 +219,13 @@ public class BufferPool {
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
      *
+     * READ_ONLY permission takes an S lock on the page and READ_WRITE an X
+     * lock, with the matching intention lock on the table.
+     *
+     * A read-only transaction gets the pages of multi-version HeapFiles
+     * from its snapshot instead, without a lock; it cannot ask for
+     * READ_WRITE permission.
+     *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
@@ -67,7 +233,184 @@ public class BufferPool {
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
         // some code goes here
-        return null;
+        if (tid != null && tid.isReadOnly()) {
+            if (perm != Permissions.READ_ONLY)
+                throw new DbException("transaction " + tid.getId() + " is read only");
+            if (isMultiVersion(pid))
+                return versions.snapshotPage(tid, pid);
+        }
+        if (tid != null) {
+            lockManager.lockPage(tid, pid, perm == Permissions.READ_WRITE
+                    ? LockManager.Mode.X : LockManager.Mode.S);
+        }
+        return fetchPage(pid);
+    }
+
+    /**
+     * Lock a page like {@link #getPage} would, unless that means waiting.
+     *
+     * @return true if tid now holds the lock, false if another transaction
+     *         is in the way
+     */
+    boolean tryLockPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException {
+        return lockManager.tryLockPage(tid, pid, perm == Permissions.READ_WRITE
+                ? LockManager.Mode.X : LockManager.Mode.S);
+    }
+
+    /**
+     * Retrieve a page whose tuples the transaction will change under tuple
+     * locks (see {@link #lockTuple}), with an IX lock on the page, so other
+     * transactions can change other tuples of it at the same time.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     */
+    public Page getPageForTupleUpdate(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if (tid.isReadOnly())
+            throw new DbException("transaction " + tid.getId() + " is read only");
+        lockManager.lockPage(tid, pid, LockManager.Mode.IX);
+        return fetchPage(pid);
+    }
+
+    /**
+     * Lock a tuple, in S mode for READ_ONLY and X mode for READ_WRITE
+     * permission, with intention locks on its page and table. Will block
+     * while another transaction holds a conflicting lock.
+     *
+     * @param tid the ID of the transaction requesting the lock
+     * @param rid the tuple to lock
+     * @param perm the requested permissions on the tuple
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Permissions perm)
+        throws TransactionAbortedException {
+        lockManager.lockTuple(tid, rid, perm == Permissions.READ_WRITE
+                ? LockManager.Mode.X : LockManager.Mode.S);
+    }
+
+    /** @return the resident page, after reading it into the pool if needed */
+    private Page fetchPage(PageId pid) throws DbException {
+        Page page = pages.get(pid);
+        if (page != null) {
+            policy.pageHit(pid);
+            return page;
+        }
+        return loadPage(pid, true);
+    }
+
+    /** @return true if the page belongs to a multi-version HeapFile */
+    private boolean isMultiVersion(PageId pid) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return file instanceof HeapFile && ((HeapFile) file).isMultiVersion();
+    }
+
+    /**
+     * Return a copy of the last committed version of a page, reading the
+     * page into the pool if needed. Used by the {@link VersionStore}.
+     */
+    Page committedPage(PageId pid) throws DbException {
+        return fetchPage(pid).getBeforeImage();
+    }
+
+    /**
+     * Read a page into the pool on behalf of the prefetcher, unless it is
+     * already resident. No lock is taken on the page: the page is only
+     * cached, and transactions still lock it through {@link #getPage}.
+     *
+     * @return the page
+     */
+    Page prefetchPage(PageId pid) throws DbException {
+        Page page = pages.get(pid);
+        if (page != null)
+            return page;
+        return loadPage(pid, false);
+    }
+
+    /**
+     * Read a page that was not found in the page table into the pool. If
+     * another thread read it in the meantime, the resident page is returned
+     * and counted as a hit if countHit is set.
+     */
+    private Page loadPage(PageId pid, boolean countHit) throws DbException {
+        Page page;
+        // reserve a frame before locking the stripe, since evicting may
+        // need the stripe of another page
+        reserveFrame();
+        boolean admitted = false;
+        try {
+            synchronized (stripeFor(pid)) {
+                page = pages.get(pid);
+                if (page == null) {
+                    DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                    if (arena != null && file instanceof HeapFile)
+                        page = readIntoFrame((HeapFile) file, pid);
+                    else
+                        page = file.readPage(pid);
+                    pages.put(pid, page);
+                    admitted = true;
+                }
+            }
+        } finally {
+            if (!admitted)
+                usedFrames.decrementAndGet();
+        }
+
+        if (admitted)
+            policy.pageMiss(pid);
+        else if (countHit)
+            policy.pageHit(pid);
+        return page;
+    }
+
+    /**
+     * Read a HeapFile page into a free arena frame. The caller holds the
+     * stripe of pid and has reserved a frame.
+     */
+    private Page readIntoFrame(HeapFile file, PageId pid) throws DbException {
+        int frame = arena.allocate();
+        try {
+            Page page = file.readPage(pid, arena.frame(frame));
+            frames.put(pid, frame);
+            return page;
+        } catch (RuntimeException e) {
+            arena.release(frame);
+            throw e;
+        }
+    }
+
+    /**
+     * Remove a resident page from the page table and free its frame. The
+     * caller holds the stripe of pid.
+     */
+    private void dropPage(PageId pid) {
+        Page p = pages.remove(pid);
+        if (p == null)
+            return;
+        Integer frame = frames.remove(pid);
+        if (frame != null) {
+            // the page may still be referenced, e.g. by an iterator
+            ((HeapPage) p).detachFrame();
+            arena.release(frame);
+        }
+        usedFrames.decrementAndGet();
+    }
+
+    /**
+     * Claim a free frame, evicting pages until one is available.
+     *
+     * @throws DbException if no page can be evicted
+     */
+    private void reserveFrame() throws DbException {
+        while (true) {
+            int used = usedFrames.get();
+            if (used < numPages) {
+                if (usedFrames.compareAndSet(used, used + 1))
+                    return;
+            } else {
+                evictPage();
+            }
+        }
     }
 
     /**
@@ -82,6 +425,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
+        lockManager.release(tid, pid);
     }
 
     /**
@@ -92,18 +436,34 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return false;
+        return lockManager.holds(tid, p) != null;
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On commit, an UPDATE record is logged for each page the transaction
+     * dirtied, followed by a COMMIT record, and this method returns once the
+     * log is on disk. Only then do the pages become their own before images
+     * and are left to the {@link PageCleaner}, so that no change reaches
+     * disk before its transaction is durably committed. The pages of
+     * multi-version HeapFiles are also kept in the {@link VersionStore} for
+     * the snapshots that began earlier. On
+     * abort, each page the transaction dirtied is put back to its last
+     * committed version.
+     * <p>
+     * On pages whose tuples the transaction changed under tuple locks, only
+     * the slots it owns are logged and installed in the before image, or
+     * put back on abort; the slots of other transactions are left alone.
+     * The locks of the transaction are released last.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -112,6 +472,280 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        try {
+            completePages(tid, commit);
+        } finally {
+            lockManager.releaseAll(tid);
+        }
+    }
+
+    private void completePages(TransactionId tid, boolean commit)
+        throws IOException {
+        if (tid.isReadOnly())
+            versions.snapshotEnded(tid);
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        ArrayList<HeapPage> shared = new ArrayList<HeapPage>();
+        for (Page p : pages.values()) {
+            if (p instanceof HeapPage && ((HeapPage) p).isSlotOwner(tid))
+                shared.add((HeapPage) p);
+            else if (tid.equals(p.isDirty()))
+                dirtied.add(p);
+        }
+
+        if (!commit) {
+            for (HeapPage p : shared)
+                abortSlots(tid, p);
+            for (Page p : dirtied)
+                restorePage(tid, p.getId());
+            return;
+        }
+
+        LogFile log = Database.getLogFile();
+        if (dirtied.isEmpty() && shared.isEmpty() && !log.isActive(tid))
+            return; // nothing to make durable
+        long[] lsns = new long[dirtied.size()];
+        for (int i = 0; i < lsns.length; i++) {
+            Page p = dirtied.get(i);
+            lsns[i] = log.logWrite(tid, p.getBeforeImage(), p);
+        }
+        long[] slotLsns = new long[shared.size()];
+        synchronized (log) {
+            // slot commits of a page are logged in the order they are
+            // prepared in, so a full image is only logged if no other
+            // transaction has slots on the page that it would overwrite
+            for (int i = 0; i < slotLsns.length; i++) {
+                HeapPage p = shared.get(i);
+                boolean alone = p.isSoleSlotOwner(tid);
+                HeapPage[] versions = p.prepareSlotCommit(tid);
+                slotLsns[i] = log.logWrite(tid, versions[0], versions[1], !alone);
+            }
+        }
+        log.logCommit(tid);
+        for (int i = 0; i < slotLsns.length; i++)
+            commitSlots(tid, shared.get(i), slotLsns[i]);
+        // trees are taken in table id order, so that two commits never wait
+        // for each other's installs
+        TreeSet<Integer> trees = new TreeSet<Integer>();
+        for (Page p : dirtied) {
+            if (isInnerPage(p.getId()))
+                trees.add(p.getId().getTableId());
+        }
+        ArrayList<TreeVersion> installing = new ArrayList<TreeVersion>();
+        ArrayList<PageId> versioned;
+        try {
+            for (int tableId : trees) {
+                TreeVersion version = getTreeVersion(tableId);
+                version.beginInstall();
+                installing.add(version);
+            }
+            versioned = installPages(tid, dirtied, lsns);
+        } finally {
+            for (TreeVersion version : installing)
+                version.endInstall();
+        }
+        tid.setCommitted();
+        for (PageId pid : versioned)
+            versions.transactionCommitted(pid);
+    }
+
+    /**
+     * Make the pages a transaction dirtied their own before images and queue
+     * them for write back, once its commit is logged.
+     *
+     * @return the pages of multi-version HeapFiles among them
+     */
+    private ArrayList<PageId> installPages(TransactionId tid, ArrayList<Page> dirtied, long[] lsns) {
+        ArrayList<PageId> versioned = new ArrayList<PageId>();
+        for (int i = 0; i < lsns.length; i++) {
+            Page p = dirtied.get(i);
+            if (isMultiVersion(p.getId())) {
+                versions.pageCommitted(tid, (HeapPage) p);
+                versioned.add(p.getId());
+            }
+            p.setBeforeImage();
+            cleaner.pageCommitted(p.getId(), tid, lsns[i]);
+        }
+        return versioned;
+    }
+
+    /** @return true for the internal and root pointer pages of B+ trees */
+    private static boolean isInnerPage(PageId pid) {
+        if (!(pid instanceof BTreePageId))
+            return false;
+        int category = ((BTreePageId) pid).pgcateg();
+        return category == BTreePageId.INTERNAL || category == BTreePageId.ROOT_PTR;
+    }
+
+    /**
+     * Install the committed slots of tid on a page shared with other
+     * transactions and queue the page for write back. The page stays dirty
+     * for another owner if one is left.
+     */
+    private void commitSlots(TransactionId tid, HeapPage p, long lsn) {
+        PageId pid = p.getId();
+        long written;
+        synchronized (stripeFor(pid)) {
+            written = p.commitSlots(tid, lsn);
+            markForOwners(p, tid);
+        }
+        cleaner.pageCommitted(pid, tid, written);
+    }
+
+    /**
+     * Put back the slots an aborted transaction owns on a page shared with
+     * other transactions.
+     */
+    private void abortSlots(TransactionId tid, HeapPage p) {
+        PageId pid = p.getId();
+        PageCleaner.Commit committed;
+        synchronized (stripeFor(pid)) {
+            p.abortSlots(tid);
+            committed = cleaner.pendingCommit(pid);
+            if (!markForOwners(p, committed == null ? null : committed.tid))
+                committed = null;
+        }
+        if (committed != null) // in case it was just written
+            cleaner.pageCommitted(pid, committed.tid, committed.lsn);
+    }
+
+    /**
+     * Mark a page dirty for one of the transactions that own slots on it,
+     * or else for the given transaction, or clean if that is null. The
+     * caller holds the stripe of the page.
+     *
+     * @return false if the page was marked for one of its owners
+     */
+    private boolean markForOwners(HeapPage p, TransactionId otherwise) {
+        Set<TransactionId> owners = p.slotOwners();
+        if (!owners.isEmpty()) {
+            p.markDirty(true, owners.iterator().next());
+            return false;
+        }
+        p.markDirty(otherwise != null, otherwise);
+        return true;
+    }
+
+    /**
+     * Called by the LogFile after it rolled back the changes of tid to a
+     * page on disk. The page is dropped from the pool, unless other
+     * transactions own slots on it: then only the slots of tid are put
+     * back.
+     */
+    void pageRolledBack(TransactionId tid, PageId pid) {
+        Page p = pages.get(pid);
+        if (p instanceof HeapPage) {
+            HeapPage hp = (HeapPage) p;
+            Set<TransactionId> owners = hp.slotOwners();
+            owners.remove(tid);
+            if (!owners.isEmpty()) {
+                abortSlots(tid, hp);
+                return;
+            }
+        }
+        discardPage(pid);
+    }
+
+    /**
+     * Undo the changes of an aborted transaction to a page. If the page holds
+     * committed changes that are not on disk yet, its last committed version
+     * (the before image) replaces it; otherwise it is dropped and will be
+     * read again from disk.
+     */
+    private void restorePage(TransactionId tid, PageId pid) {
+        boolean removed = false;
+        PageCleaner.Commit committed;
+        synchronized (stripeFor(pid)) {
+            Page p = pages.get(pid);
+            if (p == null || !tid.equals(p.isDirty()))
+                return;
+            committed = cleaner.pendingCommit(pid);
+            if (committed == null) {
+                dropPage(pid);
+                removed = true;
+            } else {
+                Page before = p.getBeforeImage();
+                before.markDirty(true, committed.tid);
+                replacePage(pid, before);
+            }
+        }
+        if (removed)
+            policy.pageRemoved(pid);
+        else // in case it was just written
+            cleaner.pageCommitted(pid, committed.tid, committed.lsn);
+    }
+
+    /**
+     * Put a different version of a resident page in the page table. The
+     * caller holds the stripe of pid.
+     */
+    private void replacePage(PageId pid, Page page) {
+        Integer frame = frames.remove(pid);
+        Page old = pages.put(pid, page);
+        if (frame != null) {
+            ((HeapPage) old).detachFrame();
+            arena.release(frame);
+        }
+    }
+
+    /**
+     * Make a page dirtied by tid resident, replacing any other version of
+     * it, and mark it dirty. Marking it under the stripe orders it with the
+     * write back of the page by the PageCleaner.
+     */
+    private void cachePage(TransactionId tid, Page page) throws DbException {
+        PageId pid = page.getId();
+        boolean reserved = false;
+        if (!pages.containsKey(pid)) {
+            reserveFrame();
+            reserved = true;
+        }
+        boolean admitted = false;
+        synchronized (stripeFor(pid)) {
+            page.markDirty(true, tid);
+            Page resident = pages.get(pid);
+            if (resident == null) {
+                // if it was evicted since we looked, put it back anyway: a
+                // dirty page cannot be dropped, and the pool shrinks back
+                // on the next eviction
+                pages.put(pid, page);
+                if (!reserved)
+                    usedFrames.incrementAndGet();
+                admitted = true;
+            } else if (resident != page) {
+                replacePage(pid, page);
+            }
+        }
+        if (reserved && !admitted)
+            usedFrames.decrementAndGet();
+        if (admitted)
+            policy.pageMiss(pid);
+    }
+
+    /**
+     * Write the last committed version of a page to disk on behalf of the
+     * PageCleaner. The page is marked clean unless a newer transaction has
+     * dirtied it since tid committed.
+     *
+     * @param pid the page to write
+     * @param tid the committed transaction the page was queued for
+     */
+    void writeCommittedPage(PageId pid, TransactionId tid) throws IOException {
+        synchronized (stripeFor(pid)) {
+            Page p = pages.get(pid);
+            if (p == null || p.isDirty() == null)
+                return; // discarded, or written by flushPage
+            if (poolPageSize != pageSize)
+                return; // the page size was changed for testing; p cannot be read back
+            DbFile file;
+            try {
+                file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            } catch (NoSuchElementException e) {
+                return; // the table is gone
+            }
+            file.writePage(p.getBeforeImage());
+            if (tid.equals(p.isDirty()))
+                p.markDirty(false, null);
+        }
     }
 
     /**
@@ -125,6 +759,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The entry of the tuple is added to each secondary index of the table.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -133,6 +769,11 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        for (Page p : file.insertTuple(tid, t))
+            cachePage(tid, p);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            index.insert(tid, t);
     }
 
     /**
@@ -145,6 +786,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The entry of the tuple is removed from each secondary index of its table.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -152,6 +795,29 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        if (t.getRecordId() == null)
+            throw new DbException("tuple is not stored in a table");
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        // the entries are found by the RecordId, which B+ tree leaf pages
+        // clear when they delete a tuple
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId))
+            index.delete(tid, t);
+        for (Page p : file.deleteTuple(tid, t))
+            cachePage(tid, p);
+    }
+
+    /**
+     * Make the pages an access method changed before an operation failed
+     * part way resident and dirty, so that the abort of the transaction
+     * puts them back.
+     *
+     * @param tid the transaction whose operation failed
+     * @param dirtied the pages it changed
+     */
+    void pagesAbandoned(TransactionId tid, Collection<Page> dirtied) throws DbException {
+        for (Page p : dirtied)
+            cachePage(tid, p);
     }
 
     /**
@@ -159,10 +825,22 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
+        for (PageId pid : pages.keySet())
+            flushPage(pid);
+    }
 
+    /**
+     * Write back the pages of committed transactions that the
+     * {@link PageCleaner} has not written yet, from the calling thread.
+     * Called before this pool is discarded (see
+     * {@link Database#resetBufferPool}), so that the pool replacing it reads
+     * every committed change from disk.
+     */
+    public void flushCommittedPages() throws IOException {
+        cleaner.cleanAll();
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -173,34 +851,124 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
+        boolean removed;
+        synchronized (stripeFor(pid)) {
+            removed = pages.containsKey(pid);
+            dropPage(pid);
+        }
+        if (removed)
+            policy.pageRemoved(pid);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
+    private  void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
+        LogFile log = Database.getLogFile();
+        synchronized (log) {
+            synchronized (stripeFor(pid)) {
+                Page p = pages.get(pid);
+                if (p == null)
+                    return;
+                if (p instanceof HeapPage && !((HeapPage) p).slotOwners().isEmpty()) {
+                    flushSharedPage(log, (HeapPage) p);
+                    return;
+                }
+                TransactionId dirtier = p.isDirty();
+                if (dirtier != null) {
+                    long lsn = log.logWrite(dirtier, p.getBeforeImage(), p);
+                    log.force();
+                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                    p.markDirty(false, null);
+                    log.pageWritten(pid, lsn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush a page whose slots are owned by running transactions, logging
+     * the slots of each of them under its own transaction. The caller holds
+     * the LogFile and the stripe of the page.
+     */
+    private void flushSharedPage(LogFile log, HeapPage p) throws IOException {
+        long lsn = -1;
+        for (TransactionId owner : p.slotOwners()) {
+            HeapPage[] versions = p.slotVersions(owner);
+            lsn = Math.max(lsn, log.logWrite(owner, versions[0], versions[1], true));
+        }
+        log.force();
+        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+        p.markDirty(false, null);
+        log.pageWritten(p.getId(), lsn);
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        for (Page p : pages.values()) {
+            if (tid.equals(p.isDirty()))
+                flushPage(p.getId());
+        }
     }
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy among the clean pages
+     * only: dirty pages are never written out before their transaction
+     * commits (NO STEAL), so there is nothing to flush here. If every page
+     * is dirty, the pages of committed transactions are written back right
+     * away instead of waiting for the PageCleaner.
+     *
+     * @throws DbException if all pages in the buffer pool are dirty
      */
-    private synchronized  void evictPage() throws DbException {
+    private  void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
+        if (policy.chooseVictim(evictClean) != null)
+            return;
+        if (cleaner.numPending() > 0) {
+            try {
+                cleaner.cleanAll();
+            } catch (IOException e) {
+                throw new DbException("could not write back committed pages: " + e.getMessage());
+            }
+            if (policy.chooseVictim(evictClean) != null)
+                return;
+        }
+        throw new DbException("all pages in the buffer pool are dirty");
     }
 
+    /**
+     * Drops a clean page from the page table as soon as the policy offers
+     * it, so that the page cannot be dirtied between the check and the
+     * removal. Pages the policy still tracks but that already left the
+     * table (e.g. discarded concurrently) are accepted so the policy
+     * forgets them.
+     */
+    private final EvictionPolicy.Evictable evictClean = new EvictionPolicy.Evictable() {
+        public boolean canEvict(PageId pid) {
+            synchronized (stripeFor(pid)) {
+                Page p = pages.get(pid);
+                if (p == null)
+                    return true;
+                if (p.isDirty() != null)
+                    return false;
+                // only the pool knows which slots running transactions own
+                if (p instanceof HeapPage && !((HeapPage) p).slotOwners().isEmpty())
+                    return false;
+                dropPage(pid);
+                return true;
+            }
+        }
+    };
+
 }
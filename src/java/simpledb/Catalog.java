@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -18,12 +19,33 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Catalog {
 
+    /** A table registered in the catalog. */
+    private static class Table {
+        final DbFile file;
+        final String name;
+        final String pkeyField;
+
+        Table(DbFile file, String name, String pkeyField) {
+            this.file = file;
+            this.name = name;
+            this.pkeyField = pkeyField;
+        }
+    }
+
+    private final ConcurrentHashMap<Integer, Table> tables;
+    private final ConcurrentHashMap<String, Integer> nameToId;
+    /** Secondary indexes of each table, by the id of the table. */
+    private final ConcurrentHashMap<Integer, List<SecondaryIndex>> indexes;
+
     /**
      * Constructor.
      * Creates a new, empty catalog.
      */
     public Catalog() {
         // some code goes here
+        tables = new ConcurrentHashMap<Integer, Table>();
+        nameToId = new ConcurrentHashMap<String, Integer>();
+        indexes = new ConcurrentHashMap<Integer, List<SecondaryIndex>>();
     }
 
     /**
@@ -35,8 +57,26 @@ public class Catalog {
      * conflict exists, use the last table to be added as the table for a given name.
      * @param pkeyField the name of the primary key field
      */
-    public void addTable(DbFile file, String name, String pkeyField) {
+    public synchronized void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
+        Table old = tables.put(file.getId(), new Table(file, name, pkeyField));
+        if (old != null && !old.name.equals(name))
+            nameToId.remove(old.name, file.getId());
+        nameToId.put(name, file.getId());
+        if (old != null && old.file != file)
+            closeFile(old.file);
+    }
+
+    /** Release the file descriptor of a table that left the catalog. */
+    private static void closeFile(DbFile file) {
+        try {
+            if (file instanceof HeapFile)
+                ((HeapFile) file).close();
+            else if (file instanceof BTreeFile)
+                ((BTreeFile) file).close();
+        } catch (IOException e) {
+            // nothing more can be done with the descriptor
+        }
     }
 
     public void addTable(DbFile file, String name) {
@@ -54,13 +94,44 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add a secondary index of a table already in the catalog. The file of
+     * the index is added as a table too, so that its pages can be read
+     * through the BufferPool.
+     * @param index the index to add
+     * @param name the name of the index
+     */
+    public synchronized void addIndex(SecondaryIndex index, String name) {
+        addTable(index.getFile(), name);
+        List<SecondaryIndex> l = indexes.get(index.getTableId());
+        if (l == null) {
+            l = new CopyOnWriteArrayList<SecondaryIndex>();
+            indexes.put(index.getTableId(), l);
+        }
+        l.add(index);
+    }
+
+    /**
+     * @return the secondary indexes of the specified table, which is empty
+     *     if it has none
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> l = indexes.get(tableid);
+        if (l == null)
+            return Collections.emptyList();
+        return l;
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
      */
     public int getTableId(String name) throws NoSuchElementException {
         // some code goes here
-        return 0;
+        Integer id = name == null ? null : nameToId.get(name);
+        if (id == null)
+            throw new NoSuchElementException("no table named " + name);
+        return id;
     }
 
     /**
@@ -71,7 +142,14 @@ public class Catalog {
      */
     public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
         // some code goes here
-        return null;
+        return table(tableid).file.getTupleDesc();
+    }
+
+    private Table table(int tableid) throws NoSuchElementException {
+        Table t = tables.get(tableid);
+        if (t == null)
+            throw new NoSuchElementException("no table with id " + tableid);
+        return t;
     }
 
     /**
@@ -82,27 +160,32 @@ public class Catalog {
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
-        return null;
+        return table(tableid).file;
     }
 
     public String getPrimaryKey(int tableid) {
         // some code goes here
-        return null;
+        return table(tableid).pkeyField;
     }
 
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
-        return null;
+        return tables.keySet().iterator();
     }
 
     public String getTableName(int id) {
         // some code goes here
-        return null;
+        return table(id).name;
     }
     
-    /** Delete all tables from the catalog */
-    public void clear() {
+    /** Delete all tables from the catalog, releasing their files */
+    public synchronized void clear() {
         // some code goes here
+        for (Table t : tables.values())
+            closeFile(t.file);
+        tables.clear();
+        nameToId.clear();
+        indexes.clear();
     }
     
     /**
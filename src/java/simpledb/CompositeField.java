@@ -0,0 +1,124 @@
+package simpledb;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Instance of Field that stores the values of several fields, as the key of a
+ * BTreeFile keyed on more than one field. Composite fields compare
+ * lexicographically, field by field.
+ * <p>
+ * A composite field with fewer fields than another is compared on the fields
+ * they both have, so it equals every key it is a prefix of. An index search
+ * on a prefix of the key fields is therefore a range scan: EQUALS finds all
+ * the keys starting with the prefix, and GREATER_THAN the keys after all of
+ * them. A field that is not composite compares like a prefix of one field.
+ */
+public class CompositeField implements Field {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Field[] fields;
+
+    /**
+     * Constructor.
+     *
+     * @param fields The values of the fields, in the order they are compared.
+     */
+    public CompositeField(Field[] fields) {
+        if (fields.length == 0)
+            throw new IllegalArgumentException("a composite field needs at least one field");
+        this.fields = fields.clone();
+    }
+
+    /**
+     * @return the number of fields in this composite field
+     */
+    public int numFields() {
+        return fields.length;
+    }
+
+    /**
+     * @param i the index of the field to return
+     * @return the ith field of this composite field
+     */
+    public Field getField(int i) {
+        return fields[i];
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(fields[i]);
+        }
+        return sb.append(")").toString();
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(fields);
+    }
+
+    public boolean equals(Object field) {
+        return field instanceof CompositeField && Arrays.equals(fields, ((CompositeField) field).fields);
+    }
+
+    /**
+     * Write the fields one after the other, each as its own type would.
+     */
+    public void serialize(DataOutputStream dos) throws IOException {
+        for (Field f : fields)
+            f.serialize(dos);
+    }
+
+    /**
+     * Compare the specified field to the value of this Field, on the fields
+     * both of them have. Return semantics are as specified by Field.compare
+     *
+     * @see Field#compare
+     */
+    public boolean compare(Predicate.Op op, Field val) {
+        int cmpVal = compareTo(val);
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return cmpVal == 0;
+        case NOT_EQUALS:
+            return cmpVal != 0;
+        case GREATER_THAN:
+            return cmpVal > 0;
+        case GREATER_THAN_OR_EQ:
+            return cmpVal >= 0;
+        case LESS_THAN:
+            return cmpVal < 0;
+        case LESS_THAN_OR_EQ:
+            return cmpVal <= 0;
+        }
+        return false;
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as this field is
+     * less than, equal to or greater than val on the fields both have
+     */
+    private int compareTo(Field val) {
+        Field[] other = val instanceof CompositeField ? ((CompositeField) val).fields : new Field[] { val };
+        int n = Math.min(fields.length, other.length);
+        for (int i = 0; i < n; i++) {
+            if (fields[i].compare(Predicate.Op.LESS_THAN, other[i]))
+                return -1;
+            if (fields[i].compare(Predicate.Op.GREATER_THAN, other[i]))
+                return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the Type of the first field, which composite fields are
+     * ordered by first
+     */
+    public Type getType() {
+        return fields[0].getType();
+    }
+}
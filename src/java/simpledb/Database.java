@@ -52,10 +52,12 @@ public class Database {
 
     /**
      * Method used for testing -- create a new instance of the buffer pool and
-     * return it
+     * return it. The pages of committed transactions that the old pool has
+     * not written back yet are written first, so the new pool reads them.
      */
     public static BufferPool resetBufferPool(int pages) {
         java.lang.reflect.Field bufferPoolF=null;
+        flushCommittedPages();
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
@@ -73,9 +75,24 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Write back the committed pages of the buffer pool about to be discarded. */
+    private static void flushCommittedPages() {
+        try {
+            _instance.get()._bufferpool.flushCommittedPages();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            // a page that cannot be written is dropped with the pool
+            e.printStackTrace();
+        }
+    }
+
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        flushCommittedPages();
+        Database old = _instance.getAndSet(new Database());
+        // release the files of the old catalog's tables
+        old._catalog.clear();
     }
 
 }
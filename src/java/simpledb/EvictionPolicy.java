@@ -0,0 +1,71 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which resident page the BufferPool gives up when it
+ * runs out of frames. The BufferPool reports every page access to the policy
+ * and asks it for a victim when a new page has to be read in.
+ * <p>
+ * Policies only choose among pages the BufferPool is willing to give up (see
+ * {@link Evictable}); in particular the BufferPool never lets a policy evict a
+ * dirty page, so NO STEAL is preserved regardless of the policy in use.
+ * <p>
+ * Each policy also keeps hit / miss counters so that different policies can
+ * be compared on the same workload.
+ *
+ * @see BufferPool
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Filter used by the BufferPool to tell the policy which resident pages
+     * may currently be evicted. The BufferPool may release a page as soon as
+     * it accepts it, so the policy must evict the first page accepted.
+     */
+    public interface Evictable {
+        /** @return true if the page with the given id may be evicted now */
+        public boolean canEvict(PageId pid);
+    }
+
+    /**
+     * Record that a resident page was requested.
+     *
+     * @param pid the id of the page found in the buffer pool
+     */
+    public void pageHit(PageId pid);
+
+    /**
+     * Record that a page was read from disk and is now resident.
+     *
+     * @param pid the id of the page added to the buffer pool
+     */
+    public void pageMiss(PageId pid);
+
+    /**
+     * Forget a resident page that left the buffer pool without being chosen
+     * as a victim (e.g. by {@link BufferPool#discardPage}).
+     *
+     * @param pid the id of the page removed from the buffer pool
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Choose a resident page to evict and stop tracking it as resident.
+     *
+     * @param evictable tells which resident pages may be chosen
+     * @return the id of the page to evict, or null if no resident page may be
+     *         evicted
+     */
+    public PageId chooseVictim(Evictable evictable);
+
+    /** @return the number of requests served from the buffer pool */
+    public long getHits();
+
+    /** @return the number of requests that had to read the page from disk */
+    public long getMisses();
+
+    /** @return hits / (hits + misses), or 0 if no page was requested yet */
+    public double getHitRatio();
+
+    /** Reset the hit and miss counters to zero. */
+    public void resetStats();
+}
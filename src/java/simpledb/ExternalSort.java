@@ -0,0 +1,298 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ExternalSort sorts more tuples than fit in memory. Tuples are collected
+ * until they fill the memory budget; from then on sorted runs are written
+ * to temporary files by replacement selection. The tuples in memory are
+ * kept in a heap, and each tuple added pushes the least of them out to the
+ * current run. A tuple less than the last one written cannot join that run
+ * and waits in the heap for the next, so runs average about twice the
+ * budget on random input, and input that comes nearly sorted is written as
+ * a single run. The runs are merged k ways, with one page of buffer for
+ * each run being read, in as many passes as the budget requires; the last
+ * merge is done while the sorted tuples are read back.
+ * The sort is stable: equal tuples come back in the order they were added.
+ * Input that fits in the budget is sorted in memory and never written out.
+ * <p>
+ * Add every tuple with {@link #add}, read them back in order from
+ * {@link #iterator}, then {@link #close} the sort to delete its runs.
+ */
+public class ExternalSort {
+
+    /** Most runs merged at once, to stay clear of limits on open files. */
+    public static final int MAX_FAN_IN = 256;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int memoryPages;
+    /** Tuples that fit in the memory budget. */
+    private final int maxTuples;
+    /** The tuples added, while they all fit in memory. */
+    private final ArrayList<Tuple> buffer;
+    /** The tuples in memory once runs are being written, least first. */
+    private PriorityQueue<Entry> heap;
+    private final ArrayList<SpillFile> runs;
+    /** The run being written, and the last tuple written to it. */
+    private SpillFile run;
+    private int runNo;
+    private Tuple last;
+    private long numTuples;
+
+    /** A tuple in the heap, with the run it goes to and its position in the input. */
+    private static class Entry {
+        final int run;
+        final long seq;
+        final Tuple tuple;
+
+        Entry(int run, long seq, Tuple tuple) {
+            this.run = run;
+            this.seq = seq;
+            this.tuple = tuple;
+        }
+    }
+
+    /**
+     * Create an empty sort.
+     *
+     * @param td the schema of the tuples to sort
+     * @param comparator the order to sort them in
+     * @param memoryPages the number of pages of memory the sort may use;
+     *        at least 3, so that two runs can be merged into a third
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int memoryPages) {
+        if (memoryPages < 3)
+            throw new IllegalArgumentException("an external sort needs at least 3 pages of memory");
+        this.td = td;
+        this.comparator = comparator;
+        this.memoryPages = memoryPages;
+        this.maxTuples = SpillFile.tuplesFitting(memoryPages, td);
+        this.buffer = new ArrayList<Tuple>();
+        this.heap = null;
+        this.runs = new ArrayList<SpillFile>();
+        this.run = null;
+        this.runNo = 0;
+        this.last = null;
+        this.numTuples = 0;
+    }
+
+    /**
+     * Add a tuple to the sort. Once the memory budget is full, each tuple
+     * added writes the least tuple in memory out to a sorted run.
+     */
+    public void add(Tuple t) throws IOException {
+        if (heap == null) {
+            buffer.add(t);
+            numTuples++;
+            if (buffer.size() >= maxTuples)
+                startRuns();
+            return;
+        }
+        writeLeast();
+        // a tuple less than the one just written waits for the next run
+        int r = comparator.compare(t, last) < 0 ? runNo + 1 : runNo;
+        heap.add(new Entry(r, numTuples++, t));
+    }
+
+    /** @return the number of tuples added */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    /** @return the number of sorted runs written to disk so far */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /** Move the tuples in memory into the heap, to start writing runs. */
+    private void startRuns() {
+        heap = new PriorityQueue<Entry>(maxTuples, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                if (a.run != b.run)
+                    return a.run < b.run ? -1 : 1;
+                int cmp = comparator.compare(a.tuple, b.tuple);
+                if (cmp != 0)
+                    return cmp;
+                return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+            }
+        });
+        long seq = 0;
+        for (Tuple t : buffer)
+            heap.add(new Entry(0, seq++, t));
+        buffer.clear();
+    }
+
+    /** Write the least tuple in the heap to its run, starting the run if it is new. */
+    private void writeLeast() throws IOException {
+        Entry e = heap.poll();
+        if (run == null || e.run != runNo) {
+            run = new SpillFile(td);
+            runs.add(run);
+            runNo = e.run;
+        }
+        run.add(e.tuple);
+        last = e.tuple;
+    }
+
+    /**
+     * End the input and return an iterator over all the tuples added, in
+     * order. Runs are first merged into longer ones until there are few
+     * enough to merge with the memory budget.
+     */
+    public DbFileIterator iterator() throws IOException {
+        if (heap == null) {
+            Collections.sort(buffer, comparator);
+            return new BufferIterator();
+        }
+        while (!heap.isEmpty())
+            writeLeast();
+        heap = null;
+        run = null;
+        last = null;
+        int fanIn = Math.min(memoryPages - 1, MAX_FAN_IN);
+        while (runs.size() > fanIn) {
+            // one pass, merging each group of fanIn runs in turn, which
+            // keeps equal tuples in the order they were added
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int first = 0; first < runs.size(); first += fanIn) {
+                List<SpillFile> in = runs.subList(first, Math.min(first + fanIn, runs.size()));
+                SpillFile out = new SpillFile(td);
+                Merge merge = new Merge(in);
+                try {
+                    Tuple t;
+                    while ((t = merge.next()) != null)
+                        out.add(t);
+                } finally {
+                    merge.close();
+                }
+                for (SpillFile f : in)
+                    f.delete();
+                merged.add(out);
+            }
+            runs.clear();
+            runs.addAll(merged);
+        }
+        return new MergeIterator();
+    }
+
+    /** Delete the runs of this sort and drop the tuples it holds. */
+    public void close() {
+        for (SpillFile f : runs)
+            f.delete();
+        runs.clear();
+        buffer.clear();
+        heap = null;
+        run = null;
+        last = null;
+    }
+
+    /**
+     * A k-way merge of runs, through a heap holding the next tuple of each.
+     * Equal tuples come out in the order of their runs, so the sort is
+     * stable.
+     */
+    private class Merge {
+        private final SpillFile.Reader[] readers;
+        private final Tuple[] heads;
+        private final PriorityQueue<Integer> heap;
+
+        Merge(List<SpillFile> in) throws IOException {
+            this.readers = new SpillFile.Reader[in.size()];
+            this.heads = new Tuple[in.size()];
+            this.heap = new PriorityQueue<Integer>(Math.max(1, in.size()), new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int cmp = comparator.compare(heads[a], heads[b]);
+                    return cmp != 0 ? cmp : a.compareTo(b);
+                }
+            });
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = in.get(i).reader();
+                heads[i] = readers[i].read();
+                if (heads[i] != null)
+                    heap.add(i);
+            }
+        }
+
+        /** @return the next tuple in order, or null when all runs are read */
+        Tuple next() throws IOException {
+            Integer i = heap.poll();
+            if (i == null)
+                return null;
+            Tuple t = heads[i];
+            heads[i] = readers[i].read();
+            if (heads[i] != null)
+                heap.add(i);
+            return t;
+        }
+
+        void close() {
+            for (SpillFile.Reader r : readers) {
+                if (r != null)
+                    r.close();
+            }
+        }
+    }
+
+    /** Iterates over tuples that were sorted in memory. */
+    private class BufferIterator extends AbstractDbFileIterator {
+        private Iterator<Tuple> it = null;
+
+        public void open() {
+            it = buffer.iterator();
+        }
+
+        protected Tuple readNext() {
+            if (it != null && it.hasNext())
+                return it.next();
+            return null;
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            it = null;
+        }
+    }
+
+    /** Iterates over the tuples of the remaining runs as it merges them. */
+    private class MergeIterator extends AbstractDbFileIterator {
+        private Merge merge = null;
+
+        public void open() throws DbException {
+            try {
+                merge = new Merge(runs);
+            } catch (IOException e) {
+                throw new DbException("cannot read sort runs: " + e.getMessage());
+            }
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (merge == null)
+                return null;
+            try {
+                return merge.next();
+            } catch (IOException e) {
+                throw new DbException("cannot read sort runs: " + e.getMessage());
+            }
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (merge != null) {
+                merge.close();
+                merge = null;
+            }
+        }
+    }
+}
@@ -1,9 +1,21 @@
 package simpledb;
 
+import java.io.*;
 import java.util.*;
 
 /**
- * The Join operator implements the relational join operation.
+ * The HashEquiJoin operator implements the relational join on equality of
+ * one field of each child, with a hash table of the tuples of child1 that is
+ * probed with each tuple of child2.
+ * <p>
+ * When child1 does not fit in the memory budget, the join is a hybrid hash
+ * join: both children are split into partitions on disk by the hash of the
+ * join field, and the matching partitions are joined in turn, so each child
+ * is read once and each partition written and read back a bounded number of
+ * times. Partition 0 of child1 stays in memory while it fits, and is joined
+ * as child2 is read. Partitions still too large to fit are split again, and
+ * if a few join field values are too common for that to help, joined a chunk
+ * of the build side at a time.
  */
 public class HashEquiJoin extends Operator {
 
@@ -26,10 +38,39 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor. Accepts two children to join, the predicate to join them
+     * on, and the memory the join may use
+     * 
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join, which the
+     *            hash table is built from
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memoryPages
+     *            The number of pages of memory for the hash table and the
+     *            buffers of partitions written to disk; at least 3
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages) {
+        if (memoryPages < 3)
+            throw new IllegalArgumentException("a hash join needs at least 3 pages of memory");
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.memoryPages = memoryPages;
+        this.numPartitions = Math.max(2, Math.min(MAX_PARTITIONS, memoryPages / 2));
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.maxTuples = SpillFile.tuplesFitting(memoryPages, child1.getTupleDesc());
+    }
+
+    /** @return the number of pages of memory the join may use */
+    public int getMemoryPages() {
+        return memoryPages;
     }
 
     public JoinPredicate getJoinPredicate() {
@@ -50,32 +91,264 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    HashMap<Object, ArrayList<Tuple>> map = new HashMap<Object, ArrayList<Tuple>>();
-    public final static int MAP_SIZE = 20000;
+    /** Default number of pages of memory for the hash table and partition buffers. */
+    public static final int DEFAULT_MEMORY_PAGES = 1024;
+    /** Most partitions the inputs are split into at once, to stay clear of limits on open files. */
+    public static final int MAX_PARTITIONS = 256;
+    /** Most times a partition is split again before it is joined in chunks instead. */
+    public static final int MAX_LEVELS = 3;
+
+    /** A partition of both inputs written out to disk, to be joined later. */
+    private static class Partition {
+        final SpillFile build;
+        final SpillFile probe;
+        final int level;
+
+        Partition(SpillFile build, SpillFile probe, int level) {
+            this.build = build;
+            this.probe = probe;
+            this.level = level;
+        }
+    }
+
+    private final int memoryPages;
+    /** Tuples of child1 that fit in the memory budget. */
+    private int maxTuples;
+    private final int numPartitions;
+
+    /** The hash table of the tuples of child1 being joined. */
+    transient private HashMap<Field, ArrayList<Tuple>> map = new HashMap<Field, ArrayList<Tuple>>();
+    /** Whether child2 is being read, rather than a partition written out. */
+    transient private boolean firstPass;
+    /**
+     * The partitions of the first pass, or null if child1 fits in memory;
+     * partition 0 is kept in the hash table unless it grew too large.
+     */
+    transient private Partition[] firstParts = null;
+    transient private boolean residentZero;
+    transient private LinkedList<Partition> pending = new LinkedList<Partition>();
+    transient private Partition current = null;
+    transient private SpillFile.Reader buildReader = null;
+    transient private SpillFile.Reader probeReader = null;
+    transient private Iterator<Tuple> listIt = null;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
+    /** @return the partition a join field value goes to at a level of partitioning */
+    private int partition(Field f, int level) {
+        int h = f.hashCode() ^ (level * 0x85ebca6b);
+        h *= 0x9e3779b1;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % numPartitions;
+    }
+
+    private void addToMap(Tuple t) {
+        Field key = t.getField(pred.getField1());
+        ArrayList<Tuple> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<Tuple>();
+            map.put(key, list);
+        }
+        list.add(t);
+    }
+
+    private Partition[] newPartitions(int level) throws IOException {
+        Partition[] parts = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            parts[i] = new Partition(new SpillFile(child1.getTupleDesc()),
+                    new SpillFile(child2.getTupleDesc()), level);
+        }
+        return parts;
+    }
+
+    /**
+     * Read child1 into the hash table. If it does not fit in the memory
+     * budget, split it into partitions on disk by the hash of the join
+     * field, keeping partition 0 in the hash table while it fits in the
+     * memory left over from the buffers of the others.
+     */
+    private void build() throws DbException, TransactionAbortedException, IOException {
         map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            ArrayList<Tuple> list = map.get(t1.getField(pred.getField1()));
-            if (list == null) {
-                list = new ArrayList<Tuple>();
-                map.put(t1.getField(pred.getField1()), list);
+        int count = 0;
+        while (count < maxTuples && child1.hasNext()) {
+            addToMap(child1.next());
+            count++;
+        }
+        firstPass = true;
+        if (!child1.hasNext())
+            return;
+
+        firstParts = newPartitions(0);
+        residentZero = true;
+        long residentLimit = (long) (memoryPages - numPartitions) * BufferPool.getPageSize()
+                / child1.getTupleDesc().getSize();
+        int resident = 0;
+        ArrayList<Tuple> loaded = new ArrayList<Tuple>();
+        for (ArrayList<Tuple> list : map.values())
+            loaded.addAll(list);
+        map.clear();
+        Iterator<Tuple> it = loaded.iterator();
+        while (true) {
+            Tuple t;
+            if (it.hasNext())
+                t = it.next();
+            else if (child1.hasNext())
+                t = child1.next();
+            else
+                break;
+            int p = partition(t.getField(pred.getField1()), 0);
+            if (p == 0 && residentZero) {
+                addToMap(t);
+                if (++resident > residentLimit) {
+                    for (ArrayList<Tuple> list : map.values()) {
+                        for (Tuple r : list)
+                            firstParts[0].build.add(r);
+                    }
+                    map.clear();
+                    residentZero = false;
+                }
+            } else {
+                firstParts[p].build.add(t);
+            }
+        }
+    }
+
+    /**
+     * Set up the next pass over tuples to probe the hash table with: the
+     * next chunk of the build side of the current partition, or the next
+     * partition, splitting partitions that are too large to join in memory.
+     *
+     * @return false if there is nothing left to join
+     */
+    private boolean nextPass() throws IOException {
+        if (firstPass) {
+            firstPass = false;
+            map.clear();
+            if (firstParts != null) {
+                for (int p = 0; p < firstParts.length; p++) {
+                    if (p == 0 && residentZero)
+                        firstParts[p].probe.delete();
+                    else
+                        queue(firstParts[p]);
+                }
+                firstParts = null;
+            }
+        }
+        if (current != null && buildReader != null && loadChunk()) {
+            probeReader.close();
+            probeReader = current.probe.reader();
+            return true;
+        }
+        closeCurrent();
+        while (!pending.isEmpty()) {
+            Partition part = pending.removeFirst();
+            if (part.build.size() > maxTuples && part.level < MAX_LEVELS) {
+                split(part);
+                continue;
             }
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            current = part;
+            buildReader = part.build.reader();
+            loadChunk();
+            probeReader = part.probe.reader();
+            return true;
+        }
+        return false;
+    }
+
+    /** Queue a partition to be joined, or drop it if one side is empty. */
+    private void queue(Partition part) {
+        if (part.build.size() == 0 || part.probe.size() == 0) {
+            part.build.delete();
+            part.probe.delete();
+        } else {
+            pending.addLast(part);
+        }
+    }
+
+    /** Split both sides of a partition by a hash function of the next level. */
+    private void split(Partition part) throws IOException {
+        Partition[] parts = newPartitions(part.level + 1);
+        SpillFile.Reader in = part.build.reader();
+        Tuple t;
+        while ((t = in.read()) != null)
+            parts[partition(t.getField(pred.getField1()), part.level + 1)].build.add(t);
+        in.close();
+        in = part.probe.reader();
+        while ((t = in.read()) != null)
+            parts[partition(t.getField(pred.getField2()), part.level + 1)].probe.add(t);
+        in.close();
+        part.build.delete();
+        part.probe.delete();
+        for (Partition p : parts)
+            queue(p);
+    }
+
+    /**
+     * Load the next tuples of the build side of the current partition that
+     * fit in memory into the hash table.
+     *
+     * @return false if there were none left
+     */
+    private boolean loadChunk() throws IOException {
+        map.clear();
+        int count = 0;
+        Tuple t;
+        while (count < maxTuples && (t = buildReader.read()) != null) {
+            addToMap(t);
+            count++;
+        }
+        if (count < maxTuples) {
+            buildReader.close();
+            buildReader = null;
+        }
+        return count > 0;
+    }
+
+    private void closeCurrent() {
+        if (buildReader != null) {
+            buildReader.close();
+            buildReader = null;
+        }
+        if (probeReader != null) {
+            probeReader.close();
+            probeReader = null;
+        }
+        if (current != null) {
+            current.build.delete();
+            current.probe.delete();
+            current = null;
         }
-        return cnt > 0;
+    }
 
+    /** Delete every partition still on disk and empty the hash table. */
+    private void reset() {
+        closeCurrent();
+        if (firstParts != null) {
+            for (Partition p : firstParts) {
+                p.build.delete();
+                p.probe.delete();
+            }
+            firstParts = null;
+        }
+        for (Partition p : pending) {
+            p.build.delete();
+            p.probe.delete();
+        }
+        pending.clear();
+        map.clear();
+        this.t1 = null;
+        this.t2 = null;
+        this.listIt = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        try {
+            build();
+        } catch (IOException e) {
+            reset();
+            throw new DbException("cannot partition hash join input: " + e.getMessage());
+        }
         super.open();
     }
 
@@ -83,19 +356,21 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
-        this.t1=null;
-        this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        reset();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        reset();
         child1.rewind();
         child2.rewind();
+        try {
+            build();
+        } catch (IOException e) {
+            reset();
+            throw new DbException("cannot partition hash join input: " + e.getMessage());
+        }
     }
 
-    transient Iterator<Tuple> listIt = null;
-
     /**
      * Returns the next tuple generated by the join, or null if there are no
      * more tuples. Logically, this is the next tuple in r1 cross r2 that
@@ -130,33 +405,44 @@ public class HashEquiJoin extends Operator {
 
     }
 
-    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            ArrayList<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
-
-            return processList();
+    /** @return the next tuple to probe the hash table with in this pass, or null at its end */
+    private Tuple nextProbe() throws TransactionAbortedException, DbException, IOException {
+        if (firstPass)
+            return child2.hasNext() ? child2.next() : null;
+        return probeReader.read();
+    }
 
-        }
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        try {
+            while (true) {
+                if (listIt != null && listIt.hasNext())
+                    return processList();
+                listIt = null;
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
+                Tuple t = nextProbe();
+                if (t == null) {
+                    if (!nextPass())
+                        return null;
+                    continue;
+                }
+                Field key = t.getField(pred.getField2());
+                if (firstPass && firstParts != null) {
+                    // only partition 0 can be joined on the first pass
+                    int p = partition(key, 0);
+                    if (p != 0 || !residentZero) {
+                        firstParts[p].probe.add(t);
+                        continue;
+                    }
+                }
+                ArrayList<Tuple> l = map.get(key);
+                if (l != null) {
+                    t2 = t;
+                    listIt = l.iterator();
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot read hash join partitions: " + e.getMessage());
         }
-
-        return null;
     }
 
     @Override
@@ -168,6 +454,7 @@ public class HashEquiJoin extends Operator {
     public void setChildren(OpIterator[] children) {
         this.child1 = children[0];
         this.child2 = children[1];
+        this.maxTuples = SpillFile.tuplesFitting(memoryPages, child1.getTupleDesc());
     }
     
 }
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -15,6 +16,21 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+    /** Largest number of bytes mapped as a single region in mapped mode. */
+    private static final int MAX_REGION_BYTES = 1 << 30;
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final PageChannel channel;
+    private final boolean memoryMapped;
+    private volatile boolean multiVersion = false;
+
+    /** Read-only mappings of the file in mapped mode; created on first use, protected by this. */
+    private ByteBuffer[] regions = null;
+    private int pagesPerRegion;
+    private int mappedPages;
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -23,7 +39,59 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, optionally in
+     * memory-mapped mode.
+     * <p>
+     * In memory-mapped mode the table is read only: the whole file is mapped
+     * into memory on first use, {@link #readPage} returns pages that read
+     * their tuples in place from the mapping, and {@link #iterator} reads
+     * pages from the mapping without going through the BufferPool. This suits
+     * tables that are written once with {@link HeapFileEncoder} and then only
+     * scanned. The file must not be changed while it is mapped.
+     *
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param memoryMapped
+     *            true to open the table read only and memory-mapped
+     */
+    public HeapFile(File f, TupleDesc td, boolean memoryMapped) {
         // some code goes here
+        this.f = f;
+        this.td = td;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.channel = new PageChannel(f);
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * @return true if this table is read only and memory-mapped
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Turn multi-version mode on or off. In multi-version mode the
+     * BufferPool keeps the committed versions of the pages of this table
+     * that running snapshots need, and read-only transactions read the
+     * table from their snapshot without taking locks (see
+     * {@link VersionStore}). Set it before the table is used.
+     */
+    public void setMultiVersion(boolean multiVersion) {
+        this.multiVersion = multiVersion;
+    }
+
+    /**
+     * @return true if read-only transactions read this table from a
+     *         snapshot
+     */
+    public boolean isMultiVersion() {
+        return multiVersion;
     }
 
     /**
@@ -33,7 +101,21 @@ public class HeapFile implements DbFile {
      */
     public File getFile() {
         // some code goes here
-        return null;
+        return f;
+    }
+
+    /**
+     * Release the file descriptor of this table. The Catalog calls this when
+     * the table is replaced or removed; the table stays usable, and the next
+     * read or write opens the file again.
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /** @return true if the file of this table is open (for testing) */
+    boolean isOpen() {
+        return channel.isOpen();
     }
 
     /**
@@ -47,7 +129,7 @@ public class HeapFile implements DbFile {
      */
     public int getId() {
         // some code goes here
-        throw new UnsupportedOperationException("implement this");
+        return tableid;
     }
 
     /**
@@ -57,19 +139,101 @@ public class HeapFile implements DbFile {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        throw new UnsupportedOperationException("implement this");
+        return td;
     }
 
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
-        return null;
+        if (memoryMapped) {
+            checkPageId(pid);
+            try {
+                return new HeapPage((HeapPageId) pid, mappedPage(pid.getPageNumber()));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return readPage(pid, ByteBuffer.allocate(BufferPool.getPageSize()));
+    }
+
+    private void checkPageId(PageId pid) {
+        if (pid.getTableId() != tableid || pid.getPageNumber() < 0
+                || pid.getPageNumber() >= numPages()) {
+            throw new IllegalArgumentException("page " + pid.getPageNumber()
+                    + " does not exist in this file");
+        }
+    }
+
+    /**
+     * Map the file into memory if it is not mapped yet. Only the whole
+     * pages present when the file is first mapped are visible.
+     */
+    private synchronized void map() throws IOException {
+        if (regions != null)
+            return;
+        int pageSize = BufferPool.getPageSize();
+        int numPages = (int) (channel.size() / pageSize);
+        int perRegion = Math.max(1, MAX_REGION_BYTES / pageSize);
+        ByteBuffer[] mapped = new ByteBuffer[(numPages + perRegion - 1) / perRegion];
+        for (int i = 0; i < mapped.length; i++) {
+            int pages = Math.min(perRegion, numPages - i * perRegion);
+            mapped[i] = channel.map((long) i * perRegion * pageSize, pages * pageSize);
+        }
+        pagesPerRegion = perRegion;
+        mappedPages = numPages;
+        regions = mapped;
+    }
+
+    /**
+     * @return a read-only view of the specified page in the mapping, with
+     *         position 0 and capacity of one page
+     */
+    private synchronized ByteBuffer mappedPage(int pgNo) throws IOException {
+        map();
+        int pageSize = BufferPool.getPageSize();
+        ByteBuffer buf = regions[pgNo / pagesPerRegion].duplicate();
+        int start = (pgNo % pagesPerRegion) * pageSize;
+        buf.limit(start + pageSize);
+        buf.position(start);
+        return buf.slice();
+    }
+
+    /**
+     * Read the specified page from disk into the given buffer, and return a
+     * page that reads its tuples in place from that buffer. Used by an
+     * off-heap BufferPool to load pages into the frames of its
+     * {@link PageArena}.
+     *
+     * @param pid the id of the page to read
+     * @param frame the buffer to read the page into; must hold at least a page
+     * @throws IllegalArgumentException if the page does not exist in this file.
+     */
+    public HeapPage readPage(PageId pid, ByteBuffer frame) {
+        checkPageId(pid);
+        try {
+            ByteBuffer dst = frame.duplicate();
+            dst.clear();
+            dst.limit(BufferPool.getPageSize());
+            int retval = channel.read(dst, (long) pid.getPageNumber() * BufferPool.getPageSize());
+            if (retval < BufferPool.getPageSize()) {
+                throw new IllegalArgumentException("Unable to read "
+                        + BufferPool.getPageSize() + " bytes from HeapFile");
+            }
+            Debug.log(1, "HeapFile.readPage: read page %d", pid.getPageNumber());
+            return new HeapPage((HeapPageId) pid, frame);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
+        if (memoryMapped)
+            throw new IOException("memory-mapped table is read only");
+        channel.write(ByteBuffer.wrap(page.getPageData()),
+                (long) page.getId().getPageNumber() * BufferPool.getPageSize());
     }
 
     /**
@@ -77,30 +241,222 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return 0;
+        if (memoryMapped) {
+            try {
+                map();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            synchronized (this) {
+                return mappedPages;
+            }
+        }
+        return (int) (f.length() / BufferPool.getPageSize());
     }
 
     // see DbFile.java for javadocs
+    //
+    // Tuples are inserted and deleted under tuple locks, with an IX lock on
+    // their page, so transactions changing different tuples of one page do
+    // not wait for each other. Multi-version tables lock whole pages, so
+    // that each committed version of a page is the work of one transaction.
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
-        return null;
+        if (memoryMapped)
+            throw new DbException("memory-mapped table is read only");
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc is mismatch");
+        BufferPool pool = Database.getBufferPool();
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        for (int i = 0; ; i++) {
+            HeapPageId pid = new HeapPageId(tableid, i);
+            synchronized (this) {
+                // every page is full: append an empty page and insert into it
+                if (i >= numPages()) {
+                    channel.write(ByteBuffer.wrap(HeapPage.createEmptyPageData()),
+                            (long) i * BufferPool.getPageSize());
+                }
+            }
+            boolean locked = pool.holdsLock(tid, pid);
+            HeapPage p = pageForUpdate(pool, tid, pid);
+            if (insertInto(pool, p, tid, t)) {
+                dirtied.add(p);
+                return dirtied;
+            }
+            // we only looked at the free space of a full page
+            if (!locked)
+                pool.releasePage(tid, pid);
+        }
         // not necessary for lab1
     }
 
+    /** @return the page, locked for changing its tuples */
+    private HeapPage pageForUpdate(BufferPool pool, TransactionId tid, HeapPageId pid)
+            throws DbException, TransactionAbortedException {
+        if (multiVersion)
+            return (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+        return (HeapPage) pool.getPageForTupleUpdate(tid, pid);
+    }
+
+    /**
+     * Insert a tuple into a page if it has a free slot, and lock the new
+     * tuple unless the whole page is locked.
+     *
+     * @return false if the page is full
+     */
+    private boolean insertInto(BufferPool pool, HeapPage p, TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException {
+        if (multiVersion) {
+            if (p.getNumEmptySlots() == 0)
+                return false;
+            p.insertTuple(t);
+            return true;
+        }
+        if (!p.insertTuple(t, tid))
+            return false;
+        pool.lockTuple(tid, t.getRecordId(), Permissions.READ_WRITE);
+        return true;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         // some code goes here
-        return null;
+        if (memoryMapped)
+            throw new DbException("memory-mapped table is read only");
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != tableid)
+            throw new DbException("tuple is not a member of this file");
+        BufferPool pool = Database.getBufferPool();
+        HeapPage p;
+        if (multiVersion) {
+            p = pageForUpdate(pool, tid, (HeapPageId) rid.getPageId());
+            p.deleteTuple(t);
+        } else {
+            pool.lockTuple(tid, rid, Permissions.READ_WRITE);
+            p = pageForUpdate(pool, tid, (HeapPageId) rid.getPageId());
+            p.deleteTuple(t, tid);
+        }
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        dirtied.add(p);
+        return dirtied;
         // not necessary for lab1
     }
 
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return null;
+        return iterator(tid, 0);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that asks the
+     * BufferPool's {@link Prefetcher} to read the next prefetchPages pages
+     * ahead of the scan in the background.
+     *
+     * @param tid the transaction id
+     * @param prefetchPages the number of pages to read ahead; 0 disables
+     *        prefetching
+     */
+    public DbFileIterator iterator(TransactionId tid, int prefetchPages) {
+        return new HeapFileIterator(this, tid, prefetchPages);
     }
 
 }
 
+/**
+ * Helper class that implements the Java Iterator for tuples on a HeapFile.
+ * Pages are requested from the BufferPool, except for memory-mapped tables,
+ * whose pages are read straight from the mapping.
+ */
+class HeapFileIterator extends AbstractDbFileIterator {
+
+    Iterator<Tuple> it = null;
+    int nextPgNo = 0;
+    /** Pages below this number were already handed to the prefetcher. */
+    int prefetchedTo = 0;
+
+    final TransactionId tid;
+    final HeapFile f;
+    final int prefetchPages;
+
+    /**
+     * Constructor for this iterator
+     * @param f - the HeapFile containing the tuples
+     * @param tid - the transaction id
+     * @param prefetchPages - the number of pages to read ahead of the scan
+     */
+    public HeapFileIterator(HeapFile f, TransactionId tid, int prefetchPages) {
+        this.f = f;
+        this.tid = tid;
+        this.prefetchPages = f.isMemoryMapped() ? 0 : prefetchPages;
+    }
+
+    /**
+     * Open this iterator; pages are fetched as the iteration reaches them
+     */
+    public void open() throws DbException, TransactionAbortedException {
+        nextPgNo = 0;
+        prefetchedTo = 0;
+        it = Collections.<Tuple>emptyList().iterator();
+    }
+
+    /**
+     * Once the scan is half way through the pages it asked for, ask for the
+     * pages up to prefetchPages after pgNo, so that requests are issued in
+     * batches rather than for every page.
+     */
+    private void prefetchAfter(int pgNo, int numPages) {
+        if (prefetchPages <= 0 || prefetchedTo - pgNo > prefetchPages / 2)
+            return;
+        int end = Math.min(numPages, pgNo + 1 + prefetchPages);
+        Prefetcher prefetcher = Database.getBufferPool().getPrefetcher();
+        for (int i = Math.max(prefetchedTo, pgNo + 1); i < end; i++)
+            prefetcher.prefetch(new HeapPageId(f.getId(), i));
+        prefetchedTo = Math.max(prefetchedTo, end);
+    }
+
+    /**
+     * Read the next tuple either from the current page if it has more tuples or
+     * from the next non-empty page of the file.
+     *
+     * @return the next tuple, or null if none exists
+     */
+    @Override
+    protected Tuple readNext() throws TransactionAbortedException, DbException {
+        if (it == null)
+            return null;
+        while (!it.hasNext()) {
+            int numPages = f.numPages();
+            if (nextPgNo >= numPages)
+                return null;
+            prefetchAfter(nextPgNo, numPages);
+            HeapPageId pid = new HeapPageId(f.getId(), nextPgNo++);
+            HeapPage p;
+            if (f.isMemoryMapped())
+                p = (HeapPage) f.readPage(pid);
+            else
+                p = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            it = p.iterator();
+        }
+        return it.next();
+    }
+
+    /**
+     * rewind this iterator back to the beginning of the tuples
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    /**
+     * close the iterator
+     */
+    public void close() {
+        super.close();
+        it = null;
+    }
+}
+
@@ -2,10 +2,17 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
- * Each instance of HeapPage stores data for one page of HeapFiles and 
+ * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A HeapPage keeps the page image itself rather than a parsed array of
+ * tuples: header bits and fields are read in place from the image, and
+ * Tuple objects are only built when a tuple is requested. The image is
+ * either an on-heap array, a frame of a {@link PageArena} for an off-heap
+ * BufferPool, or a read-only region of a memory-mapped HeapFile.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,12 +22,26 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    final int headerSize;
+
+    /** The page image, with position 0 and capacity of one page; protected by this. */
+    private ByteBuffer data;
+    private volatile TransactionId dirtier;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    private final Object oldDataLock=new Object();
+
+    /**
+     * The transaction that changed each slot under a tuple lock and has not
+     * committed or aborted yet, or null until a slot is changed that way;
+     * protected by this.
+     */
+    private TransactionId[] owners;
+    /** Slot commits logged but not yet installed; protected by this. */
+    private int pendingSlotCommits = 0;
+    /** LSN of the newest installed slot commit; protected by this. */
+    private long installedLsn = -1;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -34,40 +55,44 @@ public class HeapPage implements Page {
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
+     * The data is copied, so the caller may reuse the array.
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize())));
+    }
+
+    /**
+     * Create a HeapPage that reads and writes its tuples in place in the
+     * specified buffer, e.g. a frame of a {@link PageArena}. The buffer is
+     * not copied; its contents from index 0 to the page size must have the
+     * format described in {@link #HeapPage(HeapPageId, byte[])}. If the
+     * buffer is read only (e.g. a page of a memory-mapped HeapFile), so is
+     * the page.
+     */
+    public HeapPage(HeapPageId id, ByteBuffer frame) throws IOException {
+        if (frame.capacity() < BufferPool.getPageSize())
+            throw new IOException("frame is smaller than a page");
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.headerSize = getHeaderSize();
+        this.data = frame;
 
-        setBeforeImage();
+        // a read only page (e.g. of a memory-mapped table) never changes, so
+        // it is its own before image
+        if (!frame.isReadOnly())
+            setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
-    private int getNumTuples() {        
+    private int getNumTuples() {
         // some code goes here
-        return 0;
+        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
 
     }
 
@@ -75,13 +100,13 @@ public class HeapPage implements Page {
      * Computes the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
-    private int getHeaderSize() {        
-        
+    private int getHeaderSize() {
+
         // some code goes here
-        return 0;
-                 
+        return (numSlots + 7) / 8;
+
     }
-    
+
     /** Return a view of this page before it was modified
         -- used by recovery */
     public HeapPage getBeforeImage(){
@@ -91,6 +116,8 @@ public class HeapPage implements Page {
             {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null)
+                oldDataRef = getPageData();
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -99,11 +126,12 @@ public class HeapPage implements Page {
         }
         return null;
     }
-    
+
     public void setBeforeImage() {
+        byte[] image = getPageData().clone();
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = image;
         }
     }
 
@@ -112,40 +140,21 @@ public class HeapPage implements Page {
      */
     public HeapPageId getId() {
     // some code goes here
-    throw new UnsupportedOperationException("implement this");
+    return pid;
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Build the tuple stored in the specified slot from the page image.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
+    private synchronized Tuple readTuple(int slotId) {
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = headerSize + slotId * td.getSize();
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(data, offset));
+            offset += type.getLen();
         }
-
         return t;
     }
 
@@ -160,65 +169,12 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        byte[] pageData = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.position(0);
+        src.get(pageData);
+        return pageData;
     }
 
     /**
@@ -235,6 +191,16 @@ public class HeapPage implements Page {
         return new byte[len]; //all 0
     }
 
+    /**
+     * Copy the page image out of its off-heap frame, so that the frame can
+     * be reused while this page is still referenced (e.g. by an iterator).
+     * Called by the BufferPool before it releases the frame.
+     */
+    synchronized void detachFrame() {
+        if (data.isDirect())
+            data = ByteBuffer.wrap(getPageData());
+    }
+
     /**
      * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
      *   that it is no longer stored on any page.
@@ -242,9 +208,47 @@ public class HeapPage implements Page {
      *         already empty.
      * @param t The tuple to delete
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+        clearSlot(usedSlotOf(t));
+    }
+
+    /**
+     * Delete the specified tuple from the page on behalf of a transaction
+     * that holds a lock on the tuple rather than on the page, and make it
+     * the owner of the slot until it commits or aborts.
+     *
+     * @throws DbException if this tuple is not on this page, its slot is
+     *         empty, or another transaction owns the slot
+     */
+    synchronized void deleteTuple(Tuple t, TransactionId owner) throws DbException {
+        int slot = usedSlotOf(t);
+        if (owners != null && owners[slot] != null && !owners[slot].equals(owner))
+            throw new DbException("tuple slot is changed by transaction "
+                    + owners[slot].getId());
+        clearSlot(slot);
+        setOwner(slot, owner);
+    }
+
+    /** @return the used slot of a tuple on this page */
+    private int usedSlotOf(Tuple t) throws DbException {
+        if (data.isReadOnly())
+            throw new DbException("page is read only");
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()))
+            throw new DbException("tuple is not on this page");
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= numSlots || !isSlotUsed(slot))
+            throw new DbException("tuple slot is already empty");
+        return slot;
+    }
+
+    private void clearSlot(int slot) {
+        markSlotUsed(slot, false);
+        int offset = headerSize + slot * td.getSize();
+        for (int i=0; i<td.getSize(); i++)
+            data.put(offset + i, (byte) 0);
     }
 
     /**
@@ -254,9 +258,192 @@ public class HeapPage implements Page {
      *         is mismatch.
      * @param t The tuple to add.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // some code goes here
         // not necessary for lab1
+        if (!insertTuple(t, null))
+            throw new DbException("page is full");
+    }
+
+    /**
+     * Adds the specified tuple to the page on behalf of a transaction that
+     * locks tuples rather than the page, and make it the owner of the slot
+     * until it commits or aborts. Empty slots owned by other transactions
+     * are skipped, since their abort puts back the tuple they deleted.
+     *
+     * @param owner the transaction, or null if it holds the page lock
+     * @return false if no slot is free for the transaction
+     * @throws DbException if the tupledesc is mismatch
+     */
+    synchronized boolean insertTuple(Tuple t, TransactionId owner) throws DbException {
+        if (data.isReadOnly())
+            throw new DbException("page is read only");
+        if (!td.equals(t.getTupleDesc()))
+            throw new DbException("tupledesc is mismatch");
+        int slot = 0;
+        while (slot < numSlots && (isSlotUsed(slot) || ownedByOther(slot, owner)))
+            slot++;
+        if (slot == numSlots)
+            return false;
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j=0; j<td.numFields(); j++)
+                t.getField(j).serialize(dos);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            throw new DbException("could not serialize tuple: " + e.getMessage());
+        }
+        ByteBuffer dst = data.duplicate();
+        dst.position(headerSize + slot * td.getSize());
+        dst.put(baos.toByteArray());
+
+        markSlotUsed(slot, true);
+        if (owner != null)
+            setOwner(slot, owner);
+        t.setRecordId(new RecordId(pid, slot));
+        return true;
+    }
+
+    private boolean ownedByOther(int slot, TransactionId tid) {
+        return owners != null && owners[slot] != null && !owners[slot].equals(tid);
+    }
+
+    private void setOwner(int slot, TransactionId owner) {
+        if (owner == null)
+            return;
+        if (owners == null)
+            owners = new TransactionId[numSlots];
+        owners[slot] = owner;
+    }
+
+    /** @return true if tid changed slots of this page and has not committed or aborted */
+    synchronized boolean isSlotOwner(TransactionId tid) {
+        if (owners != null) {
+            for (TransactionId o : owners) {
+                if (tid.equals(o))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the transactions that changed slots of this page and have not committed or aborted */
+    synchronized Set<TransactionId> slotOwners() {
+        Set<TransactionId> result = new HashSet<TransactionId>();
+        if (owners != null) {
+            for (TransactionId o : owners) {
+                if (o != null)
+                    result.add(o);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if no other transaction owns slots of this page and no
+     *         logged slot commit is waiting to be installed
+     */
+    synchronized boolean isSoleSlotOwner(TransactionId tid) {
+        if (pendingSlotCommits > 0)
+            return false;
+        for (TransactionId o : slotOwners()) {
+            if (!o.equals(tid))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the last committed version of this page, and that version
+     *         with the slots owned by tid as they are now
+     */
+    synchronized HeapPage[] slotVersions(TransactionId tid) {
+        byte[] committed = committedData();
+        byte[] changed = committed.clone();
+        copySlots(changed, getPageData(), tid);
+        try {
+            return new HeapPage[] { new HeapPage(pid, committed), new HeapPage(pid, changed) };
+        } catch (IOException e) {
+            throw new RuntimeException(e); // we parsed it before
+        }
+    }
+
+    /**
+     * Like {@link #slotVersions}, for a commit of tid that will be logged
+     * and then installed with {@link #commitSlots}.
+     */
+    synchronized HeapPage[] prepareSlotCommit(TransactionId tid) {
+        pendingSlotCommits++;
+        return slotVersions(tid);
+    }
+
+    /**
+     * Install the committed slots of tid in the before image and drop its
+     * ownership of them. Slots owned by other transactions are left alone,
+     * so they commit or abort on their own.
+     *
+     * @param lsn the LSN of the update record logged for the commit
+     * @return the LSN up to which every logged change is in the before
+     *         image, or -1 if other logged slot commits are not installed yet
+     */
+    synchronized long commitSlots(TransactionId tid, long lsn) {
+        byte[] committed = committedData();
+        copySlots(committed, getPageData(), tid);
+        synchronized(oldDataLock) {
+            oldData = committed;
+        }
+        dropOwner(tid);
+        pendingSlotCommits--;
+        installedLsn = Math.max(installedLsn, lsn);
+        return pendingSlotCommits == 0 ? installedLsn : -1;
+    }
+
+    /**
+     * Put the slots owned by tid back to their last committed contents and
+     * drop its ownership of them.
+     */
+    synchronized void abortSlots(TransactionId tid) {
+        byte[] current = getPageData();
+        copySlots(current, committedData(), tid);
+        ByteBuffer dst = data.duplicate();
+        dst.position(0);
+        dst.put(current);
+        dropOwner(tid);
+    }
+
+    /** @return a copy of the before image data */
+    private byte[] committedData() {
+        byte[] committed;
+        synchronized(oldDataLock) {
+            committed = oldData;
+        }
+        return committed == null ? getPageData() : committed.clone();
+    }
+
+    /** Copy the header bit and contents of each slot owned by tid from src to dst. */
+    private void copySlots(byte[] dst, byte[] src, TransactionId tid) {
+        if (owners == null)
+            return;
+        int size = td.getSize();
+        for (int i=0; i<numSlots; i++) {
+            if (!tid.equals(owners[i]))
+                continue;
+            int bit = 1 << (i % 8);
+            dst[i / 8] = (byte) ((dst[i / 8] & ~bit) | (src[i / 8] & bit));
+            System.arraycopy(src, headerSize + i * size, dst, headerSize + i * size, size);
+        }
+    }
+
+    private void dropOwner(TransactionId tid) {
+        if (owners == null)
+            return;
+        for (int i=0; i<numSlots; i++) {
+            if (tid.equals(owners[i]))
+                owners[i] = null;
+        }
     }
 
     /**
@@ -266,6 +453,7 @@ public class HeapPage implements Page {
     public void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	// not necessary for lab1
+        this.dirtier = dirty ? tid : null;
     }
 
     /**
@@ -274,31 +462,44 @@ public class HeapPage implements Page {
     public TransactionId isDirty() {
         // some code goes here
 	// Not necessary for lab1
-        return null;      
+        return dirtier;
     }
 
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         // some code goes here
-        return 0;
+        int empty = 0;
+        for (int i=0; i<numSlots; i++) {
+            if (!isSlotUsed(i))
+                empty++;
+        }
+        return empty;
     }
 
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i) {
+    public synchronized boolean isSlotUsed(int i) {
         // some code goes here
-        return false;
+        if (i < 0 || i >= numSlots)
+            return false;
+        return ((data.get(i / 8) >> (i % 8)) & 1) == 1;
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
-    private void markSlotUsed(int i, boolean value) {
+    private synchronized void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
+        byte b = data.get(i / 8);
+        if (value)
+            b |= (1 << (i % 8));
+        else
+            b &= ~(1 << (i % 8));
+        data.put(i / 8, b);
     }
 
     /**
@@ -307,7 +508,41 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        return null;
+        return new Iterator<Tuple>() {
+            private int slot = nextUsedSlot(0);
+
+            public boolean hasNext() {
+                return slot < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = readTuple(slot);
+                slot = nextUsedSlot(slot + 1);
+                return t;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the tuple in the specified slot, or null if the slot is empty
+     */
+    public Tuple getTuple(int slot) {
+        if (!isSlotUsed(slot))
+            return null;
+        return readTuple(slot);
+    }
+
+    /** @return the first used slot at or after from, or numSlots if none */
+    private int nextUsedSlot(int from) {
+        while (from < numSlots && !isSlotUsed(from))
+            from++;
+        return from;
     }
 
 }
@@ -0,0 +1,232 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The IndexNestedLoopJoin operator implements the relational join by probing
+ * an index on the join field of the inner relation once for each tuple of
+ * the outer relation, rather than scanning the whole inner relation for it.
+ * <p>
+ * The inner relation is given as a scan of a table with such an index, which
+ * is never opened itself:
+ * <ul>
+ * <li>a SeqScan of a BTreeFile whose first key field is the join field,</li>
+ * <li>a SeqScan of a table with a SecondaryIndex whose first key field is
+ * the join field, where each entry found is followed to its tuple, or</li>
+ * <li>an IndexOnlyScan of such a SecondaryIndex, which takes the fields of
+ * the inner tuples from the entries.</li>
+ * </ul>
+ * Use {@link #canProbe} to check that a join can be done this way.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+    private TransactionId tid;
+    /** The file probed, and the secondary index it stores or null if it is the inner table. */
+    private BTreeFile file;
+    private SecondaryIndex index;
+    private boolean indexOnly;
+    private Predicate.Op probeOp;
+    transient private Tuple outer = null;
+    transient private DbFileIterator matches = null;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Scan of the right(inner) relation to probe
+     * @throws IllegalArgumentException
+     *            if the inner relation has no index to probe for p
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!canProbe(p, child2))
+            throw new IllegalArgumentException("no index on the join field of the inner relation");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.probeOp = probeOp(p.getOperator());
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        if (child2 instanceof IndexOnlyScan) {
+            IndexOnlyScan s = (IndexOnlyScan) child2;
+            tid = s.getTransactionId();
+            index = s.getIndex();
+            indexOnly = true;
+            file = index.getFile();
+        } else {
+            SeqScan s = (SeqScan) child2;
+            tid = s.getTransactionId();
+            DbFile f = Database.getCatalog().getDatabaseFile(s.getTableId());
+            if (f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2()) {
+                file = (BTreeFile) f;
+            } else {
+                index = findIndex(s.getTableId(), p.getField2());
+                file = index.getFile();
+            }
+        }
+    }
+
+    /**
+     * @return whether the join of some relation with child2 on p can be
+     *         done by probing an index of child2
+     */
+    public static boolean canProbe(JoinPredicate p, OpIterator child2) {
+        if (probeOp(p.getOperator()) == null)
+            return false;
+        if (child2 instanceof IndexOnlyScan) {
+            // the first field of the entries is the first key field
+            return p.getField2() == 0;
+        }
+        if (!(child2 instanceof SeqScan))
+            return false;
+        int tableid = ((SeqScan) child2).getTableId();
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        return (f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2())
+                || findIndex(tableid, p.getField2()) != null;
+    }
+
+    /**
+     * @return a secondary index of the table whose first key field is the
+     *         given field, or null if there is none
+     */
+    static SecondaryIndex findIndex(int tableid, int field) {
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableid)) {
+            if (index.getKeyFields()[0] == field)
+                return index;
+        }
+        return null;
+    }
+
+    /**
+     * @return the operation to search the index of the inner relation with,
+     *         which compares the inner field to the outer one, or null if op
+     *         cannot be answered by an index search
+     */
+    static Predicate.Op probeOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return null;
+        }
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeMatches();
+        child1.close();
+        outer = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        closeMatches();
+        child1.rewind();
+        outer = null;
+    }
+
+    private void closeMatches() {
+        if (matches != null) {
+            matches.close();
+            matches = null;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the matches of the current outer tuple found by its probe
+     * of the index, then those of the next outer tuple.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (matches != null && matches.hasNext()) {
+                Tuple inner = innerTuple(matches.next());
+                if (inner == null)
+                    continue;
+                Tuple t = new Tuple(comboTD);
+                int n1 = outer.getTupleDesc().numFields();
+                for (int i = 0; i < n1; i++)
+                    t.setField(i, outer.getField(i));
+                for (int i = 0; i < inner.getTupleDesc().numFields(); i++)
+                    t.setField(n1 + i, inner.getField(i));
+                return t;
+            }
+            closeMatches();
+            if (!child1.hasNext())
+                return null;
+            outer = child1.next();
+            matches = file.indexIterator(tid, new IndexPredicate(probeOp, outer.getField(pred.getField1())));
+            matches.open();
+        }
+    }
+
+    /**
+     * @return the inner tuple of an entry found in the index, or null if it
+     *         is no longer in the table
+     */
+    private Tuple innerTuple(Tuple entry) throws TransactionAbortedException, DbException {
+        if (index == null)
+            return entry;
+        if (indexOnly) {
+            TupleDesc td = child2.getTupleDesc();
+            Tuple t = new Tuple(td);
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, entry.getField(i));
+            return t;
+        }
+        RecordId rid = index.getRecordId(entry);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+        return page.getTuple(rid.getTupleNumber());
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexOnlyScan is an operator which reads the fields of a table covered by a
+ * secondary index from the entries of the index alone, in key order, without
+ * reading any page of the table itself
+ *
+ * @see SecondaryIndex
+ */
+public class IndexOnlyScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private TransactionId tid;
+	private TupleDesc myTd;
+	private IndexPredicate ipred = null;
+	private SecondaryIndex index;
+	private transient DbFileIterator it;
+	private String tablename;
+	private String alias;
+
+	/**
+	 * Creates a scan of the entries of a secondary index as a part of the
+	 * specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the index to scan.
+	 * @param tableAlias
+	 *            the alias of the table of the index; the returned tupleDesc
+	 *            has the fields covered by the index, in the order they are
+	 *            stored, with names tableAlias.fieldName
+	 * @param ipred
+	 * 			  The index predicate on the key fields to match. If null, the
+	 *            scan will return all entries in sorted order
+	 */
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		this.tablename = Database.getCatalog().getTableName(index.getTableId());
+
+		TupleDesc tableTd = Database.getCatalog().getTupleDesc(index.getTableId());
+		int[] covered = index.getCoveredFields();
+		String[] newNames = new String[covered.length];
+		Type[] newTypes = new Type[covered.length];
+		for (int i = 0; i < covered.length; i++) {
+			newNames[i] = tableAlias + "." + tableTd.getFieldName(covered[i]);
+			newTypes[i] = tableTd.getFieldType(covered[i]);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+
+		BTreeFile f = index.getFile();
+		if(ipred == null) {
+			this.it = f.iterator(tid);
+		}
+		else {
+			this.it = f.indexIterator(tid, ipred);
+		}
+	}
+
+	public IndexOnlyScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred) {
+		this(tid, index, Database.getCatalog().getTableName(index.getTableId()), ipred);
+	}
+
+	/**
+	 * @return the table name of the table whose index the operator scans
+	 */
+	public String getTableName() {
+		return this.tablename;
+	}
+
+	/**
+	 * @return the alias of the table whose index the operator scans
+	 */
+	public String getAlias() {
+		return this.alias;
+	}
+
+	/**
+	 * @return the transaction the scan runs as a part of
+	 */
+	public TransactionId getTransactionId() {
+		return this.tid;
+	}
+
+	/**
+	 * @return the index the operator scans
+	 */
+	public SecondaryIndex getIndex() {
+		return this.index;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the fields covered by the index, prefixed with
+	 * the tableAlias string from the constructor.
+	 *
+	 * @return the TupleDesc of the fields covered by the index
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException,
+	TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		// leave out the RecordId of the entry
+		Tuple entry = it.next();
+		Tuple t = new Tuple(myTd);
+		for (int i = 0; i < myTd.numFields(); i++) {
+			t.setField(i, entry.getField(i));
+		}
+		return t;
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException,
+	TransactionAbortedException {
+		close();
+		open();
+	}
+}
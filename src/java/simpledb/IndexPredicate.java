@@ -27,6 +27,19 @@ public class IndexPredicate implements Serializable {
         this.fieldvalue = fvalue;
     }
 
+    /**
+     * Constructor for a predicate on the first fields of an index keyed on
+     * several fields. An EQUALS predicate on a prefix of the key fields finds
+     * every tuple whose key starts with the prefix.
+     *
+     * @param op The operation to apply (as defined in Predicate.Op)
+     * @param prefix The values that the first key fields are compared against.
+     * @see CompositeField
+     */
+    public IndexPredicate(Predicate.Op op, Field[] prefix) {
+        this(op, new CompositeField(prefix));
+    }
+
     public Field getField() {
         return fieldvalue;
     }
@@ -4,15 +4,35 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * It is a block nested-loops join: it reads as many tuples of child1 as fit
+ * in its memory budget, less a page for reading child2, then scans child2
+ * once for the whole block, comparing each tuple of child2 with every tuple
+ * of the block. child2 is therefore read once per block of child1 rather
+ * than once per tuple. Any predicate can be joined this way.
  */
 public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /** Default number of pages of memory for the block of child1 and a page of child2. */
+    public static final int DEFAULT_MEMORY_PAGES = 1024;
+
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+    private final int memoryPages;
+    /** Tuples of child1 in each block. */
+    private int blockTuples;
+    transient private ArrayList<Tuple> block = new ArrayList<Tuple>();
+    /** The current tuple of child2, compared with the tuples of the block from blockPos on. */
+    transient private Tuple t2 = null;
+    transient private int blockPos = 0;
+
     /**
      * Constructor. Accepts two children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -22,11 +42,43 @@ public class Join extends Operator {
      */
     public Join(JoinPredicate p, OpIterator child1, OpIterator child2) {
         // some code goes here
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor. Accepts two children to join, the predicate to join them
+     * on, and the memory the join may use
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memoryPages
+     *            The number of pages of memory for a block of child1 and a
+     *            page of child2; at least 2, which joins a page of child1 at
+     *            a time
+     */
+    public Join(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages) {
+        if (memoryPages < 2)
+            throw new IllegalArgumentException("a join needs at least 2 pages of memory");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryPages = memoryPages;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        blockTuples = SpillFile.tuplesFitting(memoryPages - 1, child1.getTupleDesc());
     }
 
     public JoinPredicate getJoinPredicate() {
         // some code goes here
-        return null;
+        return pred;
+    }
+
+    /** @return the number of pages of memory the join may use */
+    public int getMemoryPages() {
+        return memoryPages;
     }
 
     /**
@@ -36,7 +88,7 @@ public class Join extends Operator {
      * */
     public String getJoinField1Name() {
         // some code goes here
-        return null;
+        return child1.getTupleDesc().getFieldName(pred.getField1());
     }
 
     /**
@@ -46,7 +98,7 @@ public class Join extends Operator {
      * */
     public String getJoinField2Name() {
         // some code goes here
-        return null;
+        return child2.getTupleDesc().getFieldName(pred.getField2());
     }
 
     /**
@@ -55,20 +107,45 @@ public class Join extends Operator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return null;
+        return comboTD;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        child1.open();
+        child2.open();
+        loadBlock();
+        super.open();
     }
 
     public void close() {
         // some code goes here
+        super.close();
+        child2.close();
+        child1.close();
+        block.clear();
+        t2 = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
+        child1.rewind();
+        child2.rewind();
+        loadBlock();
+    }
+
+    /**
+     * Read the next block of tuples of child1.
+     *
+     * @return false if there were none left
+     */
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        block.clear();
+        t2 = null;
+        while (block.size() < blockTuples && child1.hasNext())
+            block.add(child1.next());
+        return !block.isEmpty();
     }
 
     /**
@@ -85,24 +162,61 @@ public class Join extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return null;
+        while (true) {
+            if (t2 != null) {
+                while (blockPos < block.size()) {
+                    Tuple t1 = block.get(blockPos++);
+                    if (pred.filter(t1, t2))
+                        return merge(t1, t2);
+                }
+                t2 = null;
+            }
+            if (block.isEmpty())
+                return null;
+            if (child2.hasNext()) {
+                t2 = child2.next();
+                blockPos = 0;
+                continue;
+            }
+            // child2 is done for this block: join the next one with it
+            if (!loadBlock())
+                return null;
+            child2.rewind();
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
     }
 
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
-        return null;
+        return new OpIterator[] { this.child1, this.child2 };
     }
 
     @Override
     public void setChildren(OpIterator[] children) {
         // some code goes here
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        blockTuples = SpillFile.tuplesFitting(memoryPages - 1, child1.getTupleDesc());
     }
 
 }
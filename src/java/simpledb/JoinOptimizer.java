@@ -14,6 +14,18 @@ public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    /** The algorithms a join can be instantiated with. */
+    public enum Algorithm {
+        /** A block nested-loops {@link Join} */
+        NESTED_LOOPS,
+        /** An {@link IndexNestedLoopJoin} probing the right-hand table */
+        INDEX_NESTED_LOOPS,
+        /** A {@link SortMergeJoin} */
+        SORT_MERGE,
+        /** A {@link HashEquiJoin} building its hash table from the left-hand side */
+        HASH
+    }
+
     /**
      * Constructor
      * 
@@ -34,6 +46,12 @@ public class JoinOptimizer {
      * inner/outer here -- because OpIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * The join uses the algorithm that {@link #estimateJoinCost} found
+     * cheapest for lj, unless plan2 no longer allows it. A join whose cost
+     * was not estimated probes plan2 if it can, merges if its predicate is
+     * an inequality or both plans are sorted on the join fields, and else
+     * falls back to nested loops.
      * 
      * @param lj
      *            The join being considered
@@ -68,7 +86,31 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p,plan1,plan2);
+        if (lj instanceof LogicalSubplanJoinNode) {
+            j = new Join(p,plan1,plan2);
+        } else if (lj.algorithm == Algorithm.INDEX_NESTED_LOOPS
+                && IndexNestedLoopJoin.canProbe(p, plan2)) {
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (lj.algorithm == Algorithm.SORT_MERGE
+                && SortMergeJoin.canJoin(lj.p)) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.algorithm == Algorithm.HASH
+                && lj.p == Predicate.Op.EQUALS) {
+            j = new HashEquiJoin(p, plan1, plan2, HashEquiJoin.DEFAULT_MEMORY_PAGES);
+        } else if (lj.algorithm != null) {
+            j = new Join(p,plan1,plan2);
+        } else if (IndexNestedLoopJoin.canProbe(p, plan2)) {
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (lj.p != Predicate.Op.EQUALS && SortMergeJoin.canJoin(lj.p)) {
+            // a range join reads only the matches of each tuple once sorted
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS
+                && SortMergeJoin.isSortedOn(plan1, t1id)
+                && SortMergeJoin.isSortedOn(plan2, t2id)) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else {
+            j = new Join(p,plan1,plan2);
+        }
 
         return j;
 
@@ -82,6 +124,9 @@ public class JoinOptimizer {
      * the amount of data that must be read over the course of the query, as
      * well as the number of CPU opertions performed by your join. Assume that
      * the cost of a single predicate application is roughly 1.
+     * <p>
+     * The cost is that of the cheapest algorithm for the join, which is
+     * recorded in j for {@link #instantiateJoin}.
      * 
      * 
      * @param j
@@ -111,7 +156,223 @@ public class JoinOptimizer {
             // HINT: You may need to use the variable "j" if you implemented
             // a join algorithm that's more complicated than a basic
             // nested-loops join.
-            return -1.0;
+            // block nested loops: scan the inner relation once per block of
+            // outer tuples, comparing each pair
+            double cost = cost1 + estimateBlocks(j, card1) * cost2
+                    + (double) card1 * card2;
+            Algorithm algorithm = Algorithm.NESTED_LOOPS;
+            double probeCost = estimateProbeCost(j, card1, card2, cost2);
+            if (probeCost >= 0 && cost1 + card1 * probeCost < cost) {
+                cost = cost1 + card1 * probeCost;
+                algorithm = Algorithm.INDEX_NESTED_LOOPS;
+            }
+            double mergeCost = estimateSortMergeCost(j, card1, card2, cost1, cost2);
+            if (mergeCost >= 0 && mergeCost < cost) {
+                cost = mergeCost;
+                algorithm = Algorithm.SORT_MERGE;
+            }
+            double hashCost = estimateHashCost(j, card1, card2, cost1, cost2);
+            if (hashCost >= 0 && hashCost < cost) {
+                cost = hashCost;
+                algorithm = Algorithm.HASH;
+            }
+            j.algorithm = algorithm;
+            return cost;
+        }
+    }
+
+    /**
+     * Estimate the number of blocks of the left-hand side of a join that a
+     * {@link Join} reads at a time, from the size of the tuples of its base
+     * table; if the table is unknown, every tuple is a block of its own.
+     */
+    private double estimateBlocks(LogicalJoinNode j, int card1) {
+        Integer tableid1 = p.getTableId(j.t1Alias);
+        if (tableid1 == null)
+            return card1;
+        int blockTuples = SpillFile.tuplesFitting(Join.DEFAULT_MEMORY_PAGES - 1,
+                Database.getCatalog().getTupleDesc(tableid1));
+        return Math.ceil((double) card1 / blockTuples);
+    }
+
+    /**
+     * Estimate the cost of one probe of an index of the right-hand table of a
+     * join by an index nested-loops join, including the predicate
+     * applications on the tuples it finds; see {@link IndexNestedLoopJoin}.
+     * 
+     * @return the cost of one probe, or -1 if the right-hand table has no
+     *         index that can be probed for the join
+     */
+    private double estimateProbeCost(LogicalJoinNode j, int card1, int card2,
+            double cost2) {
+        Integer tableid = p.getTableId(j.t2Alias);
+        if (tableid == null || card1 <= 0
+                || IndexNestedLoopJoin.probeOp(j.p) == null)
+            return -1;
+        DbFile table = Database.getCatalog().getDatabaseFile(tableid);
+        int field = fieldIndex(table.getTupleDesc(), j.f2PureName);
+        if (field < 0)
+            return -1;
+        BTreeFile tree;
+        boolean clustered;
+        if (table instanceof BTreeFile && ((BTreeFile) table).keyField() == field) {
+            tree = (BTreeFile) table;
+            clustered = true;
+        } else {
+            SecondaryIndex index = IndexNestedLoopJoin.findIndex(tableid, field);
+            if (index == null)
+                return -1;
+            tree = index.getFile();
+            clustered = false;
+        }
+
+        // tuples of the right-hand table found by each probe
+        double matches = estimateMatches(j, tableid, card1, card2);
+
+        // the cost of reading a page, from the cost of a scan of the table
+        int tablePages = Math.max(1, table instanceof HeapFile
+                ? ((HeapFile) table).numPages() : ((BTreeFile) table).numPages());
+        double ioCost = cost2 / tablePages;
+        int treePages = Math.max(1, tree.numPages());
+        TupleDesc td = tree.getTupleDesc();
+        int[] keyFields = tree.keyFields();
+        Type[] keyTypes = new Type[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++)
+            keyTypes[i] = td.getFieldType(keyFields[i]);
+        int fanout = Math.max(2, BTreeInternalPage.getMaxEntries(keyTypes,
+                BufferPool.getPageSize()));
+        double height = Math.ceil(Math.log(treePages) / Math.log(fanout)) + 1;
+
+        // the leaf pages holding the entries found, then the pages of the
+        // table they point to unless the entries are the tuples themselves
+        double entriesPerPage = Math.max(1.0, (double) card2 / treePages);
+        double pages = height + Math.ceil(matches / entriesPerPage);
+        if (!clustered)
+            pages += matches;
+        return ioCost * pages + matches;
+    }
+
+    /**
+     * Estimate the number of tuples of the right-hand table of a join that
+     * each tuple of the left-hand side joins with.
+     */
+    private double estimateMatches(LogicalJoinNode j, int tableid2, int card1,
+            int card2) {
+        if (j.p == Predicate.Op.EQUALS) {
+            String pkey = Database.getCatalog().getPrimaryKey(tableid2);
+            return j.f2PureName.equals(pkey) ? 1
+                    : (double) Math.max(card1, card2) / Math.max(1, card1);
+        }
+        return 0.3 * card2;
+    }
+
+    /**
+     * Estimate the cost of a sort-merge join, see {@link SortMergeJoin}:
+     * reading both sides, sorting each side that is not stored in order of
+     * its join field, comparing the tuples merged, and reading the tuples
+     * each tuple joins with back from the join's memory, or from disk if
+     * they do not fit in it. The right-hand side
+     * is a base table, which is read in order if it is a B+ tree keyed on
+     * the join field; the left-hand side may be the result of other joins,
+     * so it is always sorted, at the size of the tuples of its base table.
+     * 
+     * @return the cost of the join, or -1 if it cannot be done by merging or
+     *         a table of the join is unknown
+     */
+    private double estimateSortMergeCost(LogicalJoinNode j, int card1,
+            int card2, double cost1, double cost2) {
+        Integer tableid1 = p.getTableId(j.t1Alias);
+        Integer tableid2 = p.getTableId(j.t2Alias);
+        if (tableid1 == null || tableid2 == null || !SortMergeJoin.canJoin(j.p))
+            return -1;
+        DbFile table2 = Database.getCatalog().getDatabaseFile(tableid2);
+        int field2 = fieldIndex(table2.getTupleDesc(), j.f2PureName);
+        if (field2 < 0)
+            return -1;
+
+        TupleDesc td1 = Database.getCatalog().getTupleDesc(tableid1);
+        double cost = cost1 + cost2 + estimateSortCost(card1, td1);
+        if (!(table2 instanceof BTreeFile && ((BTreeFile) table2).keyField() == field2))
+            cost += estimateSortCost(card2, table2.getTupleDesc());
+
+        // each tuple of one side is joined with a group of the other: the
+        // tuples with an equal key, or for a range join a prefix of the
+        // left-hand side for t1 < t2 and of the right-hand side otherwise
+        double matches = estimateMatches(j, tableid2, card1, card2);
+        double joined = card1 * matches;
+        boolean groupsLeft = j.p == Predicate.Op.LESS_THAN
+                || j.p == Predicate.Op.LESS_THAN_OR_EQ;
+        TupleDesc groupTd = groupsLeft ? td1 : table2.getTupleDesc();
+        double groupSize = groupsLeft ? joined / Math.max(1, card2) : matches;
+        int groupTuples = SpillFile.tuplesFitting(
+                Math.max(1, SortMergeJoin.DEFAULT_MEMORY_PAGES / 8), groupTd);
+        if (groupSize > groupTuples) {
+            // the part of each group beyond memory is read back from disk
+            double spilled = joined * (1 - groupTuples / groupSize);
+            cost += Math.ceil(spilled * groupTd.getSize() / BufferPool.getPageSize())
+                    * TableStats.IOCOSTPERPAGE;
+        }
+        return cost + card1 + card2 + joined;
+    }
+
+    /**
+     * Estimate the cost of a hash join, see {@link HashEquiJoin}: reading
+     * both sides, hashing each tuple, and comparing the tuples that share a
+     * bucket. The hash table is built from the left-hand side, at the size
+     * of the tuples of its base table. If that does not fit in the memory
+     * of the join, both sides are partitioned: each is written out once and
+     * read back once more, three passes over their pages in all.
+     * 
+     * @return the cost of the join, or -1 if it is not an equality join or a
+     *         table of the join is unknown
+     */
+    private double estimateHashCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        Integer tableid1 = p.getTableId(j.t1Alias);
+        Integer tableid2 = p.getTableId(j.t2Alias);
+        if (tableid1 == null || tableid2 == null || j.p != Predicate.Op.EQUALS)
+            return -1;
+        TupleDesc td1 = Database.getCatalog().getTupleDesc(tableid1);
+        TupleDesc td2 = Database.getCatalog().getTupleDesc(tableid2);
+        if (fieldIndex(td1, j.f1PureName) < 0 || fieldIndex(td2, j.f2PureName) < 0)
+            return -1;
+
+        double cost = cost1 + cost2;
+        double pages1 = Math.ceil((double) card1 * td1.getSize() / BufferPool.getPageSize());
+        if (pages1 > HashEquiJoin.DEFAULT_MEMORY_PAGES) {
+            double pages2 = Math.ceil((double) card2 * td2.getSize() / BufferPool.getPageSize());
+            cost += 2 * (pages1 + pages2) * TableStats.IOCOSTPERPAGE;
+        }
+        double matches = estimateMatches(j, tableid2, card1, card2);
+        return cost + card1 + card2 + card1 * matches;
+    }
+
+    /**
+     * Estimate the cost of an external sort: the comparisons, and writing
+     * and reading back the tuples once for each merge pass if they do not
+     * fit in the memory of the sort. Replacement selection writes runs of
+     * about twice that memory; see {@link ExternalSort}.
+     */
+    private static double estimateSortCost(int card, TupleDesc td) {
+        double cost = card * Math.log(Math.max(2, card)) / Math.log(2);
+        int memoryPages = SortMergeJoin.DEFAULT_MEMORY_PAGES / 2;
+        double pages = Math.ceil((double) card * td.getSize()
+                / BufferPool.getPageSize());
+        if (pages > memoryPages) {
+            int fanIn = Math.min(memoryPages - 1, ExternalSort.MAX_FAN_IN);
+            double passes = Math.max(1,
+                    Math.ceil(Math.log(pages / (2.0 * memoryPages)) / Math.log(fanIn)));
+            cost += 2 * pages * passes * TableStats.IOCOSTPERPAGE;
+        }
+        return cost;
+    }
+
+    /** @return the index of the field with the given name, or -1 if there is none */
+    private static int fieldIndex(TupleDesc td, String name) {
+        try {
+            return td.fieldNameToIndex(name);
+        } catch (NoSuchElementException e) {
+            return -1;
         }
     }
 
@@ -371,7 +632,9 @@ public class JoinOptimizer {
                 rightPkey, stats);
         cc.cost = cost1;
         cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
+        // j is costed again for other subsets, which records other algorithms
+        // in it, so the plan keeps a copy with the algorithm chosen here
+        cc.plan.addElement(j.copy()); // prevbest is left -- add new join to end
         return cc;
     }
 
@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Plain least-recently-used replacement. Simple and cheap, but not scan
+ * resistant: a sequential scan larger than the buffer pool evicts every
+ * other page.
+ */
+public class LRUEvictionPolicy extends AbstractEvictionPolicy {
+
+    /** Resident pages, least recently used first. */
+    private final LinkedHashSet<PageId> lru = new LinkedHashSet<PageId>();
+
+    protected void recordHit(PageId pid) {
+        if (lru.remove(pid))
+            lru.add(pid);
+    }
+
+    protected void recordMiss(PageId pid) {
+        lru.remove(pid);
+        lru.add(pid);
+    }
+
+    protected void forget(PageId pid) {
+        lru.remove(pid);
+    }
+
+    protected PageId victim(Evictable evictable) {
+        return removeFirstEvictable(lru, evictable);
+    }
+
+    /**
+     * Remove and return the first page of the list (in iteration order)
+     * accepted by evictable, or null if there is none.
+     */
+    static PageId removeFirstEvictable(Collection<PageId> pages, Evictable evictable) {
+        Iterator<PageId> it = pages.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.canEvict(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+}
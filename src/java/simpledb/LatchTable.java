@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LatchTable holds short-term read/write latches on pages. Unlike the locks
+ * of the {@link LockManager}, which are held until a transaction ends, a
+ * latch is held only while a thread looks at a page, so that it never sees
+ * a change in progress.
+ * <p>
+ * BTreeFile descends through the internal pages of a tree without locking
+ * them, reading each one under its read latch. A transaction about to
+ * change an internal page first locks it in X mode, which sends the readers
+ * coming after to the page's last committed version, then drains its
+ * latch, which waits for the readers that were already on it.
+ * <p>
+ * The deadlock detector does not see latches, so a thread must never wait
+ * for a lock while it holds a latch.
+ *
+ * @Threadsafe
+ */
+public class LatchTable {
+
+    private final ConcurrentHashMap<PageId, ReentrantReadWriteLock> latches;
+
+    public LatchTable() {
+        this.latches = new ConcurrentHashMap<PageId, ReentrantReadWriteLock>();
+    }
+
+    private ReentrantReadWriteLock latchFor(PageId pid) {
+        ReentrantReadWriteLock latch = latches.get(pid);
+        if (latch == null) {
+            latch = new ReentrantReadWriteLock();
+            ReentrantReadWriteLock raced = latches.putIfAbsent(pid, latch);
+            if (raced != null)
+                latch = raced;
+        }
+        return latch;
+    }
+
+    /** Take the read latch of a page, waiting while a writer drains it. */
+    public void readLatch(PageId pid) {
+        latchFor(pid).readLock().lock();
+    }
+
+    /** Let go of a read latch taken by {@link #readLatch}. */
+    public void readUnlatch(PageId pid) {
+        latchFor(pid).readLock().unlock();
+    }
+
+    /**
+     * Wait until every thread that held the read latch of a page has let go
+     * of it. The caller must not hold any read latch itself.
+     */
+    public void drain(PageId pid) {
+        ReentrantReadWriteLock latch = latchFor(pid);
+        latch.writeLock().lock();
+        latch.writeLock().unlock();
+    }
+}
@@ -0,0 +1,648 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager implements strict two-phase locking over a hierarchy of
+ * tables, pages and tuples (identified by their RecordId), with the
+ * intention modes of multiple granularity locking. Before a transaction
+ * locks a page or a tuple, it holds an intention lock (IS or IX) on each
+ * ancestor, so a lock on a table or page conflicts with the locks held
+ * below it without looking at them. Two transactions updating different
+ * tuples of one page both hold IX on the page and X on their own tuples,
+ * and do not wait for each other.
+ * <p>
+ * A lock on a table or page implicitly covers the objects below it: S and
+ * SIX cover shared locks on children, X covers every lock. Once a
+ * transaction holds many tuple locks on one page they are escalated to a
+ * single lock on the page, if no other transaction is in the way, which
+ * keeps the lock table small for transactions that touch most of a page.
+ * <p>
+ * Asking for a mode on an object already locked in another mode converts
+ * the lock to the least mode covering both (e.g. S and IX give SIX).
+ * <p>
+ * Deadlocks are found incrementally: a transaction that has to wait adds
+ * its edges to the holders in its way to a wait-for graph and looks for a
+ * cycle through itself, so a deadlock is found as soon as it forms and no
+ * time is lost waiting for a timeout. One transaction of the cycle, picked
+ * by the {@link VictimPolicy}, gets a TransactionAbortedException from its
+ * lock request. An optional timeout also aborts transactions that wait too
+ * long for other reasons. Deadlocks found and aborts by cause are counted.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /** The lock modes, from weakest to strongest. */
+    public enum Mode {
+        /** Intention shared: shared locks will be taken below. */
+        IS,
+        /** Intention exclusive: exclusive locks will be taken below. */
+        IX,
+        /** Shared. */
+        S,
+        /** Shared, with intention exclusive: S on the object, X below. */
+        SIX,
+        /** Exclusive. */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+            //           IS     IX     S      SIX    X
+            /* IS  */ { true,  true,  true,  true,  false },
+            /* IX  */ { true,  true,  false, false, false },
+            /* S   */ { true,  false, true,  false, false },
+            /* SIX */ { true,  false, false, false, false },
+            /* X   */ { false, false, false, false, false },
+        };
+
+        /** @return true if this mode can be held together with the other */
+        public boolean isCompatible(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode at least as strong as this and the other */
+        public Mode join(Mode other) {
+            if (this == other)
+                return this;
+            if (this == X || other == X)
+                return X;
+            if (this == IS)
+                return other;
+            if (other == IS)
+                return this;
+            return SIX; // IX, S and SIX
+        }
+
+        /** @return true if this mode grants everything the other does */
+        public boolean covers(Mode other) {
+            return join(other) == this;
+        }
+
+        /** @return true if holding this mode on an object implies the other on its children */
+        boolean coversChildren(Mode child) {
+            if (this == X)
+                return true;
+            return (this == S || this == SIX) && (child == S || child == IS);
+        }
+
+        /** @return the mode to hold on the parent before locking a child in this mode */
+        Mode intention() {
+            return (this == IS || this == S) ? IS : IX;
+        }
+    }
+
+    /** How the transaction to abort is picked among those of a deadlock. */
+    public enum VictimPolicy {
+        /** The transaction that began last, which has likely done the least work. */
+        YOUNGEST,
+        /** The transaction holding the fewest locks. */
+        FEWEST_LOCKS,
+        /** The transaction that wrote the fewest log bytes, so the least is rolled back. */
+        LEAST_LOG
+    }
+
+    /** Why a lock request aborted its transaction. */
+    public enum AbortCause {
+        /** The transaction was picked as the victim of a deadlock. */
+        DEADLOCK,
+        /** The transaction waited longer than the timeout. */
+        TIMEOUT,
+        /** The waiting thread was interrupted. */
+        INTERRUPTED
+    }
+
+    /** The lock target of a whole table. */
+    static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        public int hashCode() {
+            return tableId;
+        }
+
+        public String toString() {
+            return "table " + tableId;
+        }
+    }
+
+    /** The holders of the lock on one object; protected by its own monitor. */
+    private static class Lock {
+        final HashMap<TransactionId, Mode> holders = new HashMap<TransactionId, Mode>();
+        int waiters = 0;
+        /** Set once the lock left the lock table; it must not be granted again. */
+        boolean retired = false;
+
+        /** @return the other holders that keep tid from holding the lock in mode */
+        Set<TransactionId> blockers(TransactionId tid, Mode mode) {
+            Set<TransactionId> in = new HashSet<TransactionId>();
+            for (Map.Entry<TransactionId, Mode> e : holders.entrySet()) {
+                if (!e.getKey().equals(tid) && !mode.isCompatible(e.getValue()))
+                    in.add(e.getKey());
+            }
+            return in;
+        }
+    }
+
+    /** The locks of one transaction. */
+    private static class Held {
+        final ConcurrentHashMap<Object, Mode> modes = new ConcurrentHashMap<Object, Mode>();
+        /** Tuple locks by page, for escalation; protected by this. */
+        final HashMap<PageId, Set<RecordId>> tuples = new HashMap<PageId, Set<RecordId>>();
+    }
+
+    /** Default number of tuple locks on one page after which they are escalated. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 64;
+
+    /**
+     * Default time a transaction waits for a lock before it is aborted; 0,
+     * since deadlocks are found by the wait-for graph.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 0;
+
+    private final ConcurrentHashMap<Object, Lock> locks;
+    private final ConcurrentHashMap<TransactionId, Held> held;
+    /** The wait-for graph: the holders each waiting transaction waits for; protected by itself. */
+    private final HashMap<TransactionId, Set<TransactionId>> waitsFor;
+    /** The lock each waiting transaction waits on; protected by waitsFor. */
+    private final HashMap<TransactionId, Lock> waitingOn;
+    /** Waiting transactions picked to break a deadlock; protected by waitsFor. */
+    private final Set<TransactionId> victims;
+    private final Random random = new Random();
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile VictimPolicy victimPolicy = VictimPolicy.YOUNGEST;
+    private final AtomicLong deadlocks = new AtomicLong(0);
+    private final AtomicLong[] aborts;
+
+    public LockManager() {
+        locks = new ConcurrentHashMap<Object, Lock>();
+        held = new ConcurrentHashMap<TransactionId, Held>();
+        waitsFor = new HashMap<TransactionId, Set<TransactionId>>();
+        waitingOn = new HashMap<TransactionId, Lock>();
+        victims = new HashSet<TransactionId>();
+        aborts = new AtomicLong[AbortCause.values().length];
+        for (int i = 0; i < aborts.length; i++)
+            aborts[i] = new AtomicLong(0);
+    }
+
+    /** Set how the transaction to abort is picked among those of a deadlock. */
+    public void setVictimPolicy(VictimPolicy policy) {
+        victimPolicy = policy;
+    }
+
+    /** @return the number of deadlocks found */
+    public long getNumDeadlocks() {
+        return deadlocks.get();
+    }
+
+    /** @return the number of lock requests that aborted their transaction for the cause */
+    public long getNumAborts(AbortCause cause) {
+        return aborts[cause.ordinal()].get();
+    }
+
+    /**
+     * Set the number of tuple locks a transaction may hold on one page
+     * before they are escalated to a lock on the page.
+     */
+    public void setEscalationThreshold(int threshold) {
+        if (threshold < 1)
+            throw new IllegalArgumentException("escalation threshold must be positive");
+        escalationThreshold = threshold;
+    }
+
+    /**
+     * Set the time a transaction waits for a lock before it is aborted, or
+     * 0 to wait as long as it takes. Each wait adds up to the same time
+     * again at random, so that two transactions rarely both give up.
+     */
+    public void setTimeout(long millis) {
+        timeoutMillis = millis;
+    }
+
+    /**
+     * Lock a table.
+     *
+     * @throws TransactionAbortedException if tid waited too long
+     */
+    public void lockTable(TransactionId tid, int tableId, Mode mode)
+        throws TransactionAbortedException {
+        acquire(tid, new TableKey(tableId), mode, true);
+    }
+
+    /**
+     * Lock a page, and its table in the matching intention mode, unless the
+     * table lock already covers the page.
+     *
+     * @throws TransactionAbortedException if tid waited too long
+     */
+    public void lockPage(TransactionId tid, PageId pid, Mode mode)
+        throws TransactionAbortedException {
+        TableKey table = new TableKey(pid.getTableId());
+        if (covered(tid, table, mode))
+            return;
+        acquire(tid, table, mode.intention(), true);
+        acquire(tid, pid, mode, true);
+    }
+
+    /**
+     * Lock a page like {@link #lockPage}, unless that means waiting.
+     *
+     * @return true if tid now holds the lock, false if another transaction
+     *         is in the way
+     */
+    boolean tryLockPage(TransactionId tid, PageId pid, Mode mode)
+        throws TransactionAbortedException {
+        TableKey table = new TableKey(pid.getTableId());
+        if (covered(tid, table, mode))
+            return true;
+        return acquire(tid, table, mode.intention(), false) && acquire(tid, pid, mode, false);
+    }
+
+    /**
+     * Check, without locking or waiting, whether another transaction holds
+     * an object in a mode that conflicts with mode. Used to read an object
+     * that is not locked for the rest of the transaction: when this returns
+     * true, its holder may be changing it.
+     */
+    boolean conflicts(TransactionId tid, Object key, Mode mode) {
+        Mode current = holds(tid, key);
+        if (current != null && current.covers(mode))
+            return false;
+        Lock lock = locks.get(key);
+        if (lock == null)
+            return false;
+        synchronized (lock) {
+            return !lock.retired && !lock.blockers(tid, mode).isEmpty();
+        }
+    }
+
+    /**
+     * Lock a tuple in S or X mode, and its page and table in the matching
+     * intention mode, unless a lock on the page or table already covers
+     * it. May escalate the tuple locks of tid on the page.
+     *
+     * @throws TransactionAbortedException if tid waited too long
+     */
+    public void lockTuple(TransactionId tid, RecordId rid, Mode mode)
+        throws TransactionAbortedException {
+        if (mode != Mode.S && mode != Mode.X)
+            throw new IllegalArgumentException("tuples are locked in S or X mode");
+        PageId pid = rid.getPageId();
+        if (covered(tid, new TableKey(pid.getTableId()), mode) || covered(tid, pid, mode))
+            return;
+        lockPage(tid, pid, mode.intention());
+        acquire(tid, rid, mode, true);
+
+        Held h = heldBy(tid);
+        Set<RecordId> onPage;
+        synchronized (h) {
+            onPage = h.tuples.get(pid);
+            if (onPage == null) {
+                onPage = new HashSet<RecordId>();
+                h.tuples.put(pid, onPage);
+            }
+            onPage.add(rid);
+            if (onPage.size() < escalationThreshold)
+                return;
+            onPage = new HashSet<RecordId>(onPage);
+        }
+        escalate(tid, pid, onPage);
+    }
+
+    /**
+     * Replace the tuple locks of tid on a page by one lock on the page, if
+     * no other transaction holds a conflicting lock on it.
+     */
+    private void escalate(TransactionId tid, PageId pid, Set<RecordId> tuples)
+        throws TransactionAbortedException {
+        Mode mode = Mode.S;
+        for (RecordId rid : tuples) {
+            if (holds(tid, rid) == Mode.X)
+                mode = Mode.X;
+        }
+        if (!acquire(tid, pid, mode, false))
+            return; // others work on the page: keep the tuple locks
+        Held h = heldBy(tid);
+        synchronized (h) {
+            h.tuples.remove(pid);
+        }
+        for (RecordId rid : tuples)
+            release(tid, rid);
+    }
+
+    /** @return true if tid holds a lock on the parent that covers children locked in mode */
+    private boolean covered(TransactionId tid, Object parent, Mode mode) {
+        Mode m = holds(tid, parent);
+        return m != null && m.coversChildren(mode);
+    }
+
+    /**
+     * Acquire or convert the lock of tid on an object.
+     *
+     * @param wait false to give up rather than wait for other holders
+     * @return true if the lock is held, false if wait is false and it is not
+     * @throws TransactionAbortedException if tid was picked as the victim
+     *         of a deadlock, or waited too long
+     */
+    boolean acquire(TransactionId tid, Object key, Mode mode, boolean wait)
+        throws TransactionAbortedException {
+        Mode current = holds(tid, key);
+        if (current != null && current.covers(mode))
+            return true;
+        long deadline = deadline();
+        try {
+            while (true) {
+                Lock lock = locks.get(key);
+                if (lock == null) {
+                    lock = new Lock();
+                    Lock raced = locks.putIfAbsent(key, lock);
+                    if (raced != null)
+                        lock = raced;
+                }
+                Set<TransactionId> blockers;
+                synchronized (lock) {
+                    if (lock.retired)
+                        continue;
+                    Mode had = lock.holders.get(tid);
+                    Mode want = had == null ? mode : had.join(mode);
+                    blockers = lock.blockers(tid, want);
+                    if (blockers.isEmpty()) {
+                        lock.holders.put(tid, want);
+                        heldBy(tid).modes.put(key, want);
+                        return true;
+                    }
+                    if (!wait)
+                        return false;
+                    if (mayWait(tid, lock, blockers)) {
+                        awaitRelease(lock, deadline);
+                        continue;
+                    }
+                }
+                // outside the lock, so the graph never nests lock monitors
+                blocked(tid, lock, blockers);
+            }
+        } finally {
+            if (wait)
+                notWaiting(tid);
+        }
+    }
+
+    /** @return the time a wait starting now times out at, or 0 for none */
+    private long deadline() {
+        long timeout = timeoutMillis;
+        if (timeout <= 0)
+            return 0;
+        synchronized (random) {
+            return System.currentTimeMillis() + timeout
+                + (long) (random.nextDouble() * timeout);
+        }
+    }
+
+    /**
+     * Wait on a lock until it is released or converted. The caller holds
+     * the monitor of the lock.
+     */
+    private void awaitRelease(Lock lock, long deadline)
+        throws TransactionAbortedException {
+        lock.waiters++;
+        try {
+            if (deadline == 0) {
+                lock.wait();
+            } else {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    throw abort(AbortCause.TIMEOUT);
+                lock.wait(left);
+            }
+        } catch (InterruptedException e) {
+            throw abort(AbortCause.INTERRUPTED);
+        } finally {
+            lock.waiters--;
+        }
+    }
+
+    /** @return the exception aborting a transaction for the cause, after counting it */
+    private TransactionAbortedException abort(AbortCause cause) {
+        aborts[cause.ordinal()].incrementAndGet();
+        return new TransactionAbortedException();
+    }
+
+    /**
+     * Check whether tid may wait on a lock for the blockers: the wait-for
+     * graph already has these edges and no cycle. The lock is then the one
+     * a deadlock wakes tid up on; the edges may have been recorded with an
+     * older Lock of the same object, retired since. The caller holds the
+     * monitor of the lock, so a victim is picked either before this check
+     * or after tid waits, when the wake-up finds it.
+     *
+     * @throws TransactionAbortedException if tid was picked as a victim
+     */
+    private boolean mayWait(TransactionId tid, Lock lock, Set<TransactionId> blockers)
+        throws TransactionAbortedException {
+        synchronized (waitsFor) {
+            if (victims.contains(tid))
+                throw abort(AbortCause.DEADLOCK);
+            if (!blockers.equals(waitsFor.get(tid)))
+                return false;
+            waitingOn.put(tid, lock);
+            return true;
+        }
+    }
+
+    /**
+     * Record in the wait-for graph that tid waits on a lock for the
+     * blockers, and break any deadlock this closes by picking a victim. A
+     * victim other than tid is woken up to abort.
+     *
+     * @throws TransactionAbortedException if tid was picked as a victim
+     */
+    private void blocked(TransactionId tid, Lock lock, Set<TransactionId> blockers)
+        throws TransactionAbortedException {
+        Lock victimLock;
+        synchronized (waitsFor) {
+            if (victims.contains(tid))
+                throw abort(AbortCause.DEADLOCK);
+            waitsFor.put(tid, blockers);
+            waitingOn.put(tid, lock);
+            List<TransactionId> cycle = findCycle(tid, tid, new HashSet<TransactionId>());
+            if (cycle == null)
+                return;
+            deadlocks.incrementAndGet();
+            TransactionId victim = chooseVictim(cycle);
+            Debug.log(1, "LockManager: deadlock %s, aborting %s", cycle, victim);
+            if (victim.equals(tid))
+                throw abort(AbortCause.DEADLOCK);
+            victims.add(victim);
+            waitsFor.remove(victim);
+            victimLock = waitingOn.get(victim);
+        }
+        if (victimLock != null) {
+            synchronized (victimLock) {
+                victimLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Find a path in the wait-for graph from a transaction back to the
+     * start. The caller holds the monitor of the graph.
+     *
+     * @return the transactions on the path, the start first, or null
+     */
+    private List<TransactionId> findCycle(TransactionId start, TransactionId from,
+                                          Set<TransactionId> visited) {
+        Set<TransactionId> next = waitsFor.get(from);
+        if (next == null)
+            return null;
+        for (TransactionId t : next) {
+            List<TransactionId> path = null;
+            if (t.equals(start)) {
+                path = new ArrayList<TransactionId>();
+            } else if (visited.add(t)) {
+                path = findCycle(start, t, visited);
+            }
+            if (path != null) {
+                path.add(0, from);
+                return path;
+            }
+        }
+        return null;
+    }
+
+    /** @return the transaction of a deadlock to abort, by the victim policy */
+    private TransactionId chooseVictim(List<TransactionId> cycle) {
+        TransactionId victim = null;
+        long victimCost = 0;
+        for (TransactionId t : cycle) {
+            long cost;
+            switch (victimPolicy) {
+            case FEWEST_LOCKS:
+                cost = numLocks(t);
+                break;
+            case LEAST_LOG:
+                cost = Database.getLogFile().logBytes(t);
+                break;
+            default:
+                cost = 0;
+            }
+            // ties go to the youngest transaction
+            if (victim == null || cost < victimCost
+                    || (cost == victimCost && t.getId() > victim.getId())) {
+                victim = t;
+                victimCost = cost;
+            }
+        }
+        return victim;
+    }
+
+    /** Take tid out of the wait-for graph once it stops waiting. */
+    private void notWaiting(TransactionId tid) {
+        synchronized (waitsFor) {
+            waitsFor.remove(tid);
+            waitingOn.remove(tid);
+            victims.remove(tid);
+        }
+    }
+
+    /** @return the locks of tid, creating them if needed */
+    private Held heldBy(TransactionId tid) {
+        Held h = held.get(tid);
+        if (h == null) {
+            h = new Held();
+            Held raced = held.putIfAbsent(tid, h);
+            if (raced != null)
+                h = raced;
+        }
+        return h;
+    }
+
+    /**
+     * @return the mode tid holds the lock on the object in (a TableKey,
+     *         PageId or RecordId), or null if it holds none
+     */
+    public Mode holds(TransactionId tid, Object key) {
+        Held h = held.get(tid);
+        return h == null ? null : h.modes.get(key);
+    }
+
+    /** @return the mode tid holds the lock on a table in, or null */
+    public Mode holdsTable(TransactionId tid, int tableId) {
+        return holds(tid, new TableKey(tableId));
+    }
+
+    /**
+     * Release the lock of tid on an object, leaving the locks above and
+     * below it alone.
+     */
+    public void release(TransactionId tid, Object key) {
+        Held h = held.get(tid);
+        if (h != null) {
+            h.modes.remove(key);
+            if (key instanceof RecordId) {
+                synchronized (h) {
+                    Set<RecordId> onPage = h.tuples.get(((RecordId) key).getPageId());
+                    if (onPage != null)
+                        onPage.remove(key);
+                }
+            }
+        }
+        unlock(tid, key);
+    }
+
+    /** Release every lock of tid, e.g. when it commits or aborts. */
+    public void releaseAll(TransactionId tid) {
+        Held h = held.remove(tid);
+        if (h == null)
+            return;
+        // children first, so nobody sees a child lock without its parent
+        ArrayList<Object> keys = new ArrayList<Object>(h.modes.keySet());
+        for (Object key : keys) {
+            if (key instanceof RecordId)
+                unlock(tid, key);
+        }
+        for (Object key : keys) {
+            if (key instanceof PageId)
+                unlock(tid, key);
+        }
+        for (Object key : keys) {
+            if (key instanceof TableKey)
+                unlock(tid, key);
+        }
+    }
+
+    private void unlock(TransactionId tid, Object key) {
+        Lock lock = locks.get(key);
+        if (lock == null)
+            return;
+        synchronized (lock) {
+            if (lock.holders.remove(tid) == null)
+                return;
+            if (lock.holders.isEmpty() && lock.waiters == 0) {
+                lock.retired = true;
+                locks.remove(key, lock);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /** @return the number of objects tid holds a lock on */
+    public int numLocks(TransactionId tid) {
+        Held h = held.get(tid);
+        return h == null ? 0 : h.modes.size();
+    }
+}
@@ -2,8 +2,20 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -15,12 +27,14 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
+writes from happening); BufferPool locks the page table stripe of a
+page while flushing it.  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
 pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+that reason BufferPool takes the LogFile lock before any stripe lock,
+and any LogFile operation that needs to access the BufferPool
+must not be declared synchronized and must begin with a block like
+the following (checkpoints are fuzzy and do not need the BufferPool):
 
 <p>
 <pre>
@@ -32,6 +46,36 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p> <u> Group commit: </u>
+<p>
+
+logCommit does not force the log while holding the LogFile lock.  The
+first committing thread that finds no force in progress becomes the
+leader: it waits for the group commit window (when other transactions
+are running and could join), then forces everything appended so far,
+covering the COMMIT records of every thread that arrived meanwhile.
+Threads whose commit is covered by a force in progress wait for it
+instead of forcing again.
+
+<p> <u> Checkpoints and recovery: </u>
+<p>
+
+Checkpoints are fuzzy: they do not flush the BufferPool or stop other
+transactions.  A checkpoint records the active transactions with their
+first log record, and the dirty page table: each page whose logged
+changes may not be on disk yet, with the offset of the first such record
+(its recLSN).  The BufferPool reports page writes with pageWritten().
+Recovery redoes the updates of committed transactions starting at the
+smallest recLSN of the last checkpoint (or at the checkpoint, if no page
+was dirty), then undoes the updates of transactions that neither
+committed nor aborted, newest first, and logs an ABORT for each of them.
+Records only depend on earlier records of the same page, so the pages are
+split among several threads by PageId: each thread streams the log and
+redoes and undoes the records of its pages in log order. Only a bounded
+number of pages stay in memory per thread; the others are written back as
+the thread goes, so recovery does not need memory in proportion to the
+log or to the pages it touched.
 */
 
 /**
@@ -43,29 +87,51 @@ must not be declared synchronized and must begin with a block like:
 last written checkpoint, or -1 if there are no checkpoints
 
 <li> All additional data in the log consists of log records.  Log
-records are variable length.
+records are variable length, and each is written with a single write.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id and the integer length of the record body, followed by
+the body.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with the integer CRC32 of everything before it
+in the record, and a long integer file offset representing the position
+in the log file where the record began.  Reading the log stops at the
+first record that is incomplete or fails its CRC check.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, UPDATE_DELTA,
+BEGIN, and CHECKPOINT
 
-<li> ABORT, COMMIT, and BEGIN records contain no additional data
+<li> ABORT, COMMIT, and BEGIN records have an empty body
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
+<li>The body of UPDATE RECORDS consists of two entries, a before image and
+an after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
-
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+methods.  A serialized page is a byte page type tag, a byte page id type
+tag, a byte count of page id integers, the page id integers (see
+PageId.serialize()), and the integer length and bytes of the page data.
+Page and page id classes are identified by the tags they were registered
+with (see LogFile.registerPageType() and LogFile.registerPageIdType()), so
+no class name is written and no reflection is needed to read a page back.
+
+<li>UPDATE_DELTA records replace UPDATE records for small changes to
+HeapPages and BTreeLeafPages, such as a tuple insert or delete.  The body
+is the page type tag, page id type tag, count and integers of the page id,
+as for a serialized page, followed by a PageDelta: the byte ranges of the
+page that changed, with their contents before and after the change.
+Bigger changes, such as a B+ tree page split, and other page types are
+logged with full UPDATE records.  The slots a transaction changed under
+tuple locks on a page other transactions change too are always logged as
+a delta, since a delta only touches the bits that transaction changed.
+
+<li> The body of CHECKPOINT records consists of active transactions at the
+time the checkpoint was taken and their first log record on disk,
+followed by the dirty page table.  The format of the body is an integer
+count of the number of transactions, as well as a long integer
+transaction id and a long integer first record offset for each active
+transaction, then an integer count of the number of dirty pages, as well
+as a page id (id type tag, count and integers, as for a serialized page)
+and the long integer offset of its first unwritten update for each dirty
+page.
 
 </ul>
 
@@ -82,16 +148,172 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int UPDATE_DELTA_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /**
+     * A change is logged as a delta only if it covers at most this fraction
+     * of the page; larger changes are structural and get full images.
+     */
+    private static final int MAX_DELTA_FRACTION = 4;
+
+    /** Default number of threads replaying the log in recover(). */
+    public static final int DEFAULT_RECOVERY_THREADS =
+        Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
+    private volatile int recoveryThreads = DEFAULT_RECOVERY_THREADS;
+
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    /** Bytes logged by each active transaction; written under this. */
+    private final ConcurrentHashMap<Long,Long> tidToLogBytes = new ConcurrentHashMap<Long,Long>();
+
+    /**
+     * The dirty page table: for each page with logged changes that may not
+     * be on disk yet, the LSNs of the first (recLSN) and last of these
+     * changes. Protected by this.
+     */
+    private final HashMap<PageId,long[]> dirtyPages = new HashMap<PageId,long[]>();
+
+    /**
+     * An LSN is the offset of a record plus this base, which grows when the
+     * log is truncated so that LSNs handed out before stay comparable.
+     * Protected by this.
+     */
+    private long lsnBase = 0;
+
+    /** Creates a PageId of a registered class from its serialized integers. */
+    public interface PageIdFactory {
+        PageId create(int[] data);
+    }
+
+    /** Creates a page of a registered class from its id and page data. */
+    public interface PageFactory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    private static final Map<Class<?>, Integer> pageIdTags = new HashMap<Class<?>, Integer>();
+    private static final PageIdFactory[] pageIdFactories = new PageIdFactory[256];
+    private static final Map<Class<?>, Integer> pageTags = new HashMap<Class<?>, Integer>();
+    private static final PageFactory[] pageFactories = new PageFactory[256];
+
+    static {
+        registerPageIdType(1, HeapPageId.class, new PageIdFactory() {
+            public PageId create(int[] data) {
+                return new HeapPageId(data[0], data[1]);
+            }
+        });
+        registerPageIdType(2, BTreePageId.class, new PageIdFactory() {
+            public PageId create(int[] data) {
+                return new BTreePageId(data[0], data[1], data[2]);
+            }
+        });
+
+        registerPageType(1, HeapPage.class, new PageFactory() {
+            public Page create(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        });
+        registerPageType(2, BTreeRootPtrPage.class, new PageFactory() {
+            public Page create(PageId pid, byte[] data) throws IOException {
+                return new BTreeRootPtrPage((BTreePageId) pid, data);
+            }
+        });
+        registerPageType(3, BTreeInternalPage.class, new PageFactory() {
+            public Page create(PageId pid, byte[] data) throws IOException {
+                return new BTreeInternalPage((BTreePageId) pid, data, keyFields(pid));
+            }
+        });
+        registerPageType(4, BTreeLeafPage.class, new PageFactory() {
+            public Page create(PageId pid, byte[] data) throws IOException {
+                return new BTreeLeafPage((BTreePageId) pid, data, keyFields(pid));
+            }
+        });
+        registerPageType(5, BTreeHeaderPage.class, new PageFactory() {
+            public Page create(PageId pid, byte[] data) throws IOException {
+                return new BTreeHeaderPage((BTreePageId) pid, data);
+            }
+        });
+    }
+
+    /** @return the key fields of the B+ tree the page belongs to */
+    private static int[] keyFields(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyFields();
+    }
+
+    /**
+     * Register the tag that identifies a PageId class in the log.
+     *
+     * @param tag a tag from 1 to 255 not used by another PageId class
+     * @param idClass the PageId class
+     * @param factory creates ids of the class from their serialized form
+     */
+    public static synchronized void registerPageIdType(int tag,
+            Class<? extends PageId> idClass, PageIdFactory factory) {
+        checkTag(tag, pageIdFactories, pageIdTags, idClass);
+        pageIdTags.put(idClass, tag);
+        pageIdFactories[tag] = factory;
+    }
+
+    /**
+     * Register the tag that identifies a Page class in the log.
+     *
+     * @param tag a tag from 1 to 255 not used by another Page class
+     * @param pageClass the Page class
+     * @param factory creates pages of the class from their id and data
+     */
+    public static synchronized void registerPageType(int tag,
+            Class<? extends Page> pageClass, PageFactory factory) {
+        checkTag(tag, pageFactories, pageTags, pageClass);
+        pageTags.put(pageClass, tag);
+        pageFactories[tag] = factory;
+    }
+
+    private static void checkTag(int tag, Object[] factories, Map<Class<?>, Integer> tags,
+            Class<?> c) {
+        if (tag < 1 || tag >= factories.length)
+            throw new IllegalArgumentException("log type tag out of range: " + tag);
+        if (factories[tag] != null && !Integer.valueOf(tag).equals(tags.get(c)))
+            throw new IllegalArgumentException("log type tag " + tag + " is already used");
+    }
+
+    private static synchronized int tagOf(Map<Class<?>, Integer> tags, Class<?> c)
+            throws IOException {
+        Integer tag = tags.get(c);
+        if (tag == null)
+            throw new IOException("no log type registered for " + c.getName());
+        return tag;
+    }
+
+    private static synchronized PageIdFactory pageIdFactory(int tag) throws IOException {
+        if (pageIdFactories[tag] == null)
+            throw new IOException("unknown page id type tag " + tag);
+        return pageIdFactories[tag];
+    }
+
+    private static synchronized PageFactory pageFactory(int tag) throws IOException {
+        if (pageFactories[tag] == null)
+            throw new IOException("unknown page type tag " + tag);
+        return pageFactories[tag];
+    }
+
+    /** Default time a group commit leader waits for more commits to join. */
+    public static final long DEFAULT_GROUP_COMMIT_WINDOW_MICROS = 200;
+
+    private volatile long groupCommitWindowMicros = DEFAULT_GROUP_COMMIT_WINDOW_MICROS;
+
+    long commitsAppended = 0; // protected by this
+    private long commitsDurable = 0; // protected by forceLock
+    private boolean forcing = false; // protected by forceLock
+    private final Object forceLock = new Object();
+    private final AtomicLong numForces = new AtomicLong(0);
+    /** Serializes checkpoints and truncations; appends never take it. */
+    private final Object truncateLock = new Object();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -138,6 +360,33 @@ public class LogFile {
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    private static final byte[] EMPTY_BODY = new byte[0];
+
+    /**
+     * Append a record at the end of the log with a single write. The caller
+     * holds the lock on this LogFile and has called preAppend().
+     *
+     * @return the offset the record starts at
+     */
+    private long appendRecord(int type, long tid, byte[] body) throws IOException {
+        long start = currentOffset;
+        raf.write(LogRecord.encode(type, tid, body, start));
+        currentOffset = raf.getFilePointer();
+        Long logged = tidToLogBytes.get(tid);
+        if (logged != null || tidToFirstLogRecord.containsKey(tid))
+            tidToLogBytes.put(tid, (logged == null ? 0 : logged) + currentOffset - start);
+        return start;
+    }
+
+    /**
+     * @return the number of bytes the specified transaction has logged
+     *         since it began, or 0 if it is not active
+     */
+    public long logBytes(TransactionId tid) {
+        Long logged = tidToLogBytes.get(tid.getId());
+        return logged == null ? 0 : logged;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -158,12 +407,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                appendRecord(ABORT_RECORD, tid.getId(), EMPTY_BODY);
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLogBytes.remove(tid.getId());
             }
         }
     }
@@ -173,17 +420,119 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long commitNo;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            appendRecord(COMMIT_RECORD, tid.getId(), EMPTY_BODY);
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLogBytes.remove(tid.getId());
+            commitNo = ++commitsAppended;
+        }
+        awaitCommitForced(commitNo);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Return once the log is forced past the specified COMMIT record,
+     * forcing it (as the leader of a group commit) if no force in progress
+     * covers it.
+     */
+    private void awaitCommitForced(long commitNo) throws IOException {
+        boolean interrupted = false;
+        try {
+            synchronized (forceLock) {
+                while (commitsDurable < commitNo && forcing) {
+                    try {
+                        forceLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (commitsDurable >= commitNo)
+                    return;
+                forcing = true;
+            }
+
+            try {
+                long window = groupCommitWindowMicros;
+                if (window > 0 && hasActiveTransactions())
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(window));
+                // the force itself runs without the LogFile lock, so
+                // threads keep appending (and joining the next group)
+                long covered;
+                while (true) {
+                    FileChannel channel;
+                    synchronized (this) {
+                        covered = commitsAppended;
+                        channel = raf.getChannel();
+                    }
+                    try {
+                        channel.force(true);
+                        numForces.incrementAndGet();
+                        break;
+                    } catch (ClosedByInterruptException e) {
+                        throw e;
+                    } catch (ClosedChannelException e) {
+                        // the log was truncated into a new file meanwhile
+                    }
+                }
+                synchronized (forceLock) {
+                    commitsDurable = Math.max(commitsDurable, covered);
+                }
+            } finally {
+                synchronized (forceLock) {
+                    forcing = false;
+                    forceLock.notifyAll();
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized boolean hasActiveTransactions() {
+        return !tidToFirstLogRecord.isEmpty();
+    }
+
+    /**
+     * @return true if a BEGIN record was logged for the transaction and it
+     *         has not committed or aborted yet
+     */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
+    /**
+     * Set how long the leader of a group commit waits for other commits to
+     * join its force, when other transactions are running. 0 forces right
+     * away; commits arriving during a force are still grouped.
+     *
+     * @param micros the window in microseconds
+     */
+    public void setGroupCommitWindow(long micros) {
+        if (micros < 0)
+            throw new IllegalArgumentException("negative group commit window");
+        groupCommitWindowMicros = micros;
+    }
+
+    /**
+     * Set the number of threads recover() replays the log with.
+     *
+     * @param n the number of threads, 1 to replay on the calling thread
+     */
+    public void setRecoveryThreads(int n) {
+        if (n < 1)
+            throw new IllegalArgumentException("need at least one recovery thread");
+        recoveryThreads = n;
+    }
+
+    /** @return the number of times the log was forced to disk */
+    public long getNumForces() {
+        return numForces.get();
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -191,108 +540,196 @@ public class LogFile {
         @param tid The transaction performing the write
         @param before The before image of the page
         @param after The after image of the page
+        @return the LSN of the record; pass it to pageWritten() once the
+            after image is on disk
 
         @see simpledb.Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public  synchronized long logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
+        return logWrite(tid, before, after, false);
+    }
+
+    /** Write an UPDATE or UPDATE_DELTA record for the specified tid and
+        page, like logWrite(tid, before, after).
+        @param deltaOnly true to log a delta however much changed, e.g. for
+            the slots one transaction changed on a page other transactions
+            change too: their slots are not in the images, and a full image
+            would overwrite them on redo or undo
+    */
+    synchronized long logWrite(TransactionId tid, Page before, Page after,
+                               boolean deltaOnly)
+        throws IOException  {
         Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
-        /* update record conists of
+        byte[] beforeData = before.getPageData();
+        if (isDeltaLogged(after) && after.getId().equals(before.getId())) {
+            PageDelta delta = PageDelta.diff(beforeData, after.getPageData());
+            if (delta != null && (deltaOnly
+                    || delta.changedBytes() <= beforeData.length / MAX_DELTA_FRACTION)) {
+                /* update delta record body consists of
+
+                   page type and id (see writePageId)
+                   page delta (see PageDelta.write)
+                */
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(body);
+                writePageId(out, after);
+                delta.write(out);
+                out.flush();
+                long start = appendRecord(UPDATE_DELTA_RECORD, tid.getId(), body.toByteArray());
+                Debug.log("WRITE OFFSET = " + currentOffset);
+                return pageUpdated(after.getId(), start);
+            }
+        }
+
+        /* update record body consists of
 
-           record type
-           transaction id
            before page data (see writePageData)
            after page data
-           start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        ByteArrayOutputStream body = new ByteArrayOutputStream(
+                2 * (beforeData.length + 32));
+        DataOutputStream out = new DataOutputStream(body);
+        writePageData(out, before);
+        writePageData(out, after);
+        out.flush();
+        long start = appendRecord(UPDATE_RECORD, tid.getId(), body.toByteArray());
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return pageUpdated(after.getId(), start);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /**
+     * Enter an update record at the specified offset in the dirty page
+     * table.
+     *
+     * @return the LSN of the record
+     */
+    private long pageUpdated(PageId pid, long offset) {
+        long lsn = offset + lsnBase;
+        long[] lsns = dirtyPages.get(pid);
+        if (lsns == null)
+            dirtyPages.put(pid, new long[] {lsn, lsn});
+        else
+            lsns[1] = lsn;
+        return lsn;
+    }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /**
+     * Record that a version of a page with every change up to the specified
+     * LSN is on disk. The page leaves the dirty page table unless it was
+     * updated again since.
+     *
+     * @param pid the page written
+     * @param lsn the LSN returned by logWrite() for the version written
+     */
+    public synchronized void pageWritten(PageId pid, long lsn) {
+        long[] lsns = dirtyPages.get(pid);
+        if (lsns != null && lsns[1] <= lsn)
+            dirtyPages.remove(pid);
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    /** @return true if small changes to the page are logged as deltas */
+    private static boolean isDeltaLogged(Page p) {
+        return p instanceof HeapPage || p instanceof BTreeLeafPage;
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    void writePageData(DataOutput out, Page p) throws IOException{
+        //page data is:
+        // page type and id (see writePageId)
+        // page data length
+        // page data
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        writePageId(out, p);
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        out.writeInt(pageData.length);
+        out.write(pageData);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    Page readPageData(DataInput in) throws IOException {
+        PageFactory pageFactory = pageFactory(in.readUnsignedByte());
+        PageId pid = readId(in);
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        int pageSize = in.readInt();
+        byte[] pageData = new byte[pageSize];
+        in.readFully(pageData);
+        return pageFactory.create(pid, pageData);
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /**
+     * Write the type and id of a page: the page type tag, the id type tag,
+     * the number of id integers and the id integers.
+     */
+    private void writePageId(DataOutput out, Page p) throws IOException {
+        out.writeByte(tagOf(pageTags, p.getClass()));
+        writeId(out, p.getId());
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** Write a page id: its type tag, number of integers and integers. */
+    private void writeId(DataOutput out, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+        out.writeByte(tagOf(pageIdTags, pid.getClass()));
+        out.writeByte(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Read a page id written by writeId. */
+    private PageId readId(DataInput in) throws IOException {
+        PageIdFactory idFactory = pageIdFactory(in.readUnsignedByte());
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+        int numIdArgs = in.readUnsignedByte();
+        int idArgs[] = new int[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = in.readInt();
         }
-        return newPage;
+        return idFactory.create(idArgs);
+    }
+
+    /**
+     * Read the body of an UPDATE_DELTA record and apply it to a page.
+     *
+     * @param in the record body
+     * @param undo true to undo the change, false to redo it
+     * @param current the page to apply it to, or null for the page as it
+     *        is on disk
+     * @return the page with the change undone or redone
+     */
+    Page readPageDelta(DataInput in, boolean undo, Page current) throws IOException {
+        PageFactory pageFactory = pageFactory(in.readUnsignedByte());
+        PageId pid = readId(in);
+        PageDelta delta = PageDelta.read(in);
+
+        if (current == null)
+            current = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        byte[] pageData = current.getPageData();
+        delta.apply(pageData, undo);
+        return pageFactory.create(pid, pageData);
+    }
 
+    /**
+     * @param current the page to apply a delta to, or null for the page as
+     *        it is on disk
+     * @return the page an UPDATE or UPDATE_DELTA record changes, as it was
+     *         before (undo) or after (redo) the change
+     */
+    Page readUpdate(LogRecord r, boolean undo, Page current) throws IOException {
+        DataInputStream in = r.bodyStream();
+        if (r.type == UPDATE_DELTA_RECORD)
+            return readPageDelta(in, undo, current);
+        Page before = readPageData(in);
+        return undo ? before : readPageData(in);
+    }
+
+    /** @return the page an UPDATE or UPDATE_DELTA record changes */
+    private PageId updatedPage(LogRecord r) throws IOException {
+        DataInputStream in = r.bodyStream();
+        in.readUnsignedByte(); // page type
+        return readId(in);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,150 +744,209 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        long start = appendRecord(BEGIN_RECORD, tid.getId(), EMPTY_BODY);
+        tidToFirstLogRecord.put(tid.getId(), start);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it records the active transactions and the
+        dirty page table without flushing pages, so other transactions
+        keep running.  The record is forced, and the log truncated,
+        without holding the LogFile lock.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        synchronized (truncateLock) {
+            long startCpOffset;
+            FileChannel channel;
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
+                //write list of outstanding transactions and dirty pages
+                Map<PageId,Long> recOffsets = new LinkedHashMap<PageId,Long>();
+                for (Map.Entry<PageId,long[]> e : dirtyPages.entrySet())
+                    recOffsets.put(e.getKey(), e.getValue()[0] - lsnBase);
+                byte[] body = checkpointBody(tidToFirstLogRecord, recOffsets);
+                //no tid , but leave space for convenience
+                startCpOffset = appendRecord(CHECKPOINT_RECORD, -1, body);
+                channel = raf.getChannel();
+            }
+            channel.force(true);
+            numForces.incrementAndGet();
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            synchronized (this) {
                 raf.seek(0);
                 raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                raf.seek(currentOffset);
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
+
+            logTruncate();
         }
+    }
 
-        logTruncate();
+    /** @return the body of a CHECKPOINT record with the specified
+        active transactions and dirty pages (as offsets) */
+    private byte[] checkpointBody(Map<Long,Long> transactions,
+                                  Map<PageId,Long> recOffsets)
+        throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(transactions.size());
+        for (Map.Entry<Long,Long> e : transactions.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+        }
+        out.writeInt(recOffsets.size());
+        for (Map.Entry<PageId,Long> e : recOffsets.entrySet()) {
+            writeId(out, e.getKey());
+            out.writeLong(e.getValue());
+        }
+        out.flush();
+        return body.toByteArray();
     }
 
-    /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
+    /** Read the active transactions and dirty pages of a CHECKPOINT
+        record into the specified maps */
+    private void readCheckpoint(LogRecord cp, Map<Long,Long> transactions,
+                                Map<PageId,Long> recOffsets)
+        throws IOException {
+        DataInputStream in = cp.bodyStream();
+        int numOutstanding = in.readInt();
+        for (int i = 0; i < numOutstanding; i++) {
+            long tid = in.readLong();
+            transactions.put(tid, in.readLong());
+        }
+        int numDirty = in.readInt();
+        for (int i = 0; i < numDirty; i++) {
+            PageId pid = readId(in);
+            recOffsets.put(pid, in.readLong());
+        }
+    }
 
-        long minLogRecord = cpLoc;
+    /** @return the checkpoint record at the specified offset */
+    private LogRecord readCheckpointRecord(long cpLoc) throws IOException {
+        LogRecord.Reader cpReader = new LogRecord.Reader(logFile, cpLoc);
+        LogRecord cp;
+        try {
+            cp = cpReader.next();
+        } finally {
+            cpReader.close();
+        }
 
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
+        if (cp == null || cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        return cp;
+    }
 
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+    /** Truncate any unneeded portion of the log to reduce its space
+        consumption.  The records to keep are copied to a new file
+        without holding the LogFile lock, so transactions keep logging
+        meanwhile; only the records they appended during the copy are
+        copied under the lock, right before the new file replaces the
+        old one. */
+    public void logTruncate() throws IOException {
+        synchronized (truncateLock) {
+            long cpLoc, copied;
+            synchronized (this) {
+                preAppend();
+                raf.seek(0);
+                cpLoc = raf.readLong();
+                raf.seek(currentOffset);
+                copied = currentOffset;
             }
+            if (cpLoc == -1L)
+                return; // without a checkpoint every record may be needed
 
-            int numOutstanding = raf.readInt();
+            Map<Long,Long> transactions = new HashMap<Long,Long>();
+            Map<PageId,Long> recOffsets = new HashMap<PageId,Long>();
+            readCheckpoint(readCheckpointRecord(cpLoc), transactions, recOffsets);
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
+            // keep the first records of active transactions and the first
+            // unwritten updates of dirty pages
+            long minLogRecord = cpLoc;
+            for (long firstLogRecord : transactions.values()) {
                 if (firstLogRecord < minLogRecord) {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
+            for (long recOffset : recOffsets.values()) {
+                if (recOffset < minLogRecord) {
+                    minLogRecord = recOffset;
+                }
+            }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
+            // we can truncate everything before minLogRecord
+            long shift = minLogRecord - LONG_SIZE;
+            File newFile = new File("logtmp" + System.currentTimeMillis());
+            RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+                logNew.seek(0);
+                logNew.writeLong(cpLoc - shift);
+                BufferedOutputStream out = new BufferedOutputStream(
+                        new FileOutputStream(logNew.getFD()), 1 << 16);
+                copyRecords(minLogRecord, copied, shift, out);
+
+                synchronized (this) {
+                    copyRecords(copied, currentOffset, shift, out);
+                    out.flush();
+                    logNew.getChannel().force(true);
+
+                    Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+
+                    logNew.close();
+                    logNew = null;
+                    raf.close();
+                    logFile.delete();
+                    newFile.renameTo(logFile);
+                    raf = new RandomAccessFile(logFile, "rw");
+                    raf.seek(raf.length());
+                    currentOffset = raf.getFilePointer();
+                    for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet())
+                        e.setValue(e.getValue() - shift);
+                    lsnBase += shift;
+                }
+            } finally {
+                if (logNew != null) {
+                    logNew.close();
+                    newFile.delete();
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
+            //print();
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** Copy the records between two offsets of the log to a new log that
+        starts shift bytes earlier; record bodies are copied without being
+        decoded, except for the offsets in CHECKPOINT records */
+    private void copyRecords(long from, long to, long shift, OutputStream out)
+        throws IOException {
+        LogRecord.Reader reader = new LogRecord.Reader(logFile, from, to);
+        try {
+            LogRecord r;
+            while ((r = reader.next()) != null) {
+                byte[] body = r.body;
+                if (r.type == CHECKPOINT_RECORD) {
+                    Map<Long,Long> transactions = new LinkedHashMap<Long,Long>();
+                    Map<PageId,Long> recOffsets = new LinkedHashMap<PageId,Long>();
+                    readCheckpoint(r, transactions, recOffsets);
+                    for (Map.Entry<Long,Long> e : transactions.entrySet())
+                        e.setValue(e.getValue() - shift);
+                    for (Map.Entry<PageId,Long> e : recOffsets.entrySet())
+                        e.setValue(e.getValue() - shift);
+                    body = checkpointBody(transactions, recOffsets);
+                }
+                out.write(LogRecord.encode(r.type, r.tid, body, r.offset - shift));
+            }
+        } finally {
+            reader.close();
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
@@ -467,18 +963,64 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not active");
+
+                ArrayList<LogRecord> updates = new ArrayList<LogRecord>();
+                LogRecord.Reader reader = new LogRecord.Reader(logFile, first);
+                try {
+                    LogRecord r;
+                    while ((r = reader.next()) != null) {
+                        if (r.tid == tid.getId() && isUpdate(r))
+                            updates.add(r);
+                    }
+                } finally {
+                    reader.close();
+                }
+
+                if (updates.isEmpty())
+                    return;
+                // deltas are undone against the pages on disk, so the
+                // committed versions of the pages must be there first
+                Set<PageId> updated = new HashSet<PageId>();
+                for (LogRecord r : updates)
+                    updated.add(updatedPage(r));
+                Database.getBufferPool().getPageCleaner().clean(updated);
+                // the slots other running transactions changed on a page
+                // stay in the BufferPool
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    Page p = readUpdate(updates.get(i), true, null);
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    Database.getBufferPool().pageRolledBack(tid, p.getId());
+                }
             }
         }
     }
 
+    /** @return true for UPDATE and UPDATE_DELTA records */
+    private static boolean isUpdate(LogRecord r) {
+        return r.type == UPDATE_RECORD || r.type == UPDATE_DELTA_RECORD;
+    }
+
+    /** Write a version of a page recovered from the log to disk, and drop
+        any other version from the BufferPool */
+    private void installPage(Page p) throws IOException {
+        PageId pid = p.getId();
+        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+        Database.getBufferPool().discardPage(pid);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -494,10 +1036,216 @@ public class LogFile {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                if (raf.length() < LONG_SIZE) {
+                    // nothing was ever logged
+                    raf.setLength(0);
+                    raf.writeLong(NO_CHECKPOINT_ID);
+                    currentOffset = raf.getFilePointer();
+                    return;
+                }
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+
+                // the last checkpoint tells where redo and undo start
+                Map<Long,Long> active = new HashMap<Long,Long>();
+                Map<PageId,Long> recOffsets = new HashMap<PageId,Long>();
+                long redoStart = LONG_SIZE;
+                long scanStart = LONG_SIZE;
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    readCheckpoint(readCheckpointRecord(cpLoc), active, recOffsets);
+                    redoStart = cpLoc;
+                    for (long recOffset : recOffsets.values())
+                        redoStart = Math.min(redoStart, recOffset);
+                    scanStart = redoStart;
+                    for (long firstLogRecord : active.values())
+                        scanStart = Math.min(scanStart, firstLogRecord);
+                }
+
+                // analysis: find the transactions that committed, aborted,
+                // or neither (the losers)
+                Set<Long> committed = new HashSet<Long>();
+                Set<Long> losers = new HashSet<Long>(active.keySet());
+                LogRecord.Reader reader = new LogRecord.Reader(logFile, scanStart);
+                long end;
+                try {
+                    LogRecord r;
+                    while ((r = reader.next()) != null) {
+                        switch (r.type) {
+                        case BEGIN_RECORD:
+                            losers.add(r.tid);
+                            break;
+                        case COMMIT_RECORD:
+                            committed.add(r.tid);
+                            losers.remove(r.tid);
+                            break;
+                        case ABORT_RECORD:
+                            losers.remove(r.tid);
+                            break;
+                        }
+                    }
+                    end = reader.offset();
+                } finally {
+                    reader.close();
+                }
+
+                // a torn record at the end of the log was never acknowledged
+                raf.setLength(end);
+                raf.seek(end);
+                currentOffset = end;
+
+                // redo: repeat the updates of committed transactions in log
+                // order; undo: take back the updates of losers, newest
+                // first. Each page goes to one thread.
+                replay(new Replay(scanStart, redoStart, end, committed, losers),
+                       recoveryThreads);
+
+                for (Long tid : losers)
+                    appendRecord(ABORT_RECORD, tid, EMPTY_BODY);
+                force();
+
+                tidToFirstLogRecord.clear();
+                tidToLogBytes.clear();
+                dirtyPages.clear();
             }
          }
     }
 
+    /** Most pages a recovery thread keeps in memory while it replays. */
+    static final int REPLAY_CACHE_PAGES = 64;
+
+    /** What recover() found out about the log, for the threads that replay it. */
+    private static class Replay {
+        /** The log records to scan, from the first record of a loser on. */
+        final long scanStart, end;
+        /** The first record that may not be on disk yet. */
+        final long redoStart;
+        final Set<Long> committed, losers;
+
+        Replay(long scanStart, long redoStart, long end,
+               Set<Long> committed, Set<Long> losers) {
+            this.scanStart = scanStart;
+            this.redoStart = redoStart;
+            this.end = end;
+            this.committed = committed;
+            this.losers = losers;
+        }
+    }
+
+    /**
+     * Replay the log on a number of threads, each replaying the pages
+     * whose ids hash to it.
+     */
+    private void replay(final Replay replay, final int numParts) throws IOException {
+        if (numParts == 1) {
+            replayPages(replay, 0, 1);
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numParts,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-recovery");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        try {
+            List<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (int i = 0; i < numParts; i++) {
+                final int part = i;
+                done.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        replayPages(replay, part, numParts);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> f : done) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("recovery interrupted");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Redo and undo the records of one partition of the pages, streaming
+     * them from the log. Redo is applied as the records are read; of the
+     * records to undo only the offsets are kept, to read them back newest
+     * first. At most REPLAY_CACHE_PAGES pages stay in memory: the least
+     * recently replayed one is written to disk to make room, and read back
+     * from there if a later record changes it again.
+     */
+    private void replayPages(Replay replay, int part, int numParts)
+        throws IOException {
+        LinkedHashMap<PageId,Page> pages = new LinkedHashMap<PageId,Page>(16, 0.75f, true);
+        ArrayList<Long> undo = new ArrayList<Long>();
+        LogRecord.Reader reader = new LogRecord.Reader(logFile, replay.scanStart, replay.end);
+        try {
+            LogRecord r;
+            while ((r = reader.next()) != null) {
+                if (!isUpdate(r))
+                    continue;
+                boolean isRedo = r.offset >= replay.redoStart
+                    && replay.committed.contains(r.tid);
+                if (!isRedo && !replay.losers.contains(r.tid))
+                    continue;
+                PageId pid = updatedPage(r);
+                if (Math.floorMod(pid.hashCode(), numParts) != part)
+                    continue;
+                if (isRedo)
+                    replayed(pages, readUpdate(r, false, pages.get(pid)));
+                else
+                    undo.add(r.offset);
+            }
+        } finally {
+            reader.close();
+        }
+        for (int i = undo.size() - 1; i >= 0; i--) {
+            LogRecord r = readRecord(undo.get(i));
+            PageId pid = updatedPage(r);
+            replayed(pages, readUpdate(r, true, pages.get(pid)));
+        }
+        for (Page p : pages.values())
+            installPage(p);
+    }
+
+    /** Keep a replayed page in memory, writing out the least recently
+        replayed one if there are too many */
+    private void replayed(LinkedHashMap<PageId,Page> pages, Page p)
+        throws IOException {
+        pages.put(p.getId(), p);
+        if (pages.size() > REPLAY_CACHE_PAGES) {
+            Iterator<Page> it = pages.values().iterator();
+            Page eldest = it.next();
+            it.remove();
+            installPage(eldest);
+        }
+    }
+
+    /** @return the record at the specified offset of the log */
+    private LogRecord readRecord(long offset) throws IOException {
+        LogRecord.Reader reader = new LogRecord.Reader(logFile, offset);
+        try {
+            LogRecord r = reader.next();
+            if (r == null)
+                throw new IOException("no log record at offset " + offset);
+            return r;
+        } finally {
+            reader.close();
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
@@ -505,6 +1253,7 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        numForces.incrementAndGet();
     }
 
 }
@@ -0,0 +1,138 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * A record of the LogFile, in the binary format described in
+ * {@link LogFile}: an integer type, a long transaction id, an integer body
+ * length, the body, a CRC32 of everything before it, and a long with the
+ * offset the record starts at.
+ * <p>
+ * The body is kept as bytes; it is only decoded (e.g. into page images) by
+ * whoever needs it, so scanning the log does not build pages it skips.
+ */
+class LogRecord {
+
+    /** Bytes before the body: type, transaction id and body length. */
+    static final int HEADER_SIZE = LogFile.INT_SIZE + LogFile.LONG_SIZE + LogFile.INT_SIZE;
+    /** Bytes after the body: CRC and start offset. */
+    static final int TRAILER_SIZE = LogFile.INT_SIZE + LogFile.LONG_SIZE;
+
+    final int type;
+    final long tid;
+    final byte[] body;
+    /** Offset of the record in the log file. */
+    final long offset;
+
+    LogRecord(int type, long tid, byte[] body, long offset) {
+        this.type = type;
+        this.tid = tid;
+        this.body = body;
+        this.offset = offset;
+    }
+
+    /** @return the size of this record in the log */
+    int size() {
+        return HEADER_SIZE + body.length + TRAILER_SIZE;
+    }
+
+    /** @return a stream over the body of this record */
+    DataInputStream bodyStream() {
+        return new DataInputStream(new ByteArrayInputStream(body));
+    }
+
+    /**
+     * @return the bytes of a record with the given contents, starting at
+     *         the given offset of the log
+     */
+    static byte[] encode(int type, long tid, byte[] body, long offset) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + body.length + TRAILER_SIZE);
+        buf.putInt(type).putLong(tid).putInt(body.length).put(body);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue()).putLong(offset);
+        return buf.array();
+    }
+
+    /**
+     * Reads records sequentially from a log file through a buffer. The end
+     * of the log is the end of the file or the first record that is
+     * incomplete or fails its CRC check (e.g. torn by a crash while it was
+     * being written).
+     */
+    static class Reader implements Closeable {
+        private final DataInputStream in;
+        private final long end;
+        private long offset;
+
+        /**
+         * @param f the log file
+         * @param offset the offset of the first record to read
+         */
+        Reader(File f, long offset) throws IOException {
+            this(f, offset, f.length());
+        }
+
+        /**
+         * @param f the log file
+         * @param offset the offset of the first record to read
+         * @param end the offset to stop reading at; records appended past
+         *        it are not read
+         */
+        Reader(File f, long offset, long end) throws IOException {
+            FileInputStream fis = new FileInputStream(f);
+            fis.getChannel().position(offset);
+            this.in = new DataInputStream(new BufferedInputStream(fis, 1 << 16));
+            this.end = end;
+            this.offset = offset;
+        }
+
+        /** @return the offset of the next record */
+        long offset() {
+            return offset;
+        }
+
+        /** @return the next record, or null at the end of the log */
+        LogRecord next() throws IOException {
+            byte[] header = new byte[HEADER_SIZE];
+            if (!readFully(header))
+                return null;
+            ByteBuffer hb = ByteBuffer.wrap(header);
+            int type = hb.getInt();
+            long tid = hb.getLong();
+            int len = hb.getInt();
+            if (len < 0 || offset + HEADER_SIZE + len + TRAILER_SIZE > end)
+                return null;
+            byte[] body = new byte[len];
+            byte[] trailer = new byte[TRAILER_SIZE];
+            if (!readFully(body) || !readFully(trailer))
+                return null;
+
+            CRC32 crc = new CRC32();
+            crc.update(header);
+            crc.update(body);
+            ByteBuffer tb = ByteBuffer.wrap(trailer);
+            if (tb.getInt() != (int) crc.getValue() || tb.getLong() != offset)
+                return null;
+
+            LogRecord r = new LogRecord(type, tid, body, offset);
+            offset += r.size();
+            return r;
+        }
+
+        private boolean readFully(byte[] b) throws IOException {
+            try {
+                in.readFully(b);
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
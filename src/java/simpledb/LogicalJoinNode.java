@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** The cheapest algorithm for the join, recorded by
+     * {@link JoinOptimizer#estimateJoinCost}; null if its cost was not estimated. */
+    public JoinOptimizer.Algorithm algorithm;
+
     public LogicalJoinNode() {
     }
 
@@ -63,6 +67,13 @@ public class LogicalJoinNode {
         return j2;
     }
     
+    /** Return a new LogicalJoinNode for the same join, with the same algorithm. */
+    public LogicalJoinNode copy() {
+        LogicalJoinNode j2 = new LogicalJoinNode(t1Alias,t2Alias,f1PureName,f2PureName, p);
+        j2.algorithm = algorithm;
+        return j2;
+    }
+
     @Override public boolean equals(Object o) {
         LogicalJoinNode j2 =(LogicalJoinNode)o;
         return (j2.t1Alias.equals(t1Alias)  || j2.t1Alias.equals(t2Alias)) && (j2.t2Alias.equals(t1Alias)  || j2.t2Alias.equals(t2Alias));
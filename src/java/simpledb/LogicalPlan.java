@@ -2,7 +2,9 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
@@ -33,8 +35,9 @@ public class LogicalPlan {
     private boolean hasAgg = false;
     private String aggOp;
     private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAscs = new Vector<Boolean>();
     private String query;
 //    private Query owner;
 
@@ -203,16 +206,16 @@ public class LogicalPlan {
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Each call adds
+        a field after those already added, which breaks ties between tuples equal on them.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
@@ -271,6 +274,107 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** Choose how to read a table of the plan.  A secondary index of the table that covers
+     *  every field of it the query reads is scanned instead of the table, so that no page
+     *  of the table is read, when its entries are smaller than the tuples of the table or a
+     *  filter on its first key field narrows the scan.  Otherwise the table is scanned.
+     *  @param t The transaction that the scan will run as a part of
+     *  @param table The table to read
+     *  @return an {@link IndexOnlyScan} or a {@link SeqScan} of the table
+     *  @throws NoSuchElementException if the table is not in the catalog
+     */
+    private OpIterator scanFor(TransactionId t, LogicalScanNode table) throws NoSuchElementException {
+        int tableId = Database.getCatalog().getDatabaseFile(table.t).getId();
+        Set<Integer> used = fieldsUsed(table);
+        if (used != null) {
+            SecondaryIndex best = null;
+            IndexPredicate bestPred = null;
+            for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+                if (!index.covers(used))
+                    continue;
+                IndexPredicate ipred = indexPredicate(table.alias, index);
+                if (best == null || (ipred != null && bestPred == null)
+                        || ((ipred != null) == (bestPred != null) && entrySize(index) < entrySize(best))) {
+                    best = index;
+                    bestPred = ipred;
+                }
+            }
+            if (best != null && (bestPred != null
+                    || entrySize(best) < Database.getCatalog().getTupleDesc(tableId).getSize()))
+                return new IndexOnlyScan(t, best, table.alias, bestPred);
+        }
+        return new SeqScan(t, tableId, table.alias);
+    }
+
+    private static int entrySize(SecondaryIndex index) {
+        return index.getFile().getTupleDesc().getSize();
+    }
+
+    /** @return the indexes of the fields of a table of the plan that the query reads, or
+     *   null if it reads all of them or a field the table does not have
+     */
+    private Set<Integer> fieldsUsed(LogicalScanNode table) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        if (groupByField != null)
+            names.add(groupByField);
+        if (hasAgg)
+            names.add(aggField);
+        if (hasOrderBy)
+            names.addAll(oByFields);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.t1Alias + "." + lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.t2Alias + "." + lj.f2PureName);
+        }
+
+        TupleDesc td = Database.getCatalog().getTupleDesc(table.t);
+        Set<Integer> used = new HashSet<Integer>();
+        for (String name : names) {
+            String[] parts = name.split("[.]");
+            if (parts.length == 2 && parts[1].equals("*"))
+                return null;
+            if (parts.length != 2 || !parts[0].equals(table.alias))
+                continue;
+            try {
+                used.add(td.fieldNameToIndex(parts[1]));
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        }
+        return used;
+    }
+
+    /** @return a predicate on the first key field of an index from a filter of the plan on
+     *   that field of the table, or null if there is no such filter
+     */
+    private IndexPredicate indexPredicate(String alias, SecondaryIndex index) {
+        TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+        int keyField = index.getKeyFields()[0];
+        for (LogicalFilterNode lf : filters) {
+            if (!lf.tableAlias.equals(alias) || lf.p == Predicate.Op.NOT_EQUALS || lf.p == Predicate.Op.LIKE)
+                continue;
+            try {
+                if (td.fieldNameToIndex(lf.fieldPureName) != keyField)
+                    continue;
+                Field f;
+                if (td.getFieldType(keyField) == Type.INT_TYPE)
+                    f = new IntField(Integer.parseInt(lf.c));
+                else
+                    f = new StringField(lf.c, Type.STRING_LEN);
+                return new IndexPredicate(lf.p, f);
+            } catch (NoSuchElementException e) {
+                // not a field of the table; the filter reports it
+            } catch (NumberFormatException e) {
+                // not an integer; the filter reports it
+            }
+        }
+        return null;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -292,9 +396,9 @@ public class LogicalPlan {
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
-            SeqScan ss = null;
+            OpIterator ss = null;
             try {
-                 ss = new SeqScan(t, Database.getCatalog().getDatabaseFile(table.t).getId(), table.alias);
+                 ss = scanFor(t, table);
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
@@ -338,7 +442,10 @@ public class LogicalPlan {
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
-            double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // the statistics are of the fields of the table, which an index
+            // scan may not return in the same order
+            int statsField = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias)).fieldNameToIndex(lf.fieldPureName);
+            double sel= s.estimateSelectivity(statsField, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
@@ -475,7 +582,13 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] fields = new int[oByFields.size()];
+            boolean[] ascs = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                ascs[i] = oByAscs.get(i);
+            }
+            node = new OrderBy(fields, ascs, node);
         }
 
         return new Project(outFields, outTypes, node);
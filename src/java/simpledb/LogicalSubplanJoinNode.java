@@ -38,4 +38,8 @@ public class LogicalSubplanJoinNode extends LogicalJoinNode {
         return j2;
     }
 
+    public LogicalSubplanJoinNode copy() {
+        return swapInnerOuter();
+    }
+
 }
@@ -1,20 +1,31 @@
 package simpledb;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The tuples are ordered on one or more fields, each ascending or
+ * descending, with later fields breaking ties on earlier ones. They are
+ * sorted with an {@link ExternalSort} in a bounded amount of memory, so
+ * results larger than memory are sorted in runs on disk and merged.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default number of pages of memory for the sort. */
+    public static final int DEFAULT_MEMORY_PAGES = 1024;
+
     private OpIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
+    private int[] orderByFields;
+    private boolean[] ascs;
     private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private final int memoryPages;
+    transient private ExternalSort sort = null;
+    transient private DbFileIterator it = null;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,27 +38,83 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator, sorting
+     * on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        this(orderbyFields, asc, child, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Creates a new OrderBy node over the tuples from the iterator, sorting
+     * on several fields in the given amount of memory.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if its sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryPages
+     *            the number of pages of memory the sort may use; at least 3
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child, int memoryPages) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("each order by field needs a sort order");
+        if (memoryPages < 3)
+            throw new IllegalArgumentException("an order by needs at least 3 pages of memory");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.ascs = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderbyFields[0]);
+        this.memoryPages = memoryPages;
     }
     
+    /** @return true if the sort order of the first field is ascending */
     public boolean isASC()
     {
-	return this.asc;
+	return this.ascs[0];
     }
     
+    /** @return the first field to which the sort is applied */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
+
+    /** @return the fields to which the sort is applied, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
+    }
+
+    /** @return for each field, true if its sort order is ascending */
+    public boolean[] getOrderByAsc() {
+        return ascs.clone();
+    }
+
+    /** @return the number of pages of memory the sort may use */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
     
     public TupleDesc getTupleDesc() {
         return td;
@@ -56,21 +123,48 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // feed all the tuples to a sort, which writes them to disk in
+        // sorted runs if they do not fit in memory
+        sort = new ExternalSort(td, new TupleComparator(orderByFields, ascs), memoryPages);
+        boolean done = false;
+        try {
+            while (child.hasNext())
+                sort.add(child.next());
+            it = sort.iterator();
+            it.open();
+            done = true;
+        } catch (IOException e) {
+            throw new DbException("cannot sort: " + e.getMessage());
+        } finally {
+            if (!done) {
+                // drop the runs written so far, whatever went wrong
+                if (it != null) {
+                    it.close();
+                    it = null;
+                }
+                sort.close();
+                sort = null;
+                child.close();
+            }
+        }
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        it.rewind();
     }
 
     /**
@@ -99,25 +193,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PageArena is a preallocated region of direct (off-heap) memory divided into
+ * page sized frames. An off-heap BufferPool reads pages straight into these
+ * frames, so the page images of a large pool are invisible to the garbage
+ * collector.
+ * <p>
+ * The arena is made of several direct buffers of at most 1 GB each, so it can
+ * hold more than the 2 GB a single ByteBuffer can address.
+ *
+ * @Threadsafe
+ */
+public class PageArena {
+
+    /** Largest number of bytes allocated as a single direct buffer. */
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int pageSize;
+    private final int numFrames;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+
+    /** Stack of free frame numbers; protected by this. */
+    private final int[] freeFrames;
+    private int numFree;
+
+    /**
+     * Allocates the direct memory for numFrames frames of pageSize bytes.
+     *
+     * @param numFrames the number of frames in the arena
+     * @param pageSize the size of a frame in bytes
+     */
+    public PageArena(int numFrames, int pageSize) {
+        if (numFrames < 1 || pageSize < 1 || pageSize > MAX_CHUNK_BYTES)
+            throw new IllegalArgumentException("invalid arena size");
+        this.pageSize = pageSize;
+        this.numFrames = numFrames;
+        this.framesPerChunk = Math.min(numFrames, MAX_CHUNK_BYTES / pageSize);
+
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * pageSize);
+        }
+
+        freeFrames = new int[numFrames];
+        for (int i = 0; i < numFrames; i++)
+            freeFrames[i] = numFrames - 1 - i;
+        numFree = numFrames;
+    }
+
+    /** @return the number of frames in this arena */
+    public int numFrames() {
+        return numFrames;
+    }
+
+    /** @return the size of each frame in bytes */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /** @return the number of frames not currently allocated */
+    public synchronized int numFreeFrames() {
+        return numFree;
+    }
+
+    /**
+     * Claim a free frame.
+     *
+     * @return the number of the frame
+     * @throws DbException if every frame is in use
+     */
+    public synchronized int allocate() throws DbException {
+        if (numFree == 0)
+            throw new DbException("no free frame in page arena");
+        return freeFrames[--numFree];
+    }
+
+    /**
+     * Return a frame to the arena. Buffers previously obtained from
+     * {@link #frame} for it must no longer be used.
+     *
+     * @param frame the number of the frame to release
+     */
+    public synchronized void release(int frame) {
+        if (frame < 0 || frame >= numFrames || numFree == numFrames)
+            throw new IllegalArgumentException("frame " + frame + " is not allocated");
+        freeFrames[numFree++] = frame;
+    }
+
+    /**
+     * Returns a view of the specified frame, with position 0 and capacity
+     * equal to the page size.
+     *
+     * @param frame the number of the frame
+     */
+    public ByteBuffer frame(int frame) {
+        if (frame < 0 || frame >= numFrames)
+            throw new IllegalArgumentException("no frame " + frame);
+        ByteBuffer buf = chunks[frame / framesPerChunk].duplicate();
+        int start = (frame % framesPerChunk) * pageSize;
+        buf.limit(start + pageSize);
+        buf.position(start);
+        return buf.slice();
+    }
+}
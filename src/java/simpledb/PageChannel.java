@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * PageChannel keeps a single FileChannel open on the file backing a DbFile
+ * and reads and writes pages with positional I/O. Positional calls do not
+ * share a file pointer, so any number of threads can read and write pages of
+ * the same file at the same time, and no stream is opened per page.
+ * <p>
+ * The channel is opened on first use and stays open until {@link #close},
+ * which the Catalog calls (through the DbFile) when the table is replaced or
+ * removed. If it is closed underneath us (by close, or because a thread
+ * blocked in I/O was interrupted) it is reopened by the next call.
+ *
+ * @Threadsafe
+ */
+class PageChannel {
+
+    private final File f;
+    private volatile FileChannel channel = null;
+
+    /**
+     * @param f the file to read and write; created on first use if it does
+     *        not exist
+     */
+    PageChannel(File f) {
+        this.f = f;
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel c = channel;
+        if (c == null || !c.isOpen()) {
+            synchronized (this) {
+                c = channel;
+                if (c == null || !c.isOpen()) {
+                    RandomAccessFile raf;
+                    try {
+                        raf = new RandomAccessFile(f, "rw");
+                    } catch (FileNotFoundException e) {
+                        // read only tables are fine for reading
+                        if (!f.exists())
+                            throw e;
+                        raf = new RandomAccessFile(f, "r");
+                    }
+                    c = raf.getChannel();
+                    channel = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Read from the file at the given offset until dst is full or the end
+     * of the file is reached. Does not change the file size.
+     *
+     * @return the number of bytes read
+     */
+    int read(ByteBuffer dst, long offset) throws IOException {
+        int start = dst.position();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                FileChannel c = channel();
+                while (dst.hasRemaining()) {
+                    int n = c.read(dst, offset + dst.position() - start);
+                    if (n < 0)
+                        break;
+                }
+                return dst.position() - start;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                // another thread's interrupt closed the channel; reopen once
+                if (attempt > 0)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Write all remaining bytes of src to the file at the given offset,
+     * extending the file if needed.
+     */
+    void write(ByteBuffer src, long offset) throws IOException {
+        int start = src.position();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                FileChannel c = channel();
+                while (src.hasRemaining())
+                    c.write(src, offset + src.position() - start);
+                return;
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                if (attempt > 0)
+                    throw e;
+            }
+        }
+    }
+
+    /**
+     * Map a region of the file read-only into memory. The mapping stays
+     * valid after the channel is closed and is released when it is garbage
+     * collected.
+     *
+     * @param offset the start of the region in the file
+     * @param length the size of the region in bytes
+     */
+    ByteBuffer map(long offset, int length) throws IOException {
+        return channel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    /** @return the current size of the file in bytes */
+    long size() throws IOException {
+        return channel().size();
+    }
+
+    /** @return true if the channel is open now */
+    boolean isOpen() {
+        FileChannel c = channel;
+        return c != null && c.isOpen();
+    }
+
+    /** Close the channel; a later call reopens it. */
+    synchronized void close() throws IOException {
+        if (channel != null)
+            channel.close();
+        channel = null;
+    }
+}
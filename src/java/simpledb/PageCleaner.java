@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PageCleaner writes back the pages of committed transactions in the
+ * background, so that a commit only waits for its log records to reach disk
+ * and never for data page I/O.
+ * <p>
+ * When a transaction commits, the BufferPool logs its dirty pages, makes
+ * their current contents their before image and hands them to the cleaner.
+ * The cleaner writes that before image (the last committed version of the
+ * page), so a page dirtied again by a newer, uncommitted transaction can be
+ * written back without its uncommitted changes reaching disk.
+ * <p>
+ * Each write back is reported to the LogFile with the LSN of the update
+ * record of the version written, so that the page can leave the dirty page
+ * table and checkpoints can let recovery start later in the log.
+ * <p>
+ * The cleaner thread is started when there is work and exits after it has
+ * been idle for a while, so a discarded BufferPool does not keep it alive.
+ *
+ * @Threadsafe
+ */
+public class PageCleaner {
+
+    /** The cleaner thread exits after this many milliseconds without work. */
+    private static final long IDLE_MILLIS = 1000;
+
+    /** Pause after a failed write before trying again. */
+    private static final long RETRY_MILLIS = 100;
+
+    private final BufferPool pool;
+
+    /** A committed version of a page waiting to be written back. */
+    static class Commit {
+        /** The transaction that committed the version. */
+        final TransactionId tid;
+        /** The LSN of the update record of the version. */
+        final long lsn;
+
+        Commit(TransactionId tid, long lsn) {
+            this.tid = tid;
+            this.lsn = lsn;
+        }
+    }
+
+    /** Committed pages not yet written back. */
+    private final ConcurrentHashMap<PageId, Commit> committed;
+
+    /** True while the cleaner thread runs; protected by this. */
+    private boolean running = false;
+
+    /**
+     * @param pool the buffer pool whose pages to write back
+     */
+    public PageCleaner(BufferPool pool) {
+        this.pool = pool;
+        this.committed = new ConcurrentHashMap<PageId, Commit>();
+    }
+
+    /**
+     * Queue a page whose changes by tid are committed (and logged) for
+     * write back.
+     *
+     * @param pid the page
+     * @param tid the committed transaction
+     * @param lsn the LSN of the update record logged for the page by tid
+     */
+    public void pageCommitted(PageId pid, TransactionId tid, long lsn) {
+        committed.put(pid, new Commit(tid, lsn));
+        synchronized (this) {
+            if (!running) {
+                running = true;
+                Thread t = new Thread(new Runnable() {
+                    public void run() {
+                        cleanLoop();
+                    }
+                }, "simpledb-page-cleaner");
+                t.setDaemon(true);
+                t.start();
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the transaction whose committed changes to the page are not
+     *         yet on disk, or null if the page has no such changes
+     */
+    public TransactionId committedWriter(PageId pid) {
+        Commit c = committed.get(pid);
+        return c == null ? null : c.tid;
+    }
+
+    /**
+     * @return the committed version of the page waiting to be written back,
+     *         or null if there is none
+     */
+    Commit pendingCommit(PageId pid) {
+        return committed.get(pid);
+    }
+
+    /** @return the number of committed pages waiting to be written back */
+    public int numPending() {
+        return committed.size();
+    }
+
+    /**
+     * Write back every queued page from the calling thread. Used by the
+     * BufferPool when it needs clean pages to evict right away.
+     */
+    public void cleanAll() throws IOException {
+        for (Map.Entry<PageId, Commit> e : committed.entrySet())
+            clean(e.getKey(), e.getValue());
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Write back the queued versions of the specified pages from the
+     * calling thread; pages that are not queued are skipped. Used by the
+     * LogFile before it undoes updates against the pages on disk.
+     */
+    public void clean(Collection<PageId> pids) throws IOException {
+        for (PageId pid : pids) {
+            Commit c = committed.get(pid);
+            if (c != null)
+                clean(pid, c);
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private void clean(PageId pid, Commit c) throws IOException {
+        pool.writeCommittedPage(pid, c.tid);
+        Database.getLogFile().pageWritten(pid, c.lsn);
+        // a newer commit of the page stays queued
+        committed.remove(pid, c);
+    }
+
+    /**
+     * Wait until every queued page has been written back.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (!committed.isEmpty())
+            wait(RETRY_MILLIS);
+    }
+
+    private void cleanLoop() {
+        while (true) {
+            synchronized (this) {
+                if (committed.isEmpty()) {
+                    try {
+                        wait(IDLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        // exit below if there is nothing to do
+                    }
+                    if (committed.isEmpty()) {
+                        running = false;
+                        return;
+                    }
+                }
+            }
+            try {
+                cleanAll();
+            } catch (IOException e) {
+                backOff(e);
+            } catch (RuntimeException e) {
+                backOff(e);
+            }
+        }
+    }
+
+    private void backOff(Exception e) {
+        Debug.log(1, "PageCleaner: write back failed: %s", e);
+        try {
+            Thread.sleep(RETRY_MILLIS);
+        } catch (InterruptedException ie) {
+            // retry now
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * The difference between two versions of a page, as the byte ranges that
+ * changed with their old and new contents. For a HeapPage or a
+ * BTreeLeafPage a tuple insert or delete only changes the slot of the tuple
+ * and a header or pointer field, so its delta is a few dozen bytes instead
+ * of two full page images.
+ * <p>
+ * Applying a delta sets the bits that changed to their new (redo) or old
+ * (undo) values and leaves every other bit alone, so applying it again has
+ * no further effect, and the deltas of transactions that changed different
+ * slots of one page (even different bits of one header byte) can be redone
+ * and undone independently of each other.
+ */
+class PageDelta {
+
+    /**
+     * Unchanged runs shorter than this between two changed ranges are
+     * folded into one range, since a range costs two ints in the log.
+     */
+    private static final int MIN_GAP = 2 * LogFile.INT_SIZE;
+
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the delta that turns the before data into the after data, or
+     *         null if they are not of the same size
+     */
+    static PageDelta diff(byte[] beforeData, byte[] afterData) {
+        if (beforeData.length != afterData.length)
+            return null;
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < afterData.length) {
+            if (beforeData[i] == afterData[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int lastChanged = i;
+            for (i++; i < afterData.length && i - lastChanged <= MIN_GAP; i++) {
+                if (beforeData[i] != afterData[i])
+                    lastChanged = i;
+            }
+            ranges.add(new int[] {start, lastChanged + 1});
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] before = new byte[ranges.size()][];
+        byte[][] after = new byte[ranges.size()][];
+        for (int r = 0; r < offsets.length; r++) {
+            int start = ranges.get(r)[0];
+            int len = ranges.get(r)[1] - start;
+            offsets[r] = start;
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            System.arraycopy(beforeData, start, before[r], 0, len);
+            System.arraycopy(afterData, start, after[r], 0, len);
+        }
+        return new PageDelta(beforeData.length, offsets, before, after);
+    }
+
+    /** @return the number of bytes covered by the changed ranges */
+    int changedBytes() {
+        int n = 0;
+        for (byte[] b : after)
+            n += b.length;
+        return n;
+    }
+
+    /**
+     * Apply the delta to page data in place.
+     *
+     * @param data the page data
+     * @param undo true to restore the old contents, false to install the
+     *        new ones
+     * @throws IOException if the data is not of the size of the page the
+     *         delta was taken from
+     */
+    void apply(byte[] data, boolean undo) throws IOException {
+        if (data.length != pageSize)
+            throw new IOException("page delta for " + pageSize
+                    + " byte pages applied to " + data.length + " bytes");
+        byte[][] src = undo ? before : after;
+        for (int r = 0; r < offsets.length; r++) {
+            for (int i = 0; i < src[r].length; i++) {
+                int changed = before[r][i] ^ after[r][i];
+                int at = offsets[r] + i;
+                data[at] = (byte) ((data[at] & ~changed) | (src[r][i] & changed));
+            }
+        }
+    }
+
+    /**
+     * Write the delta: the integer page size and number of ranges, then
+     * for each range its integer offset and length, its old contents and
+     * its new contents.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(pageSize);
+        out.writeInt(offsets.length);
+        for (int r = 0; r < offsets.length; r++) {
+            out.writeInt(offsets[r]);
+            out.writeInt(after[r].length);
+            out.write(before[r]);
+            out.write(after[r]);
+        }
+    }
+
+    /** Read a delta written by {@link #write}. */
+    static PageDelta read(DataInput in) throws IOException {
+        int pageSize = in.readInt();
+        int n = in.readInt();
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            if (offsets[r] < 0 || len < 0 || offsets[r] + len > pageSize)
+                throw new IOException("page delta range out of bounds");
+            before[r] = new byte[len];
+            after[r] = new byte[len];
+            in.readFully(before[r]);
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pageSize, offsets, before, after);
+    }
+}
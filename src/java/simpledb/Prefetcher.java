@@ -0,0 +1,150 @@
+package simpledb;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefetcher reads pages into a BufferPool on a small pool of background I/O
+ * threads. Sequential scans tell it which pages they will read next, so the
+ * reads are already done (or in progress) when the scan asks the BufferPool
+ * for those pages.
+ * <p>
+ * Prefetching only caches pages: no lock is acquired, and a page that cannot
+ * be read in (e.g. because every page in the pool is dirty) is simply
+ * skipped. A scan should prefetch fewer pages than the pool holds, or the
+ * prefetched pages evict each other before they are used.
+ *
+ * @Threadsafe
+ */
+public class Prefetcher {
+
+    /** Default number of background I/O threads. */
+    public static final int DEFAULT_IO_THREADS = 2;
+
+    /** Idle I/O threads exit after this many seconds. */
+    private static final long KEEP_ALIVE_SECONDS = 5;
+
+    private final BufferPool pool;
+    private final int numThreads;
+    /** Created on first use; protected by this. */
+    private ThreadPoolExecutor executor = null;
+    /** Pages (or first pages of leaf chains) with a pending request. */
+    private final Set<PageId> pending = ConcurrentHashMap.<PageId>newKeySet();
+
+    /**
+     * Creates a prefetcher for the specified pool with the default number
+     * of I/O threads.
+     */
+    public Prefetcher(BufferPool pool) {
+        this(pool, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * @param pool the buffer pool to read pages into
+     * @param numThreads the number of background I/O threads
+     */
+    public Prefetcher(BufferPool pool, int numThreads) {
+        if (numThreads < 1)
+            throw new IllegalArgumentException("need at least one I/O thread");
+        this.pool = pool;
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Read the specified page into the pool in the background, unless a
+     * request for it is already pending.
+     *
+     * @param pid the page the caller will read soon
+     */
+    public void prefetch(final PageId pid) {
+        if (!pending.add(pid))
+            return;
+        submit(pid, new Runnable() {
+            public void run() {
+                try {
+                    pool.prefetchPage(pid);
+                } catch (DbException e) {
+                    Debug.log(1, "Prefetcher: skipped %s: %s", pid, e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Read up to n leaves of a B+ tree into the pool in the background,
+     * starting at the specified leaf and following right sibling pointers.
+     * The leaves are read one after the other by a single I/O thread, since
+     * each one tells where the next one is.
+     *
+     * @param leaf the first leaf to read, may be null
+     * @param n the maximum number of leaves to read
+     */
+    public void prefetchLeaves(final BTreePageId leaf, final int n) {
+        if (leaf == null || n < 1 || !pending.add(leaf))
+            return;
+        submit(leaf, new Runnable() {
+            public void run() {
+                BTreePageId next = leaf;
+                try {
+                    for (int i = 0; i < n && next != null; i++)
+                        next = ((BTreeLeafPage) pool.prefetchPage(next)).getRightSiblingId();
+                } catch (DbException e) {
+                    Debug.log(1, "Prefetcher: stopped at %s: %s", next, e.getMessage());
+                }
+            }
+        });
+    }
+
+    private void submit(final PageId key, final Runnable read) {
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    read.run();
+                } catch (RuntimeException e) {
+                    // e.g. the table was removed from the catalog
+                    Debug.log(1, "Prefetcher: failed to read %s: %s", key, e);
+                } finally {
+                    pending.remove(key);
+                    synchronized (Prefetcher.this) {
+                        Prefetcher.this.notifyAll();
+                    }
+                }
+            }
+        };
+        try {
+            executor().execute(task);
+        } catch (RuntimeException e) {
+            pending.remove(key);
+            throw e;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(numThreads, numThreads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "simpledb-prefetch");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            // a discarded BufferPool does not keep its threads alive
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    /**
+     * Wait until no prefetch request is pending.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (!pending.isEmpty())
+            wait(100);
+    }
+}
@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A SecondaryIndex is a non-clustered B+ tree index over a HeapFile. Each
+ * tuple of the heap file has one entry in the index, holding the values of
+ * the key fields, the values of any included fields, and the RecordId of the
+ * tuple as its page number and tuple number.
+ * <p>
+ * The index is stored in a BTreeFile keyed on the key fields followed by the
+ * RecordId, so every entry has a distinct key and can be found again to be
+ * deleted, while a search on the key fields alone is a search on a prefix of
+ * the key. A query that reads only key and included fields can be answered
+ * from the entries without reading the heap file: see {@link IndexOnlyScan}.
+ * <p>
+ * Indexes are registered with {@link Catalog#addIndex}, and the BufferPool
+ * keeps them up to date as tuples are inserted into and deleted from their
+ * table.
+ */
+public class SecondaryIndex {
+
+    private final int tableid;
+    private final int[] keyFields;
+    private final int[] includedFields;
+    private final TupleDesc td;
+    private final BTreeFile file;
+
+    /**
+     * Create an index over the table with the given id, stored in f.
+     *
+     * @param f the file that stores the entries of the index
+     * @param tableid the id of the HeapFile the index is over
+     * @param keyFields the fields of the table the index is keyed on, in the
+     *        order they are compared
+     * @param includedFields other fields of the table stored in the entries,
+     *        so that queries reading them need not go to the table
+     */
+    public SecondaryIndex(File f, int tableid, int[] keyFields, int[] includedFields) {
+        if (keyFields.length == 0)
+            throw new IllegalArgumentException("an index needs at least one key field");
+        this.tableid = tableid;
+        this.keyFields = keyFields.clone();
+        this.includedFields = includedFields.clone();
+
+        TupleDesc tableTd = Database.getCatalog().getTupleDesc(tableid);
+        int[] covered = getCoveredFields();
+        Type[] types = new Type[covered.length + 2];
+        String[] names = new String[covered.length + 2];
+        for (int i = 0; i < covered.length; i++) {
+            types[i] = tableTd.getFieldType(covered[i]);
+            names[i] = tableTd.getFieldName(covered[i]);
+        }
+        types[covered.length] = Type.INT_TYPE;
+        names[covered.length] = "rid_page";
+        types[covered.length + 1] = Type.INT_TYPE;
+        names[covered.length + 1] = "rid_tuple";
+        this.td = new TupleDesc(types, names);
+
+        int[] btreeKeys = new int[keyFields.length + 2];
+        for (int i = 0; i < keyFields.length; i++)
+            btreeKeys[i] = i;
+        btreeKeys[keyFields.length] = covered.length;
+        btreeKeys[keyFields.length + 1] = covered.length + 1;
+        this.file = new BTreeFile(f, btreeKeys, td);
+    }
+
+    /** @return the id of the table the index is over */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the BTreeFile that stores the entries of the index */
+    public BTreeFile getFile() {
+        return file;
+    }
+
+    /** @return the fields of the table the index is keyed on */
+    public int[] getKeyFields() {
+        return keyFields.clone();
+    }
+
+    /**
+     * @return the fields of the table stored in the entries: the key fields,
+     *         then the included fields, in the order they are stored
+     */
+    public int[] getCoveredFields() {
+        int[] covered = new int[keyFields.length + includedFields.length];
+        System.arraycopy(keyFields, 0, covered, 0, keyFields.length);
+        System.arraycopy(includedFields, 0, covered, keyFields.length, includedFields.length);
+        return covered;
+    }
+
+    /**
+     * @return whether the entries of the index hold every one of the given
+     *         fields of the table
+     */
+    public boolean covers(Collection<Integer> fields) {
+        HashSet<Integer> covered = new HashSet<Integer>();
+        for (int f : getCoveredFields())
+            covered.add(f);
+        return covered.containsAll(fields);
+    }
+
+    /**
+     * @return the entry of the index for a tuple of the table, which must
+     *         have the RecordId it is stored at
+     */
+    public Tuple entryFor(Tuple t) {
+        RecordId rid = t.getRecordId();
+        int[] covered = getCoveredFields();
+        Tuple entry = new Tuple(td);
+        for (int i = 0; i < covered.length; i++)
+            entry.setField(i, t.getField(covered[i]));
+        entry.setField(covered.length, new IntField(rid.getPageId().getPageNumber()));
+        entry.setField(covered.length + 1, new IntField(rid.getTupleNumber()));
+        return entry;
+    }
+
+    /** @return the RecordId of the tuple of the table an entry points to */
+    public RecordId getRecordId(Tuple entry) {
+        int n = td.numFields();
+        return new RecordId(new HeapPageId(tableid, ((IntField) entry.getField(n - 2)).getValue()),
+                ((IntField) entry.getField(n - 1)).getValue());
+    }
+
+    /** Add the entry for a tuple just inserted into the table. */
+    void insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(tid, file.getId(), entryFor(t));
+    }
+
+    /** Remove the entry for a tuple about to be deleted from the table. */
+    void delete(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Tuple entry = entryFor(t);
+        DbFileIterator it = file.indexIterator(tid,
+                new IndexPredicate(Predicate.Op.EQUALS, file.getKey(entry)));
+        it.open();
+        try {
+            if (!it.hasNext())
+                throw new DbException("no index entry for tuple " + t.getRecordId());
+            Database.getBufferPool().deleteTuple(tid, it.next());
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Load the entries for the tuples already in the table into the index,
+     * which must be empty, with a {@link BTreeBulkLoader}.
+     */
+    public void build() throws IOException, DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        final SeqScan scan = new SeqScan(tid, tableid, Database.getCatalog().getTableName(tableid));
+        try {
+            new BTreeBulkLoader(file).load(new Operator() {
+                private static final long serialVersionUID = 1L;
+
+                public void open() throws DbException, TransactionAbortedException {
+                    scan.open();
+                    super.open();
+                }
+
+                public void close() {
+                    super.close();
+                    scan.close();
+                }
+
+                public void rewind() throws DbException, TransactionAbortedException {
+                    scan.rewind();
+                }
+
+                protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+                    return scan.hasNext() ? entryFor(scan.next()) : null;
+                }
+
+                public OpIterator[] getChildren() {
+                    return new OpIterator[] { scan };
+                }
+
+                public void setChildren(OpIterator[] children) {
+                }
+
+                public TupleDesc getTupleDesc() {
+                    return td;
+                }
+            });
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+}
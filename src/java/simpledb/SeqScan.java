@@ -11,6 +11,13 @@ public class SeqScan implements OpIterator {
 
     private static final long serialVersionUID = 1L;
 
+    private final TransactionId tid;
+    private final int prefetchPages;
+    private int tableid;
+    private String tableAlias;
+    private TupleDesc td;
+    private transient DbFileIterator it;
+
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -28,7 +35,28 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, 0);
+    }
+
+    /**
+     * Creates a sequential scan that reads pages ahead of the scan in the
+     * background.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table
+     * @param prefetchPages
+     *            the number of pages the BufferPool's {@link Prefetcher}
+     *            should read ahead of the scan; 0 disables prefetching
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, int prefetchPages) {
         // some code goes here
+        this.tid = tid;
+        this.prefetchPages = prefetchPages;
+        reset(tableid, tableAlias);
     }
 
     /**
@@ -37,7 +65,17 @@ public class SeqScan implements OpIterator {
      *       be the actual name of the table in the catalog of the database
      * */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /** @return the id of the table the operator scans */
+    public int getTableId() {
+        return tableid;
+    }
+
+    /** @return the transaction the scan runs as a part of */
+    public TransactionId getTransactionId() {
+        return tid;
     }
 
     /**
@@ -46,7 +84,7 @@ public class SeqScan implements OpIterator {
     public String getAlias()
     {
         // some code goes here
-        return null;
+        return tableAlias;
     }
 
     /**
@@ -63,6 +101,17 @@ public class SeqScan implements OpIterator {
      */
     public void reset(int tableid, String tableAlias) {
         // some code goes here
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        TupleDesc base = Database.getCatalog().getTupleDesc(tableid);
+        Type[] types = new Type[base.numFields()];
+        String[] names = new String[base.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = base.getFieldType(i);
+            names[i] = tableAlias + "." + base.getFieldName(i);
+        }
+        this.td = new TupleDesc(types, names);
+        this.it = null;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -71,6 +120,14 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile)
+            it = ((HeapFile) file).iterator(tid, prefetchPages);
+        else if (file instanceof BTreeFile)
+            it = ((BTreeFile) file).iterator(tid, prefetchPages);
+        else
+            it = file.iterator(tid);
+        it.open();
     }
 
     /**
@@ -85,26 +142,36 @@ public class SeqScan implements OpIterator {
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
-        return null;
+        return td;
     }
 
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return false;
+        if (it == null)
+            throw new IllegalStateException("scan is not open");
+        return it.hasNext();
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return null;
+        if (it == null)
+            throw new NoSuchElementException("scan is not open");
+        return it.next();
     }
 
     public void close() {
         // some code goes here
+        if (it != null)
+            it.close();
+        it = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        if (it == null)
+            throw new DbException("scan is not open");
+        it.rewind();
     }
 }
@@ -0,0 +1,426 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The SortMergeJoin operator implements the relational join by reading both
+ * children in ascending order of their join fields. Children that do not
+ * come in that order already are sorted with an {@link ExternalSort}; a scan
+ * of a B+ tree keyed on the join field, or an ascending OrderBy on it, is
+ * read as it is (see {@link #isSortedOn}).
+ * <p>
+ * An equality join merges the children, keeping the tuples of child2 with
+ * the current value of the join field to join with each tuple of child1
+ * with that value. A range join also reads each child once: the matches of
+ * a tuple of one child are a prefix of the other, which only grows as the
+ * tuples of the first ascend. For t1 &gt; t2 these are the tuples of child2
+ * less than each tuple of child1, and for t1 &lt; t2 the tuples of child1
+ * less than each tuple of child2. The join keeps the prefix read so far and
+ * joins each tuple with all of it. Other predicates cannot be joined this
+ * way.
+ * <p>
+ * The tuples kept, of a group of equal tuples or of a prefix, stay in
+ * memory while they fit and are written out to a {@link SpillFile} beyond
+ * that, to be read back for each tuple they join with.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of pages of memory for the sorts and the group of equal tuples. */
+    public static final int DEFAULT_MEMORY_PAGES = 1024;
+
+    private JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+    private final int memoryPages;
+    transient private SortedInput left = null;
+    transient private SortedInput right = null;
+
+    /**
+     * The tuples that join with the current tuple: for an equality join the
+     * tuples of child2 with its join field value, for a range join the
+     * prefix of the other child read so far.
+     */
+    transient private Group group = null;
+    /** For an equality join: the join field value of the group. */
+    transient private Field groupKey = null;
+    /** The next tuple of the child kept in the group, or null at its end. */
+    transient private Tuple ahead = null;
+    /** The current tuple of the other child, joined with each tuple of the group in turn. */
+    transient private Tuple current = null;
+    transient private boolean matching = false;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join them
+     * on
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor. Accepts two children to join, the predicate to join them
+     * on, and the memory the join may use
+     *
+     * @param p
+     *            The predicate to use to join the children; an equality or a
+     *            range comparison
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param memoryPages
+     *            The number of pages of memory for sorting the children and
+     *            holding the tuples that join with a tuple; at least 8
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int memoryPages) {
+        if (!canJoin(p.getOperator()))
+            throw new IllegalArgumentException("a sort-merge join cannot join on " + p.getOperator());
+        if (memoryPages < 8)
+            throw new IllegalArgumentException("a sort-merge join needs at least 8 pages of memory");
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.memoryPages = memoryPages;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    /** @return whether a sort-merge join can join on the given operation */
+    public static boolean canJoin(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return whether the tuples of an iterator come in ascending order of a
+     *         field: a scan of a B+ tree keyed on the field, an index-only
+     *         scan on its first key field, or an ascending OrderBy on it
+     */
+    public static boolean isSortedOn(OpIterator it, int field) {
+        if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        }
+        if (it instanceof IndexOnlyScan)
+            return field == 0;
+        int tableid;
+        if (it instanceof BTreeScan)
+            tableid = ((BTreeScan) it).getTableId();
+        else if (it instanceof SeqScan)
+            tableid = ((SeqScan) it).getTableId();
+        else
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /** @return the number of pages of memory the join may use */
+    public int getMemoryPages() {
+        return memoryPages;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /** The tuples of a child in ascending order of its join field, sorted if they do not come that way. */
+    private class SortedInput {
+        private final OpIterator child;
+        private final int field;
+        private final int sortPages;
+        private ExternalSort sort = null;
+        private DbFileIterator it = null;
+
+        SortedInput(OpIterator child, int field, int sortPages) {
+            this.child = child;
+            this.field = field;
+            this.sortPages = sortPages;
+        }
+
+        void open() throws DbException, TransactionAbortedException {
+            child.open();
+            if (isSortedOn(child, field))
+                return;
+            sort = new ExternalSort(child.getTupleDesc(), new TupleComparator(field, true), sortPages);
+            try {
+                while (child.hasNext())
+                    sort.add(child.next());
+                it = sort.iterator();
+            } catch (IOException e) {
+                sort.close();
+                throw new DbException("cannot sort join input: " + e.getMessage());
+            }
+            it.open();
+        }
+
+        boolean hasNext() throws DbException, TransactionAbortedException {
+            return it == null ? child.hasNext() : it.hasNext();
+        }
+
+        /** @return the next tuple, or null after the last one */
+        Tuple next() throws DbException, TransactionAbortedException {
+            if (!hasNext())
+                return null;
+            return it == null ? child.next() : it.next();
+        }
+
+        void rewind() throws DbException, TransactionAbortedException {
+            if (it == null)
+                child.rewind();
+            else
+                it.rewind();
+        }
+
+        void close() {
+            if (it != null) {
+                it.close();
+                it = null;
+            }
+            if (sort != null) {
+                sort.close();
+                sort = null;
+            }
+            child.close();
+        }
+    }
+
+    /**
+     * The tuples of one child that join with the current tuple of the other,
+     * kept in memory while they fit and written out to a SpillFile beyond
+     * that.
+     */
+    private class Group {
+        private final TupleDesc td;
+        private final int maxTuples;
+        private final ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        private SpillFile spill = null;
+        private SpillFile.Reader reader = null;
+        private int pos = 0;
+
+        Group(TupleDesc td, int maxTuples) {
+            this.td = td;
+            this.maxTuples = maxTuples;
+        }
+
+        void add(Tuple t) throws IOException {
+            if (tuples.size() < maxTuples) {
+                tuples.add(t);
+                return;
+            }
+            if (spill == null)
+                spill = new SpillFile(td);
+            spill.add(t);
+        }
+
+        /** Start reading the group from its first tuple. */
+        void start() {
+            closeReader();
+            pos = 0;
+        }
+
+        /** @return the next tuple of the group, or null after the last one */
+        Tuple next() throws IOException {
+            if (pos < tuples.size())
+                return tuples.get(pos++);
+            if (spill == null)
+                return null;
+            if (reader == null)
+                reader = spill.reader();
+            return reader.read();
+        }
+
+        void clear() {
+            closeReader();
+            tuples.clear();
+            if (spill != null) {
+                spill.delete();
+                spill = null;
+            }
+            pos = 0;
+        }
+
+        private void closeReader() {
+            if (reader != null) {
+                reader.close();
+                reader = null;
+            }
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        int groupPages = Math.max(1, memoryPages / 8);
+        int sortPages = (memoryPages - groupPages) / 2;
+        left = new SortedInput(child1, pred.getField1(), sortPages);
+        right = new SortedInput(child2, pred.getField2(), sortPages);
+        TupleDesc groupTd = groupsChild2() ? child2.getTupleDesc() : child1.getTupleDesc();
+        group = new Group(groupTd, SpillFile.tuplesFitting(groupPages, groupTd));
+        try {
+            left.open();
+            right.open();
+        } catch (DbException e) {
+            left.close();
+            right.close();
+            throw e;
+        }
+        start();
+        super.open();
+    }
+
+    private void start() throws DbException, TransactionAbortedException {
+        group.clear();
+        groupKey = null;
+        current = null;
+        matching = false;
+        ahead = groupsChild2() ? right.next() : left.next();
+    }
+
+    /** @return whether the group holds tuples of child2 rather than of child1 */
+    private boolean groupsChild2() {
+        Predicate.Op op = pred.getOperator();
+        return op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    public void close() {
+        super.close();
+        if (left != null) {
+            left.close();
+            right.close();
+            group.clear();
+            left = null;
+            right = null;
+        }
+        current = null;
+        ahead = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        left.rewind();
+        right.rewind();
+        start();
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. The tuples are the concatenation of joining tuples from the
+     * left and right relation, as for {@link Join}.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        try {
+            if (pred.getOperator() == Predicate.Op.EQUALS)
+                return fetchNextEqual();
+            return fetchNextRange();
+        } catch (IOException e) {
+            throw new DbException("cannot read join group: " + e.getMessage());
+        }
+    }
+
+    private Tuple fetchNextEqual() throws TransactionAbortedException, DbException, IOException {
+        while (true) {
+            if (matching) {
+                Tuple t2 = group.next();
+                if (t2 != null)
+                    return merge(current, t2);
+                matching = false;
+            }
+            current = left.next();
+            if (current == null)
+                return null;
+            Field key = current.getField(pred.getField1());
+            if (groupKey != null && key.compare(Predicate.Op.EQUALS, groupKey)) {
+                group.start();
+                matching = true;
+                continue;
+            }
+            group.clear();
+            groupKey = null;
+            while (ahead != null
+                    && ahead.getField(pred.getField2()).compare(Predicate.Op.LESS_THAN, key))
+                ahead = right.next();
+            if (ahead == null)
+                return null;
+            if (!ahead.getField(pred.getField2()).compare(Predicate.Op.EQUALS, key))
+                continue;
+            groupKey = key;
+            while (ahead != null
+                    && ahead.getField(pred.getField2()).compare(Predicate.Op.EQUALS, key)) {
+                group.add(ahead);
+                ahead = right.next();
+            }
+            group.start();
+            matching = true;
+        }
+    }
+
+    private Tuple fetchNextRange() throws TransactionAbortedException, DbException, IOException {
+        boolean leftFirst = groupsChild2();
+        // the child read tuple by tuple, and the one whose prefix is kept
+        SortedInput outer = leftFirst ? left : right;
+        SortedInput inner = leftFirst ? right : left;
+        while (true) {
+            if (matching) {
+                Tuple t = group.next();
+                if (t != null)
+                    return leftFirst ? merge(current, t) : merge(t, current);
+                matching = false;
+            }
+            current = outer.next();
+            if (current == null)
+                return null;
+            // the prefix joins with all later tuples as well, so it only grows
+            while (ahead != null
+                    && (leftFirst ? pred.filter(current, ahead) : pred.filter(ahead, current))) {
+                group.add(ahead);
+                ahead = inner.next();
+            }
+            group.start();
+            matching = true;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+}
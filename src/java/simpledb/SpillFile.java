@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * A SpillFile holds tuples that an operator writes out to a temporary file
+ * because they do not fit in its memory budget. Tuples are appended with
+ * {@link #add}, then read back in the order they were added with
+ * {@link #reader}, as often as needed; {@link #delete} removes the file.
+ * Reads and writes go through one page of buffer.
+ */
+class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private DataOutputStream out;
+    private long size;
+
+    /** Create an empty spill file for tuples of the given schema. */
+    SpillFile(TupleDesc td) throws IOException {
+        this.td = td;
+        this.file = File.createTempFile("spill", ".tmp");
+        this.file.deleteOnExit();
+        this.out = null;
+        this.size = 0;
+    }
+
+    /**
+     * @return the number of tuples of the given schema that fit in the given
+     *         pages of memory, at least one; beyond that an operator spills
+     */
+    static int tuplesFitting(int memoryPages, TupleDesc td) {
+        long fit = (long) memoryPages * BufferPool.getPageSize() / td.getSize();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, fit));
+    }
+
+    /** @return the number of tuples added */
+    long size() {
+        return size;
+    }
+
+    /** Append a tuple to the file. */
+    void add(Tuple t) throws IOException {
+        if (out == null) {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file, true), BufferPool.getPageSize()));
+        }
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(out);
+        size++;
+    }
+
+    /** @return a reader over the tuples added so far, from the first */
+    Reader reader() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        return new Reader();
+    }
+
+    /** Delete the file. */
+    void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is going away
+            }
+            out = null;
+        }
+        file.delete();
+        size = 0;
+    }
+
+    /** Reads the tuples of the file back in the order they were added. */
+    class Reader {
+        private final DataInputStream in;
+        private long remaining;
+
+        private Reader() throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), BufferPool.getPageSize()));
+            this.remaining = size;
+        }
+
+        /** @return the next tuple, or null after the last one */
+        Tuple read() throws IOException {
+            if (remaining == 0)
+                return null;
+            remaining--;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (java.text.ParseException e) {
+                throw new IOException("corrupt spill file: " + e.getMessage());
+            }
+            return t;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+        }
+    }
+}
@@ -12,7 +12,15 @@ public class Transaction {
     volatile boolean started = false;
 
     public Transaction() {
-        tid = new TransactionId();
+        this(false);
+    }
+
+    /**
+     * @param readOnly true for a transaction that only reads; it reads
+     *        multi-version tables from a snapshot, without locks
+     */
+    public Transaction(boolean readOnly) {
+        tid = new TransactionId(readOnly);
     }
 
     /** Start the transaction running */
@@ -43,17 +51,14 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write commit / abort records
+            //write abort records; on commit the BufferPool logs the
+            //dirty pages and the commit record
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
             }
 
             try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
+                Database.getBufferPool().transactionComplete(tid, !abort); // commit, release locks
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -5,22 +5,80 @@ import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TransactionId is a class that contains the identifier of a transaction.
+ * <p>
+ * It also carries the timestamps used for snapshot reads of multi-version
+ * tables (see {@link VersionStore}): a read-only transaction takes a
+ * snapshot timestamp when it first reads such a table, and every
+ * transaction gets a commit timestamp when it commits. A snapshot sees the
+ * versions committed at or before its timestamp.
  */
 public class TransactionId implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
     static AtomicLong counter = new AtomicLong(0);
+    /** Logical clock the snapshot and commit timestamps are taken from. */
+    private static final AtomicLong clock = new AtomicLong(0);
+
     final long myid;
+    private final boolean readOnly;
+    private volatile long snapshotTs = -1;
+    private volatile long commitTs = 0;
 
     public TransactionId() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly true for a transaction that only reads; it reads
+     *        multi-version tables from a snapshot, without locks
+     */
+    public TransactionId(boolean readOnly) {
         myid = counter.getAndIncrement();
+        this.readOnly = readOnly;
     }
 
     public long getId() {
         return myid;
     }
 
+    /** @return true if this transaction only reads */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /** @return the snapshot timestamp, or -1 if no snapshot was taken */
+    public long getSnapshotTimestamp() {
+        return snapshotTs;
+    }
+
+    /** @return the commit timestamp, or 0 if not committed */
+    public long getCommitTimestamp() {
+        return commitTs;
+    }
+
+    /** Take the snapshot: later commits will not be visible. */
+    void takeSnapshot() {
+        snapshotTs = clock.get();
+    }
+
+    /** Assign the commit timestamp; the transaction's versions become visible. */
+    void setCommitted() {
+        commitTs = clock.incrementAndGet();
+    }
+
+    /**
+     * @return true if a version committed by the specified transaction
+     *         (null for a version older than every snapshot) was committed
+     *         at or before the timestamp
+     */
+    static boolean visibleAt(TransactionId committer, long ts) {
+        if (committer == null)
+            return true;
+        long c = committer.commitTs;
+        return c != 0 && c <= ts;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
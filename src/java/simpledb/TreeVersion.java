@@ -0,0 +1,76 @@
+package simpledb;
+
+/**
+ * TreeVersion is a version number of the committed internal and root
+ * pointer pages of one B+ tree, odd while a commit is installing new ones.
+ * <p>
+ * A search that reads the committed versions of these pages without locking
+ * them (see {@link BTreeFile}) takes the version before it starts, waiting
+ * while a commit is installing pages, and has seen a single committed tree
+ * if the version is still the same after it. Commits that change the inner
+ * pages of different trees do not wait for each other, nor restart each
+ * other's searches; the commits of one tree install their pages one at a
+ * time.
+ *
+ * @Threadsafe
+ */
+public class TreeVersion {
+
+    /**
+     * Twice the number of commits that changed inner pages of the tree,
+     * plus one while such a commit installs its pages. Written only while
+     * holding this.
+     */
+    private volatile long version;
+
+    /** @return the current version, odd while a commit installs pages */
+    public long get() {
+        return version;
+    }
+
+    /**
+     * Wait until no commit is installing pages of the tree.
+     *
+     * @return the current version, which is even
+     * @throws TransactionAbortedException if the thread is interrupted
+     */
+    public long awaitStable() throws TransactionAbortedException {
+        long v = version;
+        if (v % 2 == 0)
+            return v;
+        synchronized (this) {
+            try {
+                while (version % 2 != 0)
+                    wait();
+            } catch (InterruptedException e) {
+                throw new TransactionAbortedException();
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Start installing committed pages of the tree, after the installs of
+     * other commits are done. Must be followed by {@link #endInstall}.
+     */
+    synchronized void beginInstall() {
+        boolean interrupted = false;
+        while (version % 2 != 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // the commit is logged, so its pages must be installed
+                interrupted = true;
+            }
+        }
+        version++;
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Finish installing committed pages and wake up the waiting threads. */
+    synchronized void endInstall() {
+        version++;
+        notifyAll();
+    }
+}
@@ -0,0 +1,40 @@
+package simpledb;
+
+import java.util.Comparator;
+
+/**
+ * Orders tuples on one or more of their fields, each ascending or
+ * descending; used by {@link OrderBy} and {@link SortMergeJoin}.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    int[] fields;
+    boolean[] asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[] { field }, new boolean[] { asc });
+    }
+
+    /**
+     * Compares tuples on several fields in turn, each ascending or
+     * descending.
+     */
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            Field t1 = (o1).getField(fields[i]);
+            Field t2 = (o2).getField(fields[i]);
+            if (t1.compare(Predicate.Op.EQUALS, t2))
+                continue;
+            if (t1.compare(Predicate.Op.GREATER_THAN, t2))
+                return asc[i] ? 1 : -1;
+            else
+                return asc[i] ? -1 : 1;
+        }
+        return 0;
+    }
+    
+}
@@ -42,11 +42,14 @@ public class TupleDesc implements Serializable {
      * */
     public Iterator<TDItem> iterator() {
         // some code goes here
-        return null;
+        return Arrays.asList(items).iterator();
     }
 
     private static final long serialVersionUID = 1L;
 
+    private final TDItem[] items;
+    private final int size;
+
     /**
      * Create a new TupleDesc with typeAr.length fields with fields of the
      * specified types, with associated named fields.
@@ -60,6 +63,22 @@ public class TupleDesc implements Serializable {
      */
     public TupleDesc(Type[] typeAr, String[] fieldAr) {
         // some code goes here
+        this(items(typeAr, fieldAr));
+    }
+
+    private TupleDesc(TDItem[] items) {
+        this.items = items;
+        int size = 0;
+        for (TDItem item : items)
+            size += item.fieldType.getLen();
+        this.size = size;
+    }
+
+    private static TDItem[] items(Type[] typeAr, String[] fieldAr) {
+        TDItem[] items = new TDItem[typeAr.length];
+        for (int i = 0; i < typeAr.length; i++)
+            items[i] = new TDItem(typeAr[i], fieldAr == null ? null : fieldAr[i]);
+        return items;
     }
 
     /**
@@ -72,6 +91,7 @@ public class TupleDesc implements Serializable {
      */
     public TupleDesc(Type[] typeAr) {
         // some code goes here
+        this(typeAr, null);
     }
 
     /**
@@ -79,7 +99,7 @@ public class TupleDesc implements Serializable {
      */
     public int numFields() {
         // some code goes here
-        return 0;
+        return items.length;
     }
 
     /**
@@ -93,7 +113,7 @@ public class TupleDesc implements Serializable {
      */
     public String getFieldName(int i) throws NoSuchElementException {
         // some code goes here
-        return null;
+        return item(i).fieldName;
     }
 
     /**
@@ -108,7 +128,13 @@ public class TupleDesc implements Serializable {
      */
     public Type getFieldType(int i) throws NoSuchElementException {
         // some code goes here
-        return null;
+        return item(i).fieldType;
+    }
+
+    private TDItem item(int i) throws NoSuchElementException {
+        if (i < 0 || i >= items.length)
+            throw new NoSuchElementException("no field " + i);
+        return items[i];
     }
 
     /**
@@ -122,7 +148,13 @@ public class TupleDesc implements Serializable {
      */
     public int fieldNameToIndex(String name) throws NoSuchElementException {
         // some code goes here
-        return 0;
+        if (name != null) {
+            for (int i = 0; i < items.length; i++) {
+                if (name.equals(items[i].fieldName))
+                    return i;
+            }
+        }
+        throw new NoSuchElementException("no field named " + name);
     }
 
     /**
@@ -131,7 +163,7 @@ public class TupleDesc implements Serializable {
      */
     public int getSize() {
         // some code goes here
-        return 0;
+        return size;
     }
 
     /**
@@ -146,7 +178,9 @@ public class TupleDesc implements Serializable {
      */
     public static TupleDesc merge(TupleDesc td1, TupleDesc td2) {
         // some code goes here
-        return null;
+        TDItem[] items = Arrays.copyOf(td1.items, td1.items.length + td2.items.length);
+        System.arraycopy(td2.items, 0, items, td1.items.length, td2.items.length);
+        return new TupleDesc(items);
     }
 
     /**
@@ -162,13 +196,25 @@ public class TupleDesc implements Serializable {
 
     public boolean equals(Object o) {
         // some code goes here
-        return false;
+        if (!(o instanceof TupleDesc))
+            return false;
+        TupleDesc other = (TupleDesc) o;
+        if (items.length != other.items.length)
+            return false;
+        for (int i = 0; i < items.length; i++) {
+            if (items[i].fieldType != other.items[i].fieldType)
+                return false;
+        }
+        return true;
     }
 
     public int hashCode() {
         // If you want to use TupleDesc as keys for HashMap, implement this so
         // that equal objects have equals hashCode() results
-        throw new UnsupportedOperationException("unimplemented");
+        int h = 0;
+        for (TDItem item : items)
+            h = 31 * h + item.fieldType.hashCode();
+        return h;
     }
 
     /**
@@ -180,6 +226,12 @@ public class TupleDesc implements Serializable {
      */
     public String toString() {
         // some code goes here
-        return "";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < items.length; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(items[i].fieldType).append("(").append(items[i].fieldName).append(")");
+        }
+        return sb.toString();
     }
 }
@@ -0,0 +1,94 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * The full 2Q replacement policy of Johnson and Shasha.
+ * <p>
+ * Pages read for the first time enter a FIFO queue (A1in). Pages evicted
+ * from A1in are remembered, without their data, in a second FIFO queue
+ * (A1out). Only a page that is requested again while it is remembered in
+ * A1out is promoted to the main LRU queue (Am). A sequential scan therefore
+ * only cycles through A1in and leaves the hot pages in Am alone.
+ */
+public class TwoQueueEvictionPolicy extends AbstractEvictionPolicy {
+
+    /** Resident pages seen once, oldest first. */
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    /** Ids of pages recently evicted from A1in, oldest first. */
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    /** Resident pages requested more than once, least recently used first. */
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+
+    private final int kin;
+    private final int kout;
+
+    /**
+     * Creates a 2Q policy with the tuning suggested in the paper: A1in holds
+     * a quarter of the pool and A1out remembers half of the pool.
+     *
+     * @param numPages the number of pages in the buffer pool
+     */
+    public TwoQueueEvictionPolicy(int numPages) {
+        this(numPages, Math.max(1, numPages / 4), Math.max(1, numPages / 2));
+    }
+
+    /**
+     * @param numPages the number of pages in the buffer pool
+     * @param kin the target size of the A1in queue
+     * @param kout the maximum number of page ids remembered in A1out
+     */
+    public TwoQueueEvictionPolicy(int numPages, int kin, int kout) {
+        if (kin < 1 || kin > numPages || kout < 0)
+            throw new IllegalArgumentException("invalid 2Q queue sizes");
+        this.kin = kin;
+        this.kout = kout;
+    }
+
+    protected void recordHit(PageId pid) {
+        // hits in A1in are deliberately ignored: correlated references
+        // during a scan should not make a page look hot
+        if (am.remove(pid))
+            am.add(pid);
+    }
+
+    protected void recordMiss(PageId pid) {
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else {
+            a1in.add(pid);
+        }
+    }
+
+    protected void forget(PageId pid) {
+        if (!a1in.remove(pid))
+            am.remove(pid);
+    }
+
+    protected PageId victim(Evictable evictable) {
+        PageId pid = null;
+        if (a1in.size() >= kin || am.isEmpty()) {
+            pid = evictFromA1in(evictable);
+            if (pid == null)
+                pid = LRUEvictionPolicy.removeFirstEvictable(am, evictable);
+        } else {
+            pid = LRUEvictionPolicy.removeFirstEvictable(am, evictable);
+            if (pid == null)
+                pid = evictFromA1in(evictable);
+        }
+        return pid;
+    }
+
+    private PageId evictFromA1in(Evictable evictable) {
+        PageId pid = LRUEvictionPolicy.removeFirstEvictable(a1in, evictable);
+        if (pid != null && kout > 0) {
+            a1out.add(pid);
+            if (a1out.size() > kout) {
+                Iterator<PageId> it = a1out.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+        return pid;
+    }
+}
@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * VersionStore keeps the recently committed versions of the pages of
+ * multi-version HeapFiles (see {@link HeapFile#setMultiVersion}), so that
+ * read-only transactions read a consistent snapshot of these tables
+ * without taking locks, and never wait for writers or make them wait.
+ * <p>
+ * Each page that was committed while snapshots may need its older contents
+ * has a chain of versions, newest first, each stamped with the transaction
+ * that committed it. A snapshot reads the newest version whose transaction
+ * committed at or before the snapshot timestamp. A committing transaction
+ * pushes its versions before it gets its commit timestamp, so a snapshot
+ * never misses a version it should see. The tail of a chain that no active
+ * snapshot can see any more is dropped, as is a chain that every snapshot
+ * reads the head of; the pages of the BufferPool then hold the only
+ * committed version.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /** A committed version of a page. */
+    private static class Version {
+        /** The committing transaction, or null if older than every snapshot. */
+        final TransactionId committer;
+        final Page image;
+        volatile Version older;
+
+        Version(TransactionId committer, Page image, Version older) {
+            this.committer = committer;
+            this.image = image;
+            this.older = older;
+        }
+    }
+
+    private final BufferPool pool;
+    private final ConcurrentHashMap<PageId, Version> versions;
+    /**
+     * Read-only transactions with a snapshot. Protected by this, so that
+     * no snapshot begins while versions are dropped.
+     */
+    private final Set<TransactionId> snapshots;
+
+    /**
+     * @param pool the buffer pool holding the current versions of the pages
+     */
+    public VersionStore(BufferPool pool) {
+        this.pool = pool;
+        this.versions = new ConcurrentHashMap<PageId, Version>();
+        this.snapshots = ConcurrentHashMap.<TransactionId>newKeySet();
+    }
+
+    /**
+     * Return the version of a page in the snapshot of a read-only
+     * transaction, taking the snapshot on the first call.
+     *
+     * @param tid the read-only transaction
+     * @param pid the page
+     * @return the version of the page; it must not be modified
+     */
+    public Page snapshotPage(TransactionId tid, PageId pid) throws DbException {
+        if (tid.getSnapshotTimestamp() < 0)
+            beginSnapshot(tid);
+        long ts = tid.getSnapshotTimestamp();
+        Version v = versions.get(pid);
+        if (v == null) {
+            // no commit since every snapshot began: the last committed
+            // version in the pool is the one to read, unless a commit
+            // pushed a version while we read it
+            Page committed = pool.committedPage(pid);
+            v = versions.get(pid);
+            if (v == null)
+                return committed;
+        }
+        for (; v != null; v = v.older) {
+            if (TransactionId.visibleAt(v.committer, ts))
+                return v.image;
+        }
+        throw new DbException("no version of " + pid + " in the snapshot of transaction "
+                + tid.getId());
+    }
+
+    private synchronized void beginSnapshot(TransactionId tid) {
+        if (tid.getSnapshotTimestamp() < 0) {
+            tid.takeSnapshot();
+            snapshots.add(tid);
+        }
+    }
+
+    /**
+     * Record the version of a page a transaction is committing. Called
+     * before the page's before image is updated and before the transaction
+     * gets its commit timestamp.
+     *
+     * @param tid the committing transaction
+     * @param page the page, whose before image is still the last committed
+     *        version
+     */
+    public void pageCommitted(TransactionId tid, HeapPage page) {
+        HeapPage image;
+        try {
+            image = new HeapPage(page.getId(), page.getPageData());
+        } catch (IOException e) {
+            throw new RuntimeException(e); // we parsed it before
+        }
+        PageId pid = page.getId();
+        while (true) {
+            Version head = versions.get(pid);
+            if (head == null) {
+                versions.putIfAbsent(pid, new Version(null, page.getBeforeImage(), null));
+                continue;
+            }
+            if (versions.replace(pid, head, new Version(tid, image, head)))
+                return;
+        }
+    }
+
+    /**
+     * Drop the versions of a page that no snapshot needs any more, once the
+     * transaction that committed its newest version has its timestamp.
+     */
+    public synchronized void transactionCommitted(PageId pid) {
+        Version head = versions.get(pid);
+        if (head != null)
+            prune(pid, head, oldestSnapshot());
+    }
+
+    /**
+     * Release the snapshot of a read-only transaction and drop the versions
+     * only it needed.
+     */
+    public synchronized void snapshotEnded(TransactionId tid) {
+        if (!snapshots.remove(tid))
+            return;
+        long oldest = oldestSnapshot();
+        for (Map.Entry<PageId, Version> e : versions.entrySet())
+            prune(e.getKey(), e.getValue(), oldest);
+    }
+
+    /** @return the number of pages with versions kept for snapshots */
+    public int numVersionedPages() {
+        return versions.size();
+    }
+
+    /**
+     * @return the oldest snapshot timestamp, or the largest timestamp if
+     *         there is no snapshot
+     */
+    private long oldestSnapshot() {
+        long oldest = Long.MAX_VALUE;
+        for (TransactionId tid : snapshots)
+            oldest = Math.min(oldest, tid.getSnapshotTimestamp());
+        return oldest;
+    }
+
+    /**
+     * Cut the chain of a page after the newest version visible to the
+     * oldest snapshot, or drop it if that is its head. The caller holds the
+     * lock on this store.
+     */
+    private void prune(PageId pid, Version head, long oldest) {
+        for (Version v = head; v != null; v = v.older) {
+            if (TransactionId.visibleAt(v.committer, oldest)) {
+                v.older = null;
+                if (v == head)
+                    versions.remove(pid, head);
+                return;
+            }
+        }
+    }
+}
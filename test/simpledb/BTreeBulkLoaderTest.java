@@ -0,0 +1,176 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoaderTest extends SimpleDbTestBase {
+	private BTreeFile bf;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		File f = File.createTempFile("bulk", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		bf = BTreeUtility.openBTreeFile(2, f, 0);
+	}
+
+	/** @return the key of every tuple of the tree, in the order of its leaves */
+	private ArrayList<Integer> keys() throws Exception {
+		ArrayList<Integer> keys = new ArrayList<Integer>();
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while(it.hasNext()) {
+			keys.add(((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		return keys;
+	}
+
+	private void checkRep() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * A sort with too little memory for its input merges its runs in several
+	 * passes, and keeps equal tuples in the order they were added
+	 */
+	@Test
+	public void externalSortIsStable() throws Exception {
+		ExternalSort sort = new ExternalSort(Utility.getTupleDesc(2),
+				new BTreeFileEncoder.TupleComparator(0), 3);
+		for(int i = 0; i < 10000; i++) {
+			sort.add(BTreeUtility.getBTreeTuple(new int[] {(i * 7919) % 100, i}));
+		}
+		assertTrue(sort.numRuns() > 2);
+		DbFileIterator it = sort.iterator();
+		it.open();
+		int count = 0;
+		Tuple prev = null;
+		while(it.hasNext()) {
+			Tuple t = it.next();
+			if(prev != null) {
+				int cmp = ((IntField) prev.getField(0)).getValue() - ((IntField) t.getField(0)).getValue();
+				assertTrue(cmp <= 0);
+				if(cmp == 0) {
+					assertTrue(((IntField) prev.getField(1)).getValue() < ((IntField) t.getField(1)).getValue());
+				}
+			}
+			prev = t;
+			count++;
+		}
+		it.close();
+		sort.close();
+		assertEquals(10000, count);
+	}
+
+	/**
+	 * Unsorted tuples from an operator are loaded into a packed tree, sorting
+	 * them with a few pages of memory
+	 */
+	@Test
+	public void loadFromOperator() throws Exception {
+		ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 30000, 0, BTreeUtility.MAX_RAND_VALUE);
+		ArrayList<Integer> expected = new ArrayList<Integer>();
+		for(Tuple t : tuples) {
+			expected.add(((IntField) t.getField(0)).getValue());
+		}
+		Collections.sort(expected);
+
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.setMemoryPages(8);
+		loader.load(new TupleIterator(Utility.getTupleDesc(2), tuples));
+
+		// 60 leaves under one internal page
+		int leaves = (30000 + BTreeUtility.getNumTuplesPerPage(2) - 1) / BTreeUtility.getNumTuplesPerPage(2);
+		assertEquals(leaves + 1, bf.numPages());
+		assertEquals(expected, keys());
+		checkRep();
+
+		// the loaded tree takes inserts like any other
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < 1000; i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {i, i}));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		assertEquals(31000, keys().size());
+		checkRep();
+	}
+
+	/**
+	 * A lower fill factor leaves room on every page, and the pages of the
+	 * tree above the leaves too
+	 */
+	@Test
+	public void fillFactor() throws Exception {
+		ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 200000, 0, BTreeUtility.MAX_RAND_VALUE);
+		BTreeBulkLoader loader = new BTreeBulkLoader(bf);
+		loader.setFillFactor(0.7);
+		loader.load(new TupleIterator(Utility.getTupleDesc(2), tuples));
+
+		assertEquals(200000, keys().size());
+		checkRep();
+		int maxTuples = BTreeUtility.getNumTuplesPerPage(2);
+		TransactionId tid = new TransactionId();
+		BTreePageId rootId = ((BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY)).getRootId();
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootId, Permissions.READ_ONLY);
+		assertEquals(BTreePageId.INTERNAL, root.getChildId(0).pgcateg());
+		BTreeLeafPage leaf = bf.findLeafPage(tid, rootId, Permissions.READ_ONLY, null);
+		while(leaf != null) {
+			assertTrue(leaf.getNumTuples() <= maxTuples * 0.7);
+			BTreePageId next = leaf.getRightSiblingId();
+			leaf = next == null ? null : (BTreeLeafPage) Database.getBufferPool().getPage(tid, next, Permissions.READ_ONLY);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Tuples are read from a text file, and a small input makes a tree of a
+	 * single leaf
+	 */
+	@Test
+	public void loadFromText() throws Exception {
+		File text = File.createTempFile("bulk", ".txt");
+		text.deleteOnExit();
+		BufferedWriter w = new BufferedWriter(new FileWriter(text));
+		w.write("3|30\n1|10\n\n2|20\n");
+		w.close();
+		new BTreeBulkLoader(bf).load(text, '|');
+		assertEquals(1, bf.numPages());
+		assertEquals(Arrays.asList(1, 2, 3), keys());
+		checkRep();
+	}
+
+	/**
+	 * Only an empty file can be loaded
+	 */
+	@Test(expected = DbException.class)
+	public void loadTwice() throws Exception {
+		ArrayList<Tuple> tuples = BTreeUtility.generateRandomTuples(2, 1000, 0, 100);
+		new BTreeBulkLoader(bf).load(new TupleIterator(Utility.getTupleDesc(2), tuples));
+		new BTreeBulkLoader(bf).load(new TupleIterator(Utility.getTupleDesc(2), tuples));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoaderTest.class);
+	}
+}
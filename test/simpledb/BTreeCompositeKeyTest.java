@@ -0,0 +1,263 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeCompositeKeyTest extends SimpleDbTestBase {
+	private static final int TENANTS = 20;
+	private static final int[] KEYS = new int[] {0, 1};
+	private BTreeFile bf;
+	private BufferPool bp;
+	private Random rand;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		rand = new Random(7);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		// committed pages are written back at the page size they were read with
+		bp.getPageCleaner().awaitIdle();
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/**
+	 * Create an empty tree keyed on the first two fields of td, with small
+	 * pages so that the tree is several levels deep.
+	 */
+	private void createFile(TupleDesc td, int pageSize) throws IOException {
+		BufferPool.setPageSize(pageSize);
+		bp = Database.resetBufferPool(2000);
+		File f = File.createTempFile("compkeys", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		bf = new BTreeFile(f, KEYS, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+	}
+
+	/** @return (tenant_id, ts, value) tuples, a few hundred per tenant, in random order */
+	private ArrayList<Tuple> events(int n) {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < n; i++) {
+			tuples.add(BTreeUtility.getBTreeTuple(new int[] {rand.nextInt(TENANTS), rand.nextInt(100000), i}));
+		}
+		return tuples;
+	}
+
+	private void insert(List<Tuple> tuples) throws Exception {
+		for(int i = 0; i < tuples.size(); i += 500) {
+			TransactionId tid = new TransactionId();
+			for(Tuple t : tuples.subList(i, Math.min(i + 500, tuples.size()))) {
+				bp.insertTuple(tid, bf.getId(), t);
+			}
+			bp.transactionComplete(tid);
+		}
+	}
+
+	private ArrayList<Tuple> search(IndexPredicate ipred) throws Exception {
+		ArrayList<Tuple> result = new ArrayList<Tuple>();
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.indexIterator(tid, ipred);
+		it.open();
+		while(it.hasNext()) {
+			result.add(it.next());
+		}
+		it.close();
+		bp.transactionComplete(tid);
+		return result;
+	}
+
+	private void checkRep() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		bp.transactionComplete(tid);
+	}
+
+	private static int field(Tuple t, int i) {
+		return ((IntField) t.getField(i)).getValue();
+	}
+
+	/** @return the tuples whose tenant passes op against tenant, sorted on (tenant, ts) */
+	private static ArrayList<Tuple> expected(List<Tuple> tuples, Predicate.Op op, int tenant) {
+		ArrayList<Tuple> result = new ArrayList<Tuple>();
+		for(Tuple t : tuples) {
+			if(t.getField(0).compare(op, new IntField(tenant))) {
+				result.add(t);
+			}
+		}
+		Collections.sort(result, new BTreeFileEncoder.TupleComparator(KEYS));
+		return result;
+	}
+
+	/** Assert that two lists hold tuples with the same keys, in the same order. */
+	private static void assertSameKeys(List<Tuple> expected, List<Tuple> actual) {
+		assertEquals(expected.size(), actual.size());
+		for(int i = 0; i < expected.size(); i++) {
+			assertEquals(field(expected.get(i), 0), field(actual.get(i), 0));
+			assertEquals(field(expected.get(i), 1), field(actual.get(i), 1));
+		}
+	}
+
+	/**
+	 * A search on the first key field alone is a range scan over the tuples
+	 * of that tenant, in timestamp order
+	 */
+	@Test
+	public void prefixRangeScans() throws Exception {
+		createFile(Utility.getTupleDesc(3), 512);
+		ArrayList<Tuple> tuples = events(6000);
+		insert(tuples);
+		checkRep();
+
+		for(int tenant = 0; tenant < TENANTS; tenant += 3) {
+			assertSameKeys(expected(tuples, Predicate.Op.EQUALS, tenant),
+					search(new IndexPredicate(Predicate.Op.EQUALS, new Field[] {new IntField(tenant)})));
+		}
+		// a field that is not composite is a prefix of one field
+		assertSameKeys(expected(tuples, Predicate.Op.EQUALS, 4),
+				search(new IndexPredicate(Predicate.Op.EQUALS, new IntField(4))));
+		assertSameKeys(expected(tuples, Predicate.Op.GREATER_THAN, 15),
+				search(new IndexPredicate(Predicate.Op.GREATER_THAN, new IntField(15))));
+		assertSameKeys(expected(tuples, Predicate.Op.LESS_THAN_OR_EQ, 3),
+				search(new IndexPredicate(Predicate.Op.LESS_THAN_OR_EQ, new IntField(3))));
+	}
+
+	/**
+	 * A predicate on the whole key seeks to a point within a tenant
+	 */
+	@Test
+	public void fullKeyScans() throws Exception {
+		createFile(Utility.getTupleDesc(3), 512);
+		ArrayList<Tuple> tuples = events(3000);
+		insert(tuples);
+
+		Tuple probe = tuples.get(1234);
+		CompositeField key = new CompositeField(new Field[] {probe.getField(0), probe.getField(1)});
+		for(Tuple t : search(new IndexPredicate(Predicate.Op.EQUALS, key))) {
+			assertEquals(probe.getField(0), t.getField(0));
+			assertEquals(probe.getField(1), t.getField(1));
+		}
+		assertFalse(search(new IndexPredicate(Predicate.Op.EQUALS, key)).isEmpty());
+
+		// the rest of the tenant's events from the probe on
+		ArrayList<Tuple> from = search(new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, key));
+		int count = 0;
+		for(Tuple t : tuples) {
+			if(field(t, 0) > field(probe, 0) || (field(t, 0) == field(probe, 0) && field(t, 1) >= field(probe, 1))) {
+				count++;
+			}
+		}
+		assertEquals(count, from.size());
+		assertEquals(probe.getField(0), from.get(0).getField(0));
+	}
+
+	/**
+	 * Deletes merge and redistribute pages of composite keys like any other
+	 */
+	@Test
+	public void deletes() throws Exception {
+		createFile(Utility.getTupleDesc(3), 512);
+		ArrayList<Tuple> tuples = events(4000);
+		insert(tuples);
+		Collections.shuffle(tuples, rand);
+		for(int i = 0; i < 3800; i += 200) {
+			TransactionId tid = new TransactionId();
+			for(Tuple t : tuples.subList(i, i + 200)) {
+				// tuples move between pages, so find each one where it is now
+				CompositeField key = new CompositeField(new Field[] {t.getField(0), t.getField(1)});
+				DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, key));
+				it.open();
+				Tuple found = it.next();
+				it.close();
+				bp.deleteTuple(tid, found);
+			}
+			bp.transactionComplete(tid);
+		}
+		checkRep();
+		List<Tuple> rest = tuples.subList(3800, 4000);
+		assertSameKeys(expected(rest, Predicate.Op.GREATER_THAN_OR_EQ, 0),
+				search(new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0))));
+	}
+
+	/**
+	 * Keys with a string field use the variable-length layout of internal pages
+	 */
+	@Test
+	public void stringField() throws Exception {
+		TupleDesc td = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+		createFile(td, 1024);
+		String[] regions = new String[] {"eu-west", "eu-central", "us-east", "us-west", "ap-south"};
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 4000; i++) {
+			Tuple t = new Tuple(td);
+			t.setField(0, new StringField(regions[rand.nextInt(regions.length)], Type.STRING_LEN));
+			t.setField(1, new IntField(rand.nextInt(100000)));
+			tuples.add(t);
+		}
+		insert(tuples);
+		checkRep();
+
+		TransactionId tid = new TransactionId();
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(tid, BTreeRootPtrPage.getId(bf.getId()),
+				Permissions.READ_ONLY)).getRootId();
+		BTreeInternalPage root = (BTreeInternalPage) bp.getPage(tid, rootId, Permissions.READ_ONLY);
+		BTreeInternalPage copy = new BTreeInternalPage(rootId, root.getPageData(), KEYS);
+		Iterator<BTreeEntry> it = root.iterator();
+		Iterator<BTreeEntry> copyIt = copy.iterator();
+		while(it.hasNext()) {
+			assertEquals(it.next().getKey(), copyIt.next().getKey());
+		}
+		assertFalse(copyIt.hasNext());
+		bp.transactionComplete(tid);
+
+		StringField us = new StringField("us-east", Type.STRING_LEN);
+		int count = 0;
+		for(Tuple t : tuples) {
+			if(t.getField(0).equals(us)) {
+				count++;
+			}
+		}
+		ArrayList<Tuple> found = search(new IndexPredicate(Predicate.Op.EQUALS, new Field[] {us}));
+		assertEquals(count, found.size());
+		for(int i = 1; i < found.size(); i++) {
+			assertTrue(field(found.get(i - 1), 1) <= field(found.get(i), 1));
+		}
+	}
+
+	/**
+	 * The bulk loader sorts on all the key fields
+	 */
+	@Test
+	public void bulkLoad() throws Exception {
+		createFile(Utility.getTupleDesc(3), 512);
+		ArrayList<Tuple> tuples = events(5000);
+		new BTreeBulkLoader(bf).load(new TupleIterator(Utility.getTupleDesc(3), tuples));
+		checkRep();
+		assertSameKeys(expected(tuples, Predicate.Op.EQUALS, 9),
+				search(new IndexPredicate(Predicate.Op.EQUALS, new IntField(9))));
+		insert(events(500));
+		checkRep();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeCompositeKeyTest.class);
+	}
+}
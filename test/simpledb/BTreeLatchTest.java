@@ -0,0 +1,280 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.Predicate.Op;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchTest extends SimpleDbTestBase {
+	private BTreeFile bf;
+	private BufferPool bp;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// a packed tree with an internal root over about 40 leaves
+		bf = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 0);
+		bp = Database.resetBufferPool(500);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private int count(DbFileIterator it) throws Exception {
+		int n = 0;
+		it.open();
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		return n;
+	}
+
+	/**
+	 * A search locks the leaves it reads, and none of the pages above them
+	 */
+	@Test
+	public void searchLocksOnlyLeaves() throws Exception {
+		TransactionId tid = new TransactionId();
+		count(bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(100))));
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(null, rootPtrId, Permissions.READ_ONLY)).getRootId();
+		assertEquals(BTreePageId.INTERNAL, rootId.pgcateg());
+
+		LockManager lm = bp.getLockManager();
+		assertNull(lm.holds(tid, rootPtrId));
+		assertNull(lm.holds(tid, rootId));
+		assertTrue(lm.numLocks(tid) > 0);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A split changes the parent of the leaf without waiting for a transaction
+	 * that searched through it and has not committed
+	 */
+	@Test
+	public void splitDoesNotWaitForSearches() throws Exception {
+		// a wait would abort the writer instead of hanging the test
+		bp.getLockManager().setTimeout(2000);
+		TransactionId reader = new TransactionId();
+		int found = count(bf.indexIterator(reader, new IndexPredicate(Op.GREATER_THAN_OR_EQ,
+				new IntField(BTreeUtility.MAX_RAND_VALUE - 100))));
+
+		TransactionId writer = new TransactionId();
+		int pages = bf.numPages();
+		for(int i = 0; i < 10; i++) {
+			bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {0, i}));
+		}
+		assertTrue(bf.numPages() > pages);
+		bp.transactionComplete(writer);
+
+		assertEquals(found, count(bf.indexIterator(reader, new IndexPredicate(Op.GREATER_THAN_OR_EQ,
+				new IntField(BTreeUtility.MAX_RAND_VALUE - 100)))));
+		bp.transactionComplete(reader);
+		BTreeChecker.checkRep(bf, new TransactionId(), new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * A search reads the committed version of an internal page that a split
+	 * has changed, instead of waiting for the split's transaction to end
+	 */
+	@Test
+	public void searchDoesNotWaitForSplits() throws Exception {
+		bp.getLockManager().setTimeout(2000);
+		IndexPredicate high = new IndexPredicate(Op.GREATER_THAN_OR_EQ,
+				new IntField(BTreeUtility.MAX_RAND_VALUE - 100));
+		TransactionId before = new TransactionId();
+		int found = count(bf.indexIterator(before, high));
+		bp.transactionComplete(before);
+
+		TransactionId writer = new TransactionId();
+		int pages = bf.numPages();
+		for(int i = 0; i < 10; i++) {
+			bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {0, i}));
+		}
+		assertTrue(bf.numPages() > pages);
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(null, BTreeRootPtrPage.getId(bf.getId()),
+				Permissions.READ_ONLY)).getRootId();
+		assertEquals(LockManager.Mode.X, bp.getLockManager().holds(writer, rootId));
+
+		// a wait would abort the reader
+		TransactionId reader = new TransactionId();
+		assertEquals(found, count(bf.indexIterator(reader, high)));
+		bp.transactionComplete(reader);
+		bp.transactionComplete(writer);
+		BTreeChecker.checkRep(bf, new TransactionId(), new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * Searches running while other threads split and commit pages above the
+	 * leaves they read find the same tuples each time
+	 */
+	@Test
+	public void searchesDuringSplits() throws Exception {
+		final IndexPredicate high = new IndexPredicate(Op.GREATER_THAN_OR_EQ,
+				new IntField(BTreeUtility.MAX_RAND_VALUE - 1000));
+		TransactionId tid = new TransactionId();
+		final int found = count(bf.indexIterator(tid, high));
+		bp.transactionComplete(tid);
+
+		final Throwable[] error = new Throwable[1];
+		ArrayList<Thread> inserters = new ArrayList<Thread>();
+		for(int i = 0; i < 4; i++) {
+			final int first = i * 500;
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						for(int j = 0; j < 500; j++) {
+							insertOne(BTreeUtility.getBTreeTuple(new int[] {(first + j) % 1000, j}));
+						}
+					} catch(Throwable e) {
+						error[0] = e;
+					}
+				}
+			};
+			t.start();
+			inserters.add(t);
+		}
+		int searches = 0;
+		while(searches == 0 || inserters.get(0).isAlive()) {
+			TransactionId reader = new TransactionId();
+			assertEquals(found, count(bf.indexIterator(reader, high)));
+			bp.transactionComplete(reader);
+			searches++;
+		}
+		for(Thread t : inserters) {
+			t.join();
+		}
+		assertNull(error[0]);
+		BTreeChecker.checkRep(bf, new TransactionId(), new HashMap<PageId, Page>(), true);
+	}
+
+	/**
+	 * Transactions inserting into one tree from several threads all get their
+	 * tuples in, and the tree stays well formed
+	 */
+	@Test
+	public void concurrentInserts() throws Exception {
+		final int threads = 8;
+		final int inserts = 300;
+		final Throwable[] error = new Throwable[1];
+		ArrayList<Thread> inserters = new ArrayList<Thread>();
+		for(int i = 0; i < threads; i++) {
+			final int first = i * inserts;
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						for(int j = 0; j < inserts; j++) {
+							insertOne(BTreeUtility.getBTreeTuple(new int[] {(first + j) * 7 % BTreeUtility.MAX_RAND_VALUE, j}));
+						}
+					} catch(Throwable e) {
+						error[0] = e;
+					}
+				}
+			};
+			t.start();
+			inserters.add(t);
+		}
+		for(Thread t : inserters) {
+			t.join();
+		}
+		assertNull(error[0]);
+
+		TransactionId tid = new TransactionId();
+		assertEquals(20000 + threads * inserts, count(bf.iterator(tid)));
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A commit that splits internal pages of one tree changes the version of
+	 * that tree only, so searches of other trees need not start again
+	 */
+	@Test
+	public void versionIsPerTree() throws Exception {
+		BTreeFile other = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+		long otherVersion = bp.getTreeVersion(other.getId()).get();
+		long version = bp.getTreeVersion(bf.getId()).get();
+
+		TransactionId writer = new TransactionId();
+		int pages = bf.numPages();
+		for(int i = 0; i < 10; i++) {
+			bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(new int[] {0, i}));
+		}
+		assertTrue(bf.numPages() > pages);
+		bp.transactionComplete(writer);
+
+		assertEquals(version + 2, bp.getTreeVersion(bf.getId()).get());
+		assertEquals(otherVersion, bp.getTreeVersion(other.getId()).get());
+	}
+
+	/**
+	 * A search that starts while a commit installs the internal pages of the
+	 * tree waits for the install to end
+	 */
+	@Test
+	public void searchWaitsForInstall() throws Exception {
+		final IndexPredicate high = new IndexPredicate(Op.GREATER_THAN_OR_EQ,
+				new IntField(BTreeUtility.MAX_RAND_VALUE - 100));
+		TransactionId tid = new TransactionId();
+		final int found = count(bf.indexIterator(tid, high));
+		bp.transactionComplete(tid);
+
+		TreeVersion version = bp.getTreeVersion(bf.getId());
+		version.beginInstall();
+		final int[] searched = new int[] {-1};
+		final Throwable[] error = new Throwable[1];
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					TransactionId tid = new TransactionId();
+					searched[0] = count(bf.indexIterator(tid, high));
+					bp.transactionComplete(tid);
+				} catch(Throwable e) {
+					error[0] = e;
+				}
+			}
+		};
+		reader.start();
+		reader.join(200);
+		assertTrue(reader.isAlive());
+		version.endInstall();
+		reader.join();
+		assertNull(error[0]);
+		assertEquals(found, searched[0]);
+	}
+
+	/** Insert a tuple in a transaction of its own, again if it is aborted. */
+	private void insertOne(Tuple t) throws Exception {
+		while(true) {
+			TransactionId tid = new TransactionId();
+			try {
+				bp.insertTuple(tid, bf.getId(), t);
+				bp.transactionComplete(tid);
+				return;
+			} catch(TransactionAbortedException e) {
+				bp.transactionComplete(tid, false);
+			}
+		}
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchTest.class);
+	}
+}
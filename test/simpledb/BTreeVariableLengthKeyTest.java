@@ -0,0 +1,229 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeVariableLengthKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[] {Type.STRING_TYPE, Type.INT_TYPE});
+	private BTreeFile bf;
+	private BufferPool bp;
+	private Random rand;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		bp = Database.resetBufferPool(500);
+		rand = new Random(42);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	/** Create an empty tree keyed on strings, for the current page size. */
+	private void createFile() throws IOException {
+		File f = File.createTempFile("strkeys", ".dat");
+		f.deleteOnExit();
+		f.delete();
+		bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+	}
+
+	private Tuple tuple(String key, int value) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(key, Type.STRING_LEN));
+		t.setField(1, new IntField(value));
+		return t;
+	}
+
+	/** @return a key with a long common prefix and a long random tail */
+	private String randomKey() {
+		StringBuilder sb = new StringBuilder(String.format("customer-%08d-", rand.nextInt(100000000)));
+		for(int i = 0; i < 40; i++) {
+			sb.append((char) ('a' + rand.nextInt(26)));
+		}
+		return sb.toString();
+	}
+
+	private BTreePage root(TransactionId tid) throws Exception {
+		BTreePageId rootId = ((BTreeRootPtrPage) bp.getPage(tid, BTreeRootPtrPage.getId(bf.getId()),
+				Permissions.READ_ONLY)).getRootId();
+		return (BTreePage) bp.getPage(tid, rootId, Permissions.READ_ONLY);
+	}
+
+	private int count() throws Exception {
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int n = 0;
+		while(it.hasNext()) {
+			it.next();
+			n++;
+		}
+		it.close();
+		bp.transactionComplete(tid);
+		return n;
+	}
+
+	private void checkRep() throws Exception {
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		bp.transactionComplete(tid);
+	}
+
+	/**
+	 * A page of string keys holds many more entries than fit at the full width
+	 * of the key type, and reads back the same entries
+	 */
+	@Test
+	public void pageRoundTrip() throws Exception {
+		createFile();
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), 0);
+		int n = 0;
+		while(page.getNumEmptySlots() > 0) {
+			BTreePageId left = new BTreePageId(bf.getId(), n + 2, BTreePageId.LEAF);
+			BTreePageId right = new BTreePageId(bf.getId(), n + 3, BTreePageId.LEAF);
+			page.insertEntry(new BTreeEntry(new StringField(String.format("key-%05d", n), Type.STRING_LEN),
+					left, right));
+			n++;
+		}
+		int fixedWidth = (BufferPool.getPageSize() - 9) / (Type.STRING_TYPE.getLen() + BTreeInternalPage.INDEX_SIZE);
+		assertTrue(n > 10 * fixedWidth);
+
+		BTreeInternalPage copy = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertEquals(n, copy.getNumEntries());
+		Iterator<BTreeEntry> it = page.iterator();
+		Iterator<BTreeEntry> copyIt = copy.iterator();
+		while(it.hasNext()) {
+			BTreeEntry e = it.next();
+			BTreeEntry c = copyIt.next();
+			assertEquals(e.getKey(), c.getKey());
+			assertEquals(e.getLeftChild(), c.getLeftChild());
+			assertEquals(e.getRightChild(), c.getRightChild());
+		}
+		assertFalse(copyIt.hasNext());
+		assertArrayEquals(page.getPageData(), copy.getPageData());
+	}
+
+	/**
+	 * The separators copied up from the leaves are only as long as they need
+	 * to be, so a single internal page fans out to more leaves than a page of
+	 * full-width keys could
+	 */
+	@Test
+	public void separatorsAreTruncated() throws Exception {
+		createFile();
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < 3000; i++) {
+			bp.insertTuple(tid, bf.getId(), tuple(randomKey(), i));
+		}
+		bp.transactionComplete(tid);
+
+		tid = new TransactionId();
+		BTreeInternalPage root = (BTreeInternalPage) root(tid);
+		assertEquals(BTreePageId.LEAF, root.getChildId(0).pgcateg());
+		assertTrue(root.getNumEntries() > root.getMaxEntries());
+		Iterator<BTreeEntry> it = root.iterator();
+		while(it.hasNext()) {
+			assertTrue(((StringField) it.next().getKey()).getValue().length() < "customer-00000000-".length());
+		}
+		bp.transactionComplete(tid);
+		assertEquals(3000, count());
+		checkRep();
+	}
+
+	/**
+	 * With small pages, internal pages of string keys split, steal and merge
+	 * like those of fixed-width keys, by the space their entries take
+	 */
+	@Test
+	public void insertsAndDeletes() throws Exception {
+		BufferPool.setPageSize(1024);
+		bp = Database.resetBufferPool(500);
+		createFile();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 6000; i++) {
+			tuples.add(tuple(randomKey(), i));
+		}
+		for(int i = 0; i < tuples.size(); i += 200) {
+			TransactionId tid = new TransactionId();
+			for(Tuple t : tuples.subList(i, i + 200)) {
+				bp.insertTuple(tid, bf.getId(), t);
+			}
+			bp.transactionComplete(tid);
+		}
+		TransactionId tid = new TransactionId();
+		BTreeInternalPage root = (BTreeInternalPage) root(tid);
+		assertEquals(BTreePageId.INTERNAL, root.getChildId(0).pgcateg());
+		bp.transactionComplete(tid);
+		assertEquals(6000, count());
+		checkRep();
+
+		// delete all but a few tuples, in random order
+		Collections.shuffle(tuples, rand);
+		for(int i = 0; i < 5900; i += 100) {
+			tid = new TransactionId();
+			for(Tuple t : tuples.subList(i, i + 100)) {
+				// tuples move between pages, so find each one where it is now
+				DbFileIterator it = bf.indexIterator(tid,
+						new IndexPredicate(Predicate.Op.EQUALS, t.getField(0)));
+				it.open();
+				Tuple found = it.next();
+				it.close();
+				bp.deleteTuple(tid, found);
+			}
+			bp.transactionComplete(tid);
+			if(i % 1000 == 0) {
+				checkRep();
+			}
+		}
+		assertEquals(100, count());
+		checkRep();
+	}
+
+	/**
+	 * The bulk loader writes string keys in the variable-length layout, with
+	 * shortened separators
+	 */
+	@Test
+	public void bulkLoad() throws Exception {
+		createFile();
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 5000; i++) {
+			tuples.add(tuple(randomKey(), i));
+		}
+		new BTreeBulkLoader(bf).load(new TupleIterator(TD, tuples));
+		assertEquals(5000, count());
+		checkRep();
+
+		TransactionId tid = new TransactionId();
+		for(int i = 0; i < 500; i++) {
+			bp.insertTuple(tid, bf.getId(), tuple(randomKey(), i));
+		}
+		bp.transactionComplete(tid);
+		assertEquals(5500, count());
+		checkRep();
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeVariableLengthKeyTest.class);
+	}
+}
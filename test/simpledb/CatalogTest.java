@@ -1,6 +1,8 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -93,6 +95,24 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * A table replaced in or cleared from the catalog releases its file,
+     * and opens it again if it is still used
+     */
+    @Test public void releasesFiles() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertTrue(hf.isOpen());
+        HeapFile same = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(same, name);
+        assertFalse(hf.isOpen());
+        hf.readPage(new HeapPageId(hf.getId(), 0));
+        same.readPage(new HeapPageId(hf.getId(), 0));
+        Database.getCatalog().clear();
+        assertFalse(same.isOpen());
+        hf.close();
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,118 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class DeltaLoggingTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private LogFile log;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("deltalog", ".dat");
+        f.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        bp = Database.getBufferPool();
+        log = Database.getLogFile();
+    }
+
+    /** @return the types of the records in the log */
+    private ArrayList<Integer> recordTypes() throws Exception {
+        ArrayList<Integer> types = new ArrayList<Integer>();
+        LogRecord.Reader reader = new LogRecord.Reader(log.logFile, LogFile.LONG_SIZE);
+        LogRecord r;
+        while ((r = reader.next()) != null)
+            types.add(r.type);
+        reader.close();
+        return types;
+    }
+
+    /** @return the first column of the tuples of the table as stored on disk */
+    private ArrayList<Integer> onDisk() throws Exception {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        HeapPage p = hf.readPage(new HeapPageId(hf.getId(), 0),
+                ByteBuffer.allocate(BufferPool.getPageSize()));
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext())
+            values.add(SystemTestUtil.tupleToList(it.next()).get(0));
+        return values;
+    }
+
+    /**
+     * A one tuple insert is logged as a delta much smaller than a page
+     */
+    @Test public void smallChangeLogsDelta() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {1, 2}));
+        long length = log.logFile.length();
+        t.commit();
+
+        assertTrue(log.logFile.length() - length < 256);
+        assertTrue(recordTypes().contains(LogFile.UPDATE_DELTA_RECORD));
+        assertFalse(recordTypes().contains(LogFile.UPDATE_RECORD));
+    }
+
+    /**
+     * A change to a large part of the page is logged with full images
+     */
+    @Test public void largeChangeLogsImages() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        int tuples = BufferPool.getPageSize() / 2 / (2 * Type.INT_TYPE.getLen());
+        for (int i = 0; i < tuples; i++)
+            bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[] {i, i}));
+        t.commit();
+
+        assertTrue(recordTypes().contains(LogFile.UPDATE_RECORD));
+        assertFalse(recordTypes().contains(LogFile.UPDATE_DELTA_RECORD));
+    }
+
+    /**
+     * Rolling back undoes a delta written to disk and keeps the changes of
+     * committed transactions
+     */
+    @Test public void rollbackUndoesDelta() throws Exception {
+        Transaction t1 = new Transaction();
+        t1.start();
+        bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[] {1, 1}));
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bp.insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(new int[] {2, 2}));
+        bp.flushAllPages();
+        assertEquals(2, onDisk().size());
+        assertTrue(recordTypes().contains(LogFile.UPDATE_DELTA_RECORD));
+
+        log.logAbort(t2.getId());
+        bp.transactionComplete(t2.getId(), false);
+        ArrayList<Integer> values = onDisk();
+        assertEquals(1, values.size());
+        assertEquals(1, (int) values.get(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeltaLoggingTest.class);
+    }
+}
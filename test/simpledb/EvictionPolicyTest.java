@@ -0,0 +1,162 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 8;
+
+    /** Evictable that refuses a fixed set of (dirty) pages. */
+    private static class NotDirty implements EvictionPolicy.Evictable {
+        final Set<PageId> dirty = new HashSet<PageId>();
+        public boolean canEvict(PageId pid) {
+            return !dirty.contains(pid);
+        }
+    }
+
+    private static PageId pid(int pgNo) {
+        return new BTreePageId(1, pgNo, BTreePageId.LEAF);
+    }
+
+    /**
+     * Simulate a buffer pool of POOL_PAGES pages: request each page, evicting
+     * a victim chosen by the policy when the pool is full.
+     */
+    private static void access(EvictionPolicy policy, Set<PageId> resident,
+            NotDirty evictable, int... pgNos) {
+        for (int pgNo : pgNos) {
+            PageId pid = pid(pgNo);
+            if (resident.contains(pid)) {
+                policy.pageHit(pid);
+                continue;
+            }
+            if (resident.size() >= POOL_PAGES) {
+                PageId victim = policy.chooseVictim(evictable);
+                assertNotNull(victim);
+                assertTrue(resident.remove(victim));
+            }
+            resident.add(pid);
+            policy.pageMiss(pid);
+        }
+    }
+
+    /** Make pages 0 and 1 hot, then scan pages 100..199 once. */
+    private static Set<PageId> hotPagesThenScan(EvictionPolicy policy) {
+        Set<PageId> resident = new HashSet<PageId>();
+        NotDirty evictable = new NotDirty();
+        for (int round = 0; round < 3; round++) {
+            access(policy, resident, evictable, 0, 1);
+            for (int i = 0; i < POOL_PAGES / 2; i++)
+                access(policy, resident, evictable, 10 + round * POOL_PAGES + i);
+        }
+        access(policy, resident, evictable, 0, 1);
+        for (int i = 100; i < 200; i++)
+            access(policy, resident, evictable, i);
+        return resident;
+    }
+
+    /**
+     * Unit test for LRUEvictionPolicy: a scan flushes the hot pages
+     */
+    @Test public void lruIsNotScanResistant() {
+        Set<PageId> resident = hotPagesThenScan(new LRUEvictionPolicy());
+        assertFalse(resident.contains(pid(0)));
+        assertFalse(resident.contains(pid(1)));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: hot pages survive a scan
+     */
+    @Test public void twoQueueIsScanResistant() {
+        Set<PageId> resident = hotPagesThenScan(new TwoQueueEvictionPolicy(POOL_PAGES));
+        assertTrue(resident.contains(pid(0)));
+        assertTrue(resident.contains(pid(1)));
+    }
+
+    /**
+     * Unit test for ARCEvictionPolicy: hot pages survive a scan
+     */
+    @Test public void arcIsScanResistant() {
+        Set<PageId> resident = hotPagesThenScan(new ARCEvictionPolicy(POOL_PAGES));
+        assertTrue(resident.contains(pid(0)));
+        assertTrue(resident.contains(pid(1)));
+    }
+
+    /**
+     * Policies must never pick a page the buffer pool refuses to evict
+     */
+    @Test public void noSteal() {
+        EvictionPolicy[] policies = new EvictionPolicy[] {
+                new LRUEvictionPolicy(),
+                new TwoQueueEvictionPolicy(POOL_PAGES),
+                new ARCEvictionPolicy(POOL_PAGES) };
+        for (EvictionPolicy policy : policies) {
+            NotDirty evictable = new NotDirty();
+            for (int i = 0; i < POOL_PAGES; i++) {
+                policy.pageMiss(pid(i));
+                if (i != 5)
+                    evictable.dirty.add(pid(i));
+            }
+            assertEquals(pid(5), policy.chooseVictim(evictable));
+            assertNull(policy.chooseVictim(evictable));
+        }
+    }
+
+    /**
+     * Unit test for the hit / miss counters
+     */
+    @Test public void hitRatio() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(POOL_PAGES);
+        assertEquals(0.0, policy.getHitRatio(), 0.0);
+        Set<PageId> resident = new HashSet<PageId>();
+        access(policy, resident, new NotDirty(), 1, 2, 1, 1);
+        assertEquals(2, policy.getHits());
+        assertEquals(2, policy.getMisses());
+        assertEquals(0.5, policy.getHitRatio(), 1e-9);
+        policy.resetStats();
+        assertEquals(0, policy.getHits());
+        assertEquals(0, policy.getMisses());
+    }
+
+    /**
+     * Hits from many threads are all counted, and hits applied late still
+     * keep a page from being chosen as the victim
+     */
+    @Test public void concurrentHits() throws Exception {
+        final EvictionPolicy policy = new LRUEvictionPolicy();
+        for (int i = 0; i < POOL_PAGES; i++)
+            policy.pageMiss(pid(i));
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++)
+                        policy.pageHit(pid(i % POOL_PAGES));
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(4 * 10000, policy.getHits());
+        // the queued hit on page 0 is applied before the victim is chosen
+        policy.pageHit(pid(0));
+        assertFalse(pid(0).equals(policy.chooseVictim(new NotDirty())));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CyclicBarrier;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("groupcommit", ".dat");
+        f.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        bp = Database.getBufferPool();
+    }
+
+    /** @return the tuples of the table as stored on disk, bypassing the BufferPool */
+    private ArrayList<ArrayList<Integer>> onDisk() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile copy = new HeapFile(hf.getFile(), hf.getTupleDesc());
+        for (int i = 0; i < copy.numPages(); i++) {
+            HeapPage p = copy.readPage(new HeapPageId(hf.getId(), i),
+                    ByteBuffer.allocate(BufferPool.getPageSize()));
+            Iterator<Tuple> it = p.iterator();
+            while (it.hasNext())
+                tuples.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        return tuples;
+    }
+
+    /**
+     * Committed pages are written back by the PageCleaner and then clean
+     */
+    @Test public void cleanerWritesCommittedPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] {1, 2}));
+        bp.transactionComplete(tid, true);
+
+        bp.getPageCleaner().awaitIdle();
+        assertEquals(1, onDisk().size());
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        TransactionId reader = new TransactionId();
+        assertNull(bp.getPage(reader, pid, Permissions.READ_ONLY).isDirty());
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * An abort keeps the committed changes of earlier transactions, whether
+     * or not they were written back yet
+     */
+    @Test public void abortKeepsCommittedChanges() throws Exception {
+        TransactionId t1 = new TransactionId();
+        bp.insertTuple(t1, hf.getId(), Utility.getHeapTuple(new int[] {1, 1}));
+        bp.transactionComplete(t1, true);
+
+        TransactionId t2 = new TransactionId();
+        bp.insertTuple(t2, hf.getId(), Utility.getHeapTuple(new int[] {2, 2}));
+        bp.transactionComplete(t2, false);
+
+        TransactionId t3 = new TransactionId();
+        DbFileIterator it = hf.iterator(t3);
+        it.open();
+        assertTrue(it.hasNext());
+        assertEquals(1, ((IntField) it.next().getField(0)).getValue());
+        assertFalse(it.hasNext());
+        it.close();
+        bp.transactionComplete(t3);
+
+        bp.getPageCleaner().awaitIdle();
+        assertEquals(1, onDisk().size());
+    }
+
+    /**
+     * Transactions committing together share log forces
+     */
+    @Test public void commitsShareForces() throws Exception {
+        final LogFile log = Database.getLogFile();
+        log.setGroupCommitWindow(20000);
+        final TransactionId[] tids = new TransactionId[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            tids[i] = new TransactionId();
+            log.logXactionBegin(tids[i]);
+        }
+        long forces = log.getNumForces();
+
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        final Exception[] errors = new Exception[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        log.logCommit(tids[n]);
+                    } catch (Exception e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < THREADS; i++) {
+            threads[i].join();
+            assertNull(errors[i]);
+        }
+
+        assertTrue(log.getNumForces() - forces < THREADS);
+        for (TransactionId tid : tids)
+            assertFalse(log.isActive(tid));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+    private final Random rand = new Random(11);
+
+    /** A TupleIterator that counts how many times it is rewound. */
+    private static class CountingIterator extends TupleIterator {
+        private static final long serialVersionUID = 1L;
+        int rewinds = 0;
+
+        CountingIterator(TupleDesc td, List<Tuple> tuples) {
+            super(td, tuples);
+        }
+
+        public void rewind() {
+            rewinds++;
+            super.rewind();
+        }
+    }
+
+    /** @return n two-field tuples whose first field is drawn from [0, keys) */
+    private List<Tuple> tuples(int n, int keys) {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            result.add(Utility.getHeapTuple(new int[] { rand.nextInt(keys), i }));
+        return result;
+    }
+
+    private void check(List<Tuple> left, List<Tuple> right, int memoryPages) throws Exception {
+        CountingIterator inner = new CountingIterator(Utility.getTupleDesc(2), right);
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin join = new HashEquiJoin(p, new TupleIterator(Utility.getTupleDesc(2), left),
+                inner, memoryPages);
+        List<String> expected = TestUtil.joinStrings(left, right, p);
+        assertEquals(expected, TestUtil.sortedTupleStrings(join));
+        // the inner child is read once, however large the outer one is
+        assertEquals(0, inner.rewinds);
+        join.open();
+        join.next();
+        join.rewind();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        assertEquals(expected.size(), count);
+    }
+
+    /**
+     * A join whose outer child fits in memory is done in one pass
+     */
+    @Test public void inMemory() throws Exception {
+        check(tuples(500, 100), tuples(2000, 100), 16);
+    }
+
+    /**
+     * A join whose outer child does not fit in memory is done by partitions
+     * written to disk, splitting them again when they do not fit either
+     */
+    @Test public void partitioned() throws Exception {
+        // 3 pages hold about 1500 tuples, so partitions of 10000 are split again
+        check(tuples(20000, 5000), tuples(5000, 5000), 3);
+        check(tuples(20000, 5000), tuples(5000, 5000), 8);
+    }
+
+    /**
+     * A join field value too common to split into partitions that fit is
+     * joined a chunk of the outer child at a time
+     */
+    @Test public void skewed() throws Exception {
+        List<Tuple> left = tuples(3000, 1);
+        left.addAll(tuples(2000, 500));
+        check(left, tuples(300, 20), 3);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
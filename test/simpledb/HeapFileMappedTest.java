@@ -0,0 +1,67 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HeapFileMappedTest extends SimpleDbTestBase {
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 2000, 1000, null, tuples);
+        hf = new HeapFile(f, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * A scan of a mapped table returns every tuple without reading pages
+     * into the BufferPool
+     */
+    @Test public void scanSkipsBufferPool() throws Exception {
+        assertTrue(hf.numPages() > 1);
+        long misses = Database.getBufferPool().getEvictionPolicy().getMisses();
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertEquals(misses, Database.getBufferPool().getEvictionPolicy().getMisses());
+    }
+
+    /**
+     * Pages of a mapped table are read only
+     */
+    @Test(expected=DbException.class)
+    public void pageIsReadOnly() throws Exception {
+        HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertTrue(p.iterator().hasNext());
+        p.deleteTuple(p.iterator().next());
+    }
+
+    /**
+     * A mapped table cannot be written
+     */
+    @Test(expected=IOException.class)
+    public void writePageFails() throws Exception {
+        hf.writePage(hf.readPage(new HeapPageId(hf.getId(), 0)));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileMappedTest.class);
+    }
+}
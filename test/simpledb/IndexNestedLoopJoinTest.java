@@ -0,0 +1,180 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+    private HeapFile outer;
+    private HeapFile inner;
+    private SecondaryIndex index;
+    private BTreeFile tree;
+
+    /**
+     * Create a small outer table, and an inner table both as a heap file with
+     * an index on c1 and as a B+ tree keyed on c1.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        outer = SystemTestUtil.createRandomHeapFile(2, 50, 200, null, null, "o");
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        inner = SystemTestUtil.createRandomHeapFile(3, 3000, 200, null, tuples, "c");
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        f.delete();
+        index = new SecondaryIndex(f, inner.getId(), new int[] { 1 }, new int[] { 2 });
+        Database.getCatalog().addIndex(index, SystemTestUtil.getUUID());
+        index.build();
+        File hFile = File.createTempFile("table", ".dat");
+        hFile.deleteOnExit();
+        File bFile = File.createTempFile("table_index", ".dat");
+        bFile.deleteOnExit();
+        tree = BTreeFileEncoder.convert(tuples, hFile, bFile, BufferPool.getPageSize(), 3,
+                new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE }, ',', 1);
+        Database.getCatalog().addTable(tree, SystemTestUtil.getUUID());
+    }
+
+    /** @return the tuples of a file */
+    private static List<Tuple> tuples(TransactionId tid, DbFile file) throws Exception {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            result.add(it.next());
+        it.close();
+        return result;
+    }
+
+    /**
+     * @return the sorted values of the join of outer and the given fields of
+     *         a table (all of them if fields is null) on p, computed by
+     *         comparing every pair
+     */
+    private static List<String> expected(TransactionId tid, HeapFile outer, DbFile table,
+            int[] fields, JoinPredicate p) throws Exception {
+        List<Tuple> inner = tuples(tid, table);
+        if (fields != null) {
+            ArrayList<Tuple> projected = new ArrayList<Tuple>();
+            for (Tuple i : inner) {
+                Tuple t = new Tuple(Utility.getTupleDesc(fields.length));
+                for (int k = 0; k < fields.length; k++)
+                    t.setField(k, i.getField(fields[k]));
+                projected.add(t);
+            }
+            inner = projected;
+        }
+        return TestUtil.joinStrings(tuples(tid, outer), inner, p);
+    }
+
+    /**
+     * A join that probes a B+ tree keyed on the join field, or a secondary
+     * index on it, finds the same tuples as comparing every pair
+     */
+    @Test public void equiJoin() throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        List<String> expected = expected(tid, outer, inner, null, p);
+        assertFalse(expected.isEmpty());
+
+        // the secondary index, following each entry to its tuple
+        SeqScan scan = new SeqScan(tid, inner.getId(), "i");
+        assertTrue(IndexNestedLoopJoin.canProbe(p, scan));
+        assertEquals(expected, TestUtil.sortedTupleStrings(
+                new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), "o"), scan)));
+
+        // the clustered B+ tree, whose entries are the tuples
+        scan = new SeqScan(tid, tree.getId(), "b");
+        assertTrue(IndexNestedLoopJoin.canProbe(p, scan));
+        assertEquals(expected, TestUtil.sortedTupleStrings(
+                new IndexNestedLoopJoin(p, new SeqScan(tid, outer.getId(), "o"), scan)));
+
+        // the secondary index alone, giving the covered fields
+        IndexOnlyScan ios = new IndexOnlyScan(tid, index, "i", null);
+        JoinPredicate p0 = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        assertTrue(IndexNestedLoopJoin.canProbe(p0, ios));
+        assertEquals(expected(tid, outer, inner, new int[] { 1, 2 }, p0),
+                TestUtil.sortedTupleStrings(
+                        new IndexNestedLoopJoin(p0, new SeqScan(tid, outer.getId(), "o"), ios)));
+
+        // no index on c2
+        assertFalse(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.EQUALS, 2),
+                new SeqScan(tid, inner.getId(), "i")));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A join on an inequality probes the index with a range search
+     */
+    @Test public void rangeJoin() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.LESS_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+            JoinPredicate p = new JoinPredicate(0, op, 1);
+            // keep the join small
+            HeapFile few = SystemTestUtil.createRandomHeapFile(2, 5, 200, null, null, "o");
+            assertEquals(expected(tid, few, inner, null, p),
+                    TestUtil.sortedTupleStrings(new IndexNestedLoopJoin(p,
+                            new SeqScan(tid, few.getId(), "o"), new SeqScan(tid, tree.getId(), "b"))));
+        }
+        assertFalse(IndexNestedLoopJoin.canProbe(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 1),
+                new SeqScan(tid, tree.getId(), "b")));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The optimizer costs a join with an indexed table that finds few tuples
+     * per probe below a nested-loops join, and instantiates it as an index
+     * join
+     */
+    @Test public void optimizer() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(outer.getId(), "o");
+        lp.addScan(inner.getId(), "i");
+        JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+
+        LogicalJoinNode indexed = new LogicalJoinNode("o", "i", "o0", "c1", Predicate.Op.EQUALS);
+        LogicalJoinNode unindexed = new LogicalJoinNode("o", "i", "o0", "c2", Predicate.Op.EQUALS);
+        double cost1 = 2 * 1000, cost2 = inner.numPages() * 1000;
+        double nl = cost1 + 1000 * cost2 + 1000 * 3000;
+        assertTrue(jo.estimateJoinCost(unindexed, 1000, 3000, cost1, cost2) <= nl);
+        // a probe that finds a few tuples is cheaper than a scan of the table
+        assertTrue(jo.estimateJoinCost(indexed, 1000, 3000, cost1, cost2) < nl);
+        // but following the entries to the pages of many tuples is not
+        assertEquals(jo.estimateJoinCost(unindexed, 10, 3000, cost1, cost2),
+                jo.estimateJoinCost(indexed, 10, 3000, cost1, cost2), 0.001);
+
+        TransactionId tid = new TransactionId();
+        LogicalJoinNode lj = new LogicalJoinNode("o", "i", "o.o0", "i.c1", Predicate.Op.EQUALS);
+        OpIterator j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, outer.getId(), "o"),
+                new SeqScan(tid, inner.getId(), "i"));
+        assertTrue(j instanceof IndexNestedLoopJoin);
+        lj = new LogicalJoinNode("o", "i", "o.o0", "i.c2", Predicate.Op.EQUALS);
+        j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, outer.getId(), "o"),
+                new SeqScan(tid, inner.getId(), "i"));
+        assertTrue(j instanceof Join);
+
+        // once costed, the join uses the algorithm that was cheapest for it,
+        // here hashing rather than probing the index once per outer tuple
+        jo.estimateJoinCost(indexed, 1000, 3000, cost1, cost2);
+        assertEquals(JoinOptimizer.Algorithm.HASH, indexed.algorithm);
+        j = JoinOptimizer.instantiateJoin(indexed, new SeqScan(tid, outer.getId(), "o"),
+                new SeqScan(tid, inner.getId(), "i"));
+        assertTrue(j instanceof HashEquiJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+    }
+}
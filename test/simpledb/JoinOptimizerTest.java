@@ -205,6 +205,40 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(Boolean.TRUE, ret[0]);
     }
 
+    /**
+     * An equality join of unsorted tables without indexes is costed and
+     * instantiated as a hash join, which pays for partitioning its inputs
+     * only once the left-hand side outgrows the memory of the join
+     */
+    @Test
+    public void hashJoinChosen() throws Exception {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(tableId1, "t1");
+        lp.addScan(tableId2, "t2");
+        JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+        LogicalJoinNode lj = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.EQUALS);
+        double cost1 = f1.numPages() * TableStats.IOCOSTPERPAGE;
+        double cost2 = f2.numPages() * TableStats.IOCOSTPERPAGE;
+        double cost = jo.estimateJoinCost(lj, 1000, 10000, cost1, cost2);
+        Assert.assertEquals(JoinOptimizer.Algorithm.HASH, lj.algorithm);
+        Assert.assertTrue(cost < cost1 + cost2 + 1000 * 10000);
+
+        TransactionId tid = new TransactionId();
+        OpIterator j = JoinOptimizer.instantiateJoin(lj,
+                new SeqScan(tid, tableId1, "t1"), new SeqScan(tid, tableId2, "t2"));
+        Assert.assertTrue(j instanceof HashEquiJoin);
+
+        // a left-hand side of 10000 pages is partitioned, so both sides are
+        // read three times
+        int card1 = 10000 * BufferPool.getPageSize() / f1.getTupleDesc().getSize();
+        double small = jo.estimateJoinCost(lj, 1000, 10000, 0, 0);
+        double big = jo.estimateJoinCost(lj, card1, 10000, 0, 0);
+        Assert.assertEquals(JoinOptimizer.Algorithm.HASH, lj.algorithm);
+        Assert.assertTrue(big - small > 2 * 10000 * TableStats.IOCOSTPERPAGE);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /**
      * Verify that the join cardinalities produced by estimateJoinCardinality()
      * are reasonable
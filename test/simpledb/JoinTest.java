@@ -3,6 +3,9 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
 import junit.framework.JUnit4TestAdapter;
 
 import org.junit.Before;
@@ -105,6 +108,43 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for a Join whose outer child fills several blocks: the inner
+   * child is read once per block, and every pair is still compared
+   */
+  @Test public void blockJoin() throws Exception {
+    // a page of 4096 bytes holds 512 two-field tuples
+    int[] outer = new int[2 * 1200];
+    for (int i = 0; i < 1200; i++) {
+      outer[2 * i] = i % 6;
+      outer[2 * i + 1] = i;
+    }
+    ArrayList<Tuple> innerTuples = new ArrayList<Tuple>();
+    for (int i = 1; i <= 5; i++)
+      innerTuples.add(Utility.getHeapTuple(new int[] { i, i + 1, i + 2 }));
+    final int[] rewinds = new int[1];
+    TupleIterator inner = new TupleIterator(Utility.getTupleDesc(width2), innerTuples) {
+      private static final long serialVersionUID = 1L;
+      public void rewind() {
+        rewinds[0]++;
+        super.rewind();
+      }
+    };
+    Join op = new Join(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+        TestUtil.createTupleList(width1, outer), inner, 2);
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      assertTrue(((IntField) t.getField(0)).getValue() < ((IntField) t.getField(width1)).getValue());
+      count++;
+    }
+    op.close();
+    // outer values 0..5 are each below 5, 4, 3, 2, 1 and 0 inner values
+    assertEquals(200 * (5 + 4 + 3 + 2 + 1), count);
+    assertEquals(2, rewinds[0]);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,376 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.LockManager.Mode;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+    private HeapPageId pid;
+    private LockManager lm;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("locks", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        pid = new HeapPageId(hf.getId(), 0);
+        lm = new LockManager();
+    }
+
+    /** @return the first column of the tuples of page 0, sorted */
+    private ArrayList<Integer> values(HeapPage p) {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext())
+            values.add(SystemTestUtil.tupleToList(it.next()).get(0));
+        Collections.sort(values);
+        return values;
+    }
+
+    private ArrayList<Integer> onDisk() throws Exception {
+        return values(hf.readPage(pid, ByteBuffer.allocate(BufferPool.getPageSize())));
+    }
+
+    /**
+     * Intention modes are compatible with each other, and conversions go to
+     * the least mode covering both
+     */
+    @Test public void modes() throws Exception {
+        assertTrue(Mode.IS.isCompatible(Mode.IX));
+        assertTrue(Mode.IX.isCompatible(Mode.IX));
+        assertTrue(Mode.IS.isCompatible(Mode.SIX));
+        assertFalse(Mode.IX.isCompatible(Mode.S));
+        assertFalse(Mode.SIX.isCompatible(Mode.IX));
+        assertFalse(Mode.IS.isCompatible(Mode.X));
+        assertEquals(Mode.SIX, Mode.IX.join(Mode.S));
+        assertEquals(Mode.S, Mode.IS.join(Mode.S));
+        assertEquals(Mode.X, Mode.SIX.join(Mode.X));
+
+        TransactionId tid = new TransactionId();
+        lm.lockPage(tid, pid, Mode.S);
+        lm.lockPage(tid, pid, Mode.IX);
+        assertEquals(Mode.SIX, lm.holds(tid, pid));
+        lm.lockPage(tid, pid, Mode.X);
+        assertEquals(Mode.X, lm.holds(tid, pid));
+        assertEquals(Mode.IX, lm.holdsTable(tid, hf.getId()));
+    }
+
+    /**
+     * A tuple lock takes intention locks on its page and table, which keep
+     * out page locks of other transactions but not their tuple locks
+     */
+    @Test public void tupleLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        RecordId r0 = new RecordId(pid, 0);
+        RecordId r1 = new RecordId(pid, 1);
+        lm.lockTuple(t1, r0, Mode.X);
+        assertEquals(Mode.IX, lm.holdsTable(t1, hf.getId()));
+        assertEquals(Mode.IX, lm.holds(t1, pid));
+        assertEquals(Mode.X, lm.holds(t1, r0));
+
+        lm.lockTuple(t2, r1, Mode.X);
+        assertEquals(Mode.X, lm.holds(t2, r1));
+        assertFalse(lm.acquire(t2, r0, Mode.S, false));
+        assertFalse(lm.acquire(t2, pid, Mode.S, false));
+
+        lm.releaseAll(t1);
+        assertEquals(0, lm.numLocks(t1));
+        assertTrue(lm.acquire(t2, r0, Mode.S, false));
+    }
+
+    /**
+     * A lock on a page covers the tuples on it, and many tuple locks on one
+     * page are escalated to a page lock
+     */
+    @Test public void escalation() throws Exception {
+        TransactionId tid = new TransactionId();
+        lm.setEscalationThreshold(4);
+        for (int i = 0; i < 4; i++)
+            lm.lockTuple(tid, new RecordId(pid, i), i == 0 ? Mode.X : Mode.S);
+        assertEquals(Mode.X, lm.holds(tid, pid));
+        assertEquals(2, lm.numLocks(tid));
+        lm.lockTuple(tid, new RecordId(pid, 5), Mode.X);
+        assertEquals(2, lm.numLocks(tid));
+
+        // escalation waits for nobody
+        TransactionId other = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        lm.lockTuple(other, new RecordId(p1, 0), Mode.S);
+        for (int i = 1; i <= 4; i++)
+            lm.lockTuple(t3, new RecordId(p1, i), Mode.X);
+        assertEquals(Mode.IX, lm.holds(t3, p1));
+        assertEquals(6, lm.numLocks(t3));
+    }
+
+    /**
+     * A transaction that waits longer than the timeout is aborted
+     */
+    @Test(expected = TransactionAbortedException.class) public void timeout() throws Exception {
+        lm.setTimeout(50);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.lockPage(t1, pid, Mode.X);
+        lm.lockPage(t2, pid, Mode.S);
+    }
+
+    /** Lock a page in a new thread, giving up the transaction's locks if it is aborted. */
+    private Thread lockInThread(final TransactionId tid, final PageId p,
+            final Throwable[] error) {
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    lm.lockPage(tid, p, Mode.X);
+                } catch (Throwable e) {
+                    error[0] = e;
+                    lm.releaseAll(tid);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    /** Wait until the thread waits for a lock. */
+    private void awaitBlocked(Thread t) throws Exception {
+        while (t.getState() != Thread.State.WAITING)
+            Thread.sleep(5);
+    }
+
+    /**
+     * A deadlock is found as soon as it forms, and the youngest
+     * transaction of the cycle is aborted, here the one closing it
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        lm.lockPage(t1, pid, Mode.X);
+        lm.lockPage(t2, p1, Mode.X);
+        Throwable[] error = new Throwable[1];
+        Thread waiter = lockInThread(t1, p1, error);
+        awaitBlocked(waiter);
+
+        try {
+            lm.lockPage(t2, pid, Mode.S);
+            fail("expected a deadlock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAll(t2);
+        waiter.join();
+        assertNull(error[0]);
+        assertEquals(1, lm.getNumDeadlocks());
+        assertEquals(1, lm.getNumAborts(LockManager.AbortCause.DEADLOCK));
+        assertEquals(0, lm.getNumAborts(LockManager.AbortCause.TIMEOUT));
+    }
+
+    /**
+     * A victim that is not the transaction closing the cycle is woken up
+     * and aborted, and the other one gets its lock
+     */
+    @Test public void deadlockAbortsWaitingVictim() throws Exception {
+        lm.setVictimPolicy(LockManager.VictimPolicy.FEWEST_LOCKS);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        HeapPageId p2 = new HeapPageId(hf.getId(), 2);
+        lm.lockPage(t1, pid, Mode.X);
+        lm.lockPage(t1, p2, Mode.X);
+        lm.lockPage(t2, p1, Mode.X);
+        Throwable[] error = new Throwable[1];
+        Thread waiter = lockInThread(t2, pid, error);
+        awaitBlocked(waiter);
+
+        lm.lockPage(t1, p1, Mode.X);
+        waiter.join();
+        assertTrue(error[0] instanceof TransactionAbortedException);
+        assertEquals(Mode.X, lm.holds(t1, p1));
+        assertEquals(1, lm.getNumDeadlocks());
+    }
+
+    /** Wait until the thread waits on a lock, not on anything else. */
+    private void awaitLockWait(Thread t) throws Exception {
+        while (true) {
+            if (t.getState() == Thread.State.WAITING) {
+                for (StackTraceElement e : t.getStackTrace()) {
+                    if (e.getMethodName().equals("awaitRelease"))
+                        return;
+                }
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * A key that stops a thread at its first lookup after the thread was
+     * recorded in the wait-for graph, until released.
+     */
+    private static class GateKey {
+        final Map<?, ?> graph;
+        final TransactionId tid;
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        volatile Thread gated;
+
+        GateKey(Map<?, ?> graph, TransactionId tid) {
+            this.graph = graph;
+            this.tid = tid;
+        }
+
+        public int hashCode() {
+            if (Thread.currentThread() == gated) {
+                boolean recorded;
+                synchronized (graph) {
+                    recorded = graph.containsKey(tid);
+                }
+                if (recorded) {
+                    gated = null;
+                    stopped.countDown();
+                    try {
+                        released.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+            return 17;
+        }
+    }
+
+    /**
+     * A victim is woken up even if it waits on a newer lock than the one it
+     * was recorded in the wait-for graph with: here the lock it blocked on
+     * is released, retired and taken again before it waits
+     */
+    @Test public void deadlockWakesVictimOnNewLock() throws Exception {
+        final TransactionId t1 = new TransactionId();
+        final TransactionId t2 = new TransactionId();
+        final HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        Field graph = LockManager.class.getDeclaredField("waitsFor");
+        graph.setAccessible(true);
+        final GateKey key = new GateKey((Map<?, ?>) graph.get(lm), t2);
+        lm.acquire(t1, key, Mode.X, true);
+        lm.acquire(t2, p1, Mode.X, true);
+
+        final Throwable[] error = new Throwable[2];
+        Thread victim = new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(t2, key, Mode.X, true);
+                } catch (Throwable e) {
+                    error[0] = e;
+                    lm.releaseAll(t2);
+                }
+            }
+        };
+        victim.setDaemon(true);
+        key.gated = victim;
+        victim.start();
+        // between recording its blockers and waiting, the lock is retired
+        // and a new one taken by the same blocker
+        key.stopped.await();
+        lm.release(t1, key);
+        lm.acquire(t1, key, Mode.X, true);
+        key.released.countDown();
+        awaitLockWait(victim);
+
+        // t1 closes the cycle, and the younger t2 is aborted
+        Thread closer = new Thread() {
+            public void run() {
+                try {
+                    lm.acquire(t1, p1, Mode.X, true);
+                } catch (Throwable e) {
+                    error[1] = e;
+                }
+            }
+        };
+        closer.setDaemon(true);
+        closer.start();
+        victim.join(5000);
+        assertFalse("the victim was never woken up", victim.isAlive());
+        closer.join(5000);
+        assertFalse(closer.isAlive());
+        assertTrue(error[0] instanceof TransactionAbortedException);
+        assertNull(error[1]);
+        assertEquals(Mode.X, lm.holds(t1, p1));
+        assertEquals(1, lm.getNumDeadlocks());
+    }
+
+    /**
+     * Two transactions insert into the same page; the abort of one keeps
+     * the commit of the other, in the pool and on disk
+     */
+    @Test public void sharedPage() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.start();
+        t2.start();
+        bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[] {1, 1}));
+        bp.insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(new int[] {2, 2}));
+        bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[] {3, 3}));
+        assertEquals(1, hf.numPages());
+
+        t2.commit();
+        t1.abort();
+        TransactionId reader = new TransactionId();
+        assertEquals(Collections.singletonList(2),
+                values((HeapPage) bp.getPage(reader, pid, Permissions.READ_ONLY)));
+        bp.transactionComplete(reader);
+        bp.flushAllPages();
+        assertEquals(Collections.singletonList(2), onDisk());
+    }
+
+    /**
+     * The slots of a transaction running at a crash are undone by recovery,
+     * and those committed on the same page are kept
+     */
+    @Test public void sharedPageRecovery() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Transaction t1 = new Transaction();
+        Transaction t2 = new Transaction();
+        t1.start();
+        t2.start();
+        bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[] {1, 1}));
+        bp.insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(new int[] {2, 2}));
+        bp.flushAllPages();
+        assertEquals(2, onDisk().size());
+        t2.commit();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(Collections.singletonList(2), onDisk());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
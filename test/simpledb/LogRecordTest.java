@@ -0,0 +1,100 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogRecordTest extends SimpleDbTestBase {
+
+    private File writeRecords(byte[]... records) throws IOException {
+        File f = File.createTempFile("logrecord", ".log");
+        f.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(f);
+        for (byte[] r : records)
+            out.write(r);
+        out.close();
+        return f;
+    }
+
+    /**
+     * Encoded records are read back in order with their contents
+     */
+    @Test public void roundTrip() throws Exception {
+        byte[] body = new byte[] {1, 2, 3, 4, 5};
+        byte[] first = LogRecord.encode(LogFile.BEGIN_RECORD, 7, new byte[0], 0);
+        byte[] second = LogRecord.encode(LogFile.UPDATE_RECORD, 7, body, first.length);
+        File f = writeRecords(first, second);
+
+        LogRecord.Reader reader = new LogRecord.Reader(f, 0);
+        LogRecord r = reader.next();
+        assertEquals(LogFile.BEGIN_RECORD, r.type);
+        assertEquals(7, r.tid);
+        assertEquals(0, r.body.length);
+        assertEquals(0, r.offset);
+
+        r = reader.next();
+        assertEquals(LogFile.UPDATE_RECORD, r.type);
+        assertArrayEquals(body, r.body);
+        assertEquals(first.length, r.offset);
+        assertEquals(first.length + second.length, reader.offset());
+
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    /**
+     * A corrupted or torn record ends the log
+     */
+    @Test public void corruptRecordEndsLog() throws Exception {
+        byte[] first = LogRecord.encode(LogFile.BEGIN_RECORD, 3, new byte[0], 0);
+        byte[] second = LogRecord.encode(LogFile.UPDATE_RECORD, 3, new byte[] {9, 9, 9}, first.length);
+        second[LogRecord.HEADER_SIZE + 1] ^= 0x40;
+        LogRecord.Reader reader = new LogRecord.Reader(writeRecords(first, second), 0);
+        assertNotNull(reader.next());
+        assertNull(reader.next());
+        reader.close();
+
+        byte[] torn = new byte[second.length - 3];
+        System.arraycopy(LogRecord.encode(LogFile.COMMIT_RECORD, 3, new byte[] {1, 2, 3}, first.length),
+                0, torn, 0, torn.length);
+        reader = new LogRecord.Reader(writeRecords(first, torn), 0);
+        assertNotNull(reader.next());
+        assertNull(reader.next());
+        reader.close();
+    }
+
+    /**
+     * Pages are written and read back through their registered type tags
+     */
+    @Test public void pageData() throws Exception {
+        File f = File.createTempFile("logrecord", ".dat");
+        f.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        HeapPageId pid = new HeapPageId(hf.getId(), 2);
+        HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(new int[] {17, 42}));
+
+        LogFile log = Database.getLogFile();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        log.writePageData(new DataOutputStream(bytes), page);
+        Page read = log.readPageData(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertTrue(read instanceof HeapPage);
+        assertEquals(pid, read.getId());
+        assertArrayEquals(page.getPageData(), read.getPageData());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogRecordTest.class);
+    }
+}
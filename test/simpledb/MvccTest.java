@@ -0,0 +1,120 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class MvccTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("mvcc", ".dat");
+        f.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+        hf.setMultiVersion(true);
+        bp = Database.getBufferPool();
+    }
+
+    private void insert(TransactionId tid, int value) throws Exception {
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] {value, value}));
+    }
+
+    private void commitInsert(int value) throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, value);
+        bp.transactionComplete(tid, true);
+    }
+
+    /** @return the first column of the tuples the transaction sees, sorted */
+    private ArrayList<Integer> scan(TransactionId tid) throws Exception {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            values.add(((IntField) it.next().getField(0)).getValue());
+        it.close();
+        Collections.sort(values);
+        return values;
+    }
+
+    /**
+     * A snapshot does not see commits made after it began, and a new
+     * snapshot does
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        commitInsert(1);
+        TransactionId reader = new TransactionId(true);
+        assertEquals(Collections.singletonList(1), scan(reader));
+
+        commitInsert(2);
+        assertEquals(Collections.singletonList(1), scan(reader));
+
+        TransactionId later = new TransactionId(true);
+        assertEquals(2, scan(later).size());
+        bp.transactionComplete(reader);
+        bp.transactionComplete(later);
+    }
+
+    /**
+     * A snapshot does not see the changes of running transactions, even on
+     * the pages they dirtied
+     */
+    @Test public void snapshotIgnoresUncommitted() throws Exception {
+        commitInsert(1);
+        TransactionId writer = new TransactionId();
+        insert(writer, 2);
+
+        TransactionId reader = new TransactionId(true);
+        assertEquals(Collections.singletonList(1), scan(reader));
+        bp.transactionComplete(writer, true);
+        assertEquals(Collections.singletonList(1), scan(reader));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Versions are dropped once no snapshot needs them
+     */
+    @Test public void versionsArePruned() throws Exception {
+        commitInsert(1);
+        TransactionId reader = new TransactionId(true);
+        scan(reader);
+        commitInsert(2);
+        commitInsert(3);
+        assertEquals(1, bp.getVersionStore().numVersionedPages());
+
+        bp.transactionComplete(reader);
+        assertEquals(0, bp.getVersionStore().numVersionedPages());
+        commitInsert(4);
+        assertEquals(0, bp.getVersionStore().numVersionedPages());
+    }
+
+    /**
+     * Read-only transactions cannot ask for pages to write
+     */
+    @Test(expected = DbException.class) public void readOnlyCannotWrite() throws Exception {
+        TransactionId reader = new TransactionId(true);
+        bp.getPage(reader, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MvccTest.class);
+    }
+}
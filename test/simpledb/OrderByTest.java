@@ -0,0 +1,166 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+    private final Random rand = new Random(17);
+
+    /** @return n three-field tuples whose first two fields are drawn from [0, keys) */
+    private List<Tuple> tuples(int n, int keys) {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            result.add(Utility.getHeapTuple(new int[] { rand.nextInt(keys), rand.nextInt(keys), i }));
+        return result;
+    }
+
+    private void check(List<Tuple> tuples, int[] fields, boolean[] asc, int memoryPages)
+            throws Exception {
+        ArrayList<Tuple> sorted = new ArrayList<Tuple>(tuples);
+        Collections.sort(sorted, new TupleComparator(fields, asc));
+        ArrayList<String> expected = new ArrayList<String>();
+        for (Tuple t : sorted)
+            expected.add(t.toString());
+
+        OrderBy o = new OrderBy(fields, asc, new TupleIterator(Utility.getTupleDesc(3), tuples),
+                memoryPages);
+        o.open();
+        assertEquals(expected, TestUtil.tupleStrings(o));
+        o.rewind();
+        assertEquals(expected, TestUtil.tupleStrings(o));
+        o.close();
+    }
+
+    /**
+     * Tuples are ordered on several fields, later fields breaking ties on
+     * earlier ones, in memory or in sorted runs merged from disk
+     */
+    @Test public void multipleFields() throws Exception {
+        List<Tuple> tuples = tuples(5000, 20);
+        check(tuples, new int[] { 0, 1 }, new boolean[] { true, false }, 1024);
+        check(tuples, new int[] { 1, 0, 2 }, new boolean[] { false, true, true }, 3);
+        check(tuples, new int[] { 0 }, new boolean[] { false }, 3);
+    }
+
+    /**
+     * Replacement selection writes runs longer than the memory of the sort,
+     * and input in order as a single run
+     */
+    @Test public void replacementSelection() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(3);
+        int fit = 3 * BufferPool.getPageSize() / td.getSize();
+
+        ExternalSort sort = new ExternalSort(td, new TupleComparator(0, true), 3);
+        for (int i = 0; i < 10 * fit; i++)
+            sort.add(Utility.getHeapTuple(new int[] { i, 0, i }));
+        assertEquals(1, sort.numRuns());
+        sort.close();
+
+        sort = new ExternalSort(td, new TupleComparator(0, true), 3);
+        for (Tuple t : tuples(10 * fit, 1000000))
+            sort.add(t);
+        // runs average twice the memory on random input
+        assertTrue(sort.numRuns() < 8);
+        DbFileIterator it = sort.iterator();
+        it.open();
+        int count = 0;
+        Tuple prev = null;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (prev != null)
+                assertTrue(((IntField) prev.getField(0)).getValue() <= ((IntField) t.getField(0)).getValue());
+            prev = t;
+            count++;
+        }
+        it.close();
+        sort.close();
+        assertEquals(10 * fit, count);
+    }
+
+    /** A child that aborts after returning some tuples, and records whether it is open. */
+    private static class AbortingChild extends Operator {
+        private static final long serialVersionUID = 1L;
+        private final List<Tuple> tuples;
+        private Iterator<Tuple> it;
+        boolean open = false;
+
+        AbortingChild(List<Tuple> tuples) {
+            this.tuples = tuples;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            open = true;
+            it = tuples.iterator();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            open = false;
+        }
+
+        public void rewind() {
+            it = tuples.iterator();
+        }
+
+        protected Tuple fetchNext() throws TransactionAbortedException {
+            if (!it.hasNext())
+                throw new TransactionAbortedException();
+            return it.next();
+        }
+
+        public OpIterator[] getChildren() {
+            return new OpIterator[0];
+        }
+
+        public void setChildren(OpIterator[] children) {
+        }
+
+        public TupleDesc getTupleDesc() {
+            return Utility.getTupleDesc(3);
+        }
+    }
+
+    /** @return the number of spill files in the temporary directory */
+    private static int spillFiles() {
+        String[] names = new java.io.File(System.getProperty("java.io.tmpdir")).list();
+        int count = 0;
+        for (String name : names)
+            if (name.startsWith("spill") && name.endsWith(".tmp"))
+                count++;
+        return count;
+    }
+
+    /**
+     * A child that fails while the sort reads it is closed, and the runs
+     * written before the failure are deleted
+     */
+    @Test public void failedOpen() throws Exception {
+        int before = spillFiles();
+        AbortingChild child = new AbortingChild(tuples(5000, 20));
+        OrderBy o = new OrderBy(new int[] { 0 }, new boolean[] { true }, child, 3);
+        try {
+            o.open();
+            fail("expected the child to abort");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(child.open);
+        assertEquals(before, spillFiles());
+        o.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OrderByTest.class);
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class PageArenaTest extends SimpleDbTestBase {
+
+    private static final int PAGE_SIZE = 4096;
+
+    /**
+     * Unit test for PageArena.allocate() and PageArena.release()
+     */
+    @Test public void allocateAndRelease() throws Exception {
+        PageArena arena = new PageArena(4, PAGE_SIZE);
+        Set<Integer> frames = new HashSet<Integer>();
+        for (int i = 0; i < 4; i++)
+            assertTrue(frames.add(arena.allocate()));
+        assertEquals(0, arena.numFreeFrames());
+
+        try {
+            arena.allocate();
+            fail("allocated more frames than the arena holds");
+        } catch (DbException e) {
+            // expected
+        }
+
+        arena.release(2);
+        assertEquals(1, arena.numFreeFrames());
+        assertEquals(2, arena.allocate());
+    }
+
+    /**
+     * Frames are page sized, off-heap, and do not overlap
+     */
+    @Test public void framesDoNotOverlap() throws Exception {
+        PageArena arena = new PageArena(3, PAGE_SIZE);
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer frame = arena.frame(i);
+            assertTrue(frame.isDirect());
+            assertEquals(PAGE_SIZE, frame.capacity());
+            for (int j = 0; j < PAGE_SIZE; j += 4)
+                frame.putInt(j, i);
+        }
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer frame = arena.frame(i);
+            assertEquals(i, frame.getInt(0));
+            assertEquals(i, frame.getInt(PAGE_SIZE - 4));
+        }
+    }
+
+    /**
+     * Releasing a frame twice is an error
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void doubleRelease() throws Exception {
+        PageArena arena = new PageArena(1, PAGE_SIZE);
+        arena.release(arena.allocate());
+        arena.release(0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageArenaTest.class);
+    }
+}
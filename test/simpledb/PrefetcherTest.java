@@ -0,0 +1,78 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PrefetcherTest extends SimpleDbTestBase {
+
+    private static final int PREFETCH = 8;
+
+    /**
+     * A heap file scan with prefetching has read the following pages into
+     * the pool by the time it reaches them
+     */
+    @Test public void heapFileScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 5000, null, tuples);
+        assertTrue(hf.numPages() > PREFETCH + 1);
+        BufferPool bp = Database.getBufferPool();
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid, PREFETCH);
+        it.open();
+        assertTrue(it.hasNext());
+        bp.getPrefetcher().awaitIdle();
+        assertEquals(PREFETCH + 1, bp.getEvictionPolicy().getMisses());
+
+        // the prefetched pages are hits
+        for (int i = 1; i <= PREFETCH; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(PREFETCH + 1, bp.getEvictionPolicy().getMisses());
+        it.close();
+
+        // prefetching does not change what the scan returns
+        SystemTestUtil.matchTuples(new SeqScan(tid, hf.getId(), "", PREFETCH), tuples);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Leaves are prefetched by following right sibling pointers
+     */
+    @Test public void btreeLeaves() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bp.getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreeLeafPage first = bf.findLeafPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY, null);
+        long misses = bp.getEvictionPolicy().getMisses();
+
+        bp.getPrefetcher().prefetchLeaves(first.getRightSiblingId(), 3);
+        bp.getPrefetcher().awaitIdle();
+        assertEquals(misses + 3, bp.getEvictionPolicy().getMisses());
+
+        BTreePageId next = first.getRightSiblingId();
+        for (int i = 0; i < 3; i++) {
+            BTreeLeafPage leaf = (BTreeLeafPage) bp.getPage(tid, next, Permissions.READ_ONLY);
+            next = leaf.getRightSiblingId();
+        }
+        assertEquals(misses + 3, bp.getEvictionPolicy().getMisses());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PrefetcherTest.class);
+    }
+}
@@ -0,0 +1,280 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private File file;
+    private HeapFile hf;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("recovery", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    /** Simulate a crash and a restart, and run recovery. */
+    private void crash() throws Exception {
+        crash(LogFile.DEFAULT_RECOVERY_THREADS);
+    }
+
+    private void crash(int recoveryThreads) throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRecoveryThreads(recoveryThreads);
+        Database.getLogFile().recover();
+    }
+
+    /** @return the first column of the tuples of the table as stored on disk */
+    private ArrayList<Integer> onDisk() throws Exception {
+        return onDisk(0);
+    }
+
+    private ArrayList<Integer> onDisk(int pgNo) throws Exception {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        HeapPage p = hf.readPage(new HeapPageId(hf.getId(), pgNo),
+                ByteBuffer.allocate(BufferPool.getPageSize()));
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext())
+            values.add(SystemTestUtil.tupleToList(it.next()).get(0));
+        return values;
+    }
+
+    /**
+     * A checkpoint does not write the pages of running transactions, and
+     * they can commit after it
+     */
+    @Test public void checkpointDoesNotFlush() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] {1, 1}));
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, onDisk().size());
+
+        t.commit();
+        crash();
+        assertEquals(1, onDisk().size());
+    }
+
+    /**
+     * Redo starts at the first unwritten update of the dirty page table,
+     * before the checkpoint
+     */
+    @Test public void redoFromDirtyPageTable() throws Exception {
+        LogFile log = Database.getLogFile();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage after = new HeapPage(pid, HeapPage.createEmptyPageData());
+        after.insertTuple(Utility.getHeapTuple(new int[] {7, 7}));
+
+        // a committed update whose page never reaches disk
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logWrite(tid, before, after);
+        log.logCommit(tid);
+        log.logCheckpoint();
+        assertEquals(0, onDisk().size());
+
+        crash();
+        ArrayList<Integer> values = onDisk();
+        assertEquals(1, values.size());
+        assertEquals(7, (int) values.get(0));
+    }
+
+    /**
+     * Changes of transactions running at the crash are undone, and
+     * committed ones are kept
+     */
+    @Test public void undoLosers() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        Transaction t1 = new Transaction();
+        t1.start();
+        bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[] {1, 1}));
+        t1.commit();
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        bp.insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(new int[] {2, 2}));
+        bp.flushAllPages();
+        assertEquals(2, onDisk().size());
+
+        crash();
+        ArrayList<Integer> values = onDisk();
+        assertEquals(1, values.size());
+        assertEquals(1, (int) values.get(0));
+
+        // the loser is not undone again by the next recovery
+        crash();
+        assertEquals(1, onDisk().size());
+    }
+
+    /**
+     * Pages are redone and undone in parallel, each from its own records
+     */
+    @Test public void parallelReplay() throws Exception {
+        final int pages = 16;
+        LogFile log = Database.getLogFile();
+        HeapPage[] committed = new HeapPage[pages];
+        for (int i = 0; i < pages; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+            committed[i] = new HeapPage(pid, HeapPage.createEmptyPageData());
+            committed[i].insertTuple(Utility.getHeapTuple(new int[] {i, i}));
+        }
+
+        // committed updates that never reach disk
+        TransactionId winner = new TransactionId();
+        log.logXactionBegin(winner);
+        for (int i = 0; i < pages; i++) {
+            log.logWrite(winner, new HeapPage(committed[i].getId(),
+                    HeapPage.createEmptyPageData()), committed[i]);
+        }
+        log.logCommit(winner);
+
+        // updates of a loser that do reach disk
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(loser);
+        for (int i = 0; i < pages; i += 2) {
+            HeapPage after = new HeapPage(committed[i].getId(), committed[i].getPageData());
+            after.insertTuple(Utility.getHeapTuple(new int[] {100 + i, i}));
+            log.logWrite(loser, committed[i], after);
+            hf.writePage(after);
+        }
+        log.force();
+
+        crash(4);
+        for (int i = 0; i < pages; i++) {
+            ArrayList<Integer> values = onDisk(i);
+            assertEquals(1, values.size());
+            assertEquals(i, (int) values.get(0));
+        }
+    }
+
+    /**
+     * Recovery of more pages than a thread keeps in memory writes pages
+     * back as it goes, and reads them again for later deltas
+     */
+    @Test public void replayMorePagesThanMemory() throws Exception {
+        final int pages = 3 * LogFile.REPLAY_CACHE_PAGES;
+        LogFile log = Database.getLogFile();
+        HeapPage[] empty = new HeapPage[pages];
+        HeapPage[] once = new HeapPage[pages];
+        HeapPage[] twice = new HeapPage[pages];
+        for (int i = 0; i < pages; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            empty[i] = new HeapPage(pid, HeapPage.createEmptyPageData());
+            hf.writePage(empty[i]);
+            once[i] = new HeapPage(pid, HeapPage.createEmptyPageData());
+            once[i].insertTuple(Utility.getHeapTuple(new int[] {i, i}));
+            twice[i] = new HeapPage(pid, once[i].getPageData());
+            twice[i].insertTuple(Utility.getHeapTuple(new int[] {i, i}));
+        }
+
+        // two committed deltas of each page that never reach disk
+        TransactionId first = new TransactionId();
+        log.logXactionBegin(first);
+        for (int i = 0; i < pages; i++)
+            log.logWrite(first, empty[i], once[i], true);
+        log.logCommit(first);
+        TransactionId second = new TransactionId();
+        log.logXactionBegin(second);
+        for (int i = 0; i < pages; i++)
+            log.logWrite(second, once[i], twice[i], true);
+        log.logCommit(second);
+
+        // deltas of a loser that do reach disk
+        TransactionId loser = new TransactionId();
+        log.logXactionBegin(loser);
+        for (int i = 0; i < pages; i += 3) {
+            HeapPage after = new HeapPage(twice[i].getId(), twice[i].getPageData());
+            after.insertTuple(Utility.getHeapTuple(new int[] {100 + i, i}));
+            log.logWrite(loser, twice[i], after, true);
+            hf.writePage(after);
+        }
+        log.force();
+
+        crash(1);
+        for (int i = 0; i < pages; i++) {
+            ArrayList<Integer> values = onDisk(i);
+            assertEquals(2, values.size());
+            assertEquals(i, (int) values.get(0));
+            assertEquals(i, (int) values.get(1));
+        }
+    }
+
+    /**
+     * Records appended while a checkpoint truncates the log are kept
+     */
+    @Test public void truncateWhileLogging() throws Exception {
+        final int pages = 32;
+        final LogFile log = Database.getLogFile();
+        final HeapPage[] committed = new HeapPage[pages];
+        for (int i = 0; i < pages; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            hf.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+            committed[i] = new HeapPage(pid, HeapPage.createEmptyPageData());
+            committed[i].insertTuple(Utility.getHeapTuple(new int[] {i, i}));
+        }
+        log.logCheckpoint();
+
+        // committed updates that never reach disk, logged by two threads
+        final Exception[] failed = new Exception[1];
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = first; i < pages; i += 2) {
+                            TransactionId tid = new TransactionId();
+                            log.logXactionBegin(tid);
+                            log.logWrite(tid, new HeapPage(committed[i].getId(),
+                                    HeapPage.createEmptyPageData()), committed[i]);
+                            log.logCommit(tid);
+                        }
+                    } catch (Exception e) {
+                        failed[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int i = 0; i < 4; i++)
+            log.logCheckpoint();
+        for (Thread t : threads)
+            t.join();
+        assertNull(failed[0]);
+
+        crash();
+        for (int i = 0; i < pages; i++) {
+            ArrayList<Integer> values = onDisk(i);
+            assertEquals(1, values.size());
+            assertEquals(i, (int) values.get(0));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
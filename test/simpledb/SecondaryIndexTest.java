@@ -0,0 +1,168 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private HeapFile hf;
+    private SecondaryIndex index;
+
+    /**
+     * Create a table of six columns and an index on c1 that includes c2.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(6, 2000, 100, null, null, "c");
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        f.delete();
+        index = new SecondaryIndex(f, hf.getId(), new int[] { 1 }, new int[] { 2 });
+        Database.getCatalog().addIndex(index, SystemTestUtil.getUUID());
+        index.build();
+    }
+
+    /** @return the (c1, c2) values of each tuple of the table, by its RecordId */
+    private HashMap<RecordId, List<Integer>> tableContents() throws Exception {
+        HashMap<RecordId, List<Integer>> contents = new HashMap<RecordId, List<Integer>>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            contents.put(t.getRecordId(), Arrays.asList(
+                    ((IntField) t.getField(1)).getValue(), ((IntField) t.getField(2)).getValue()));
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return contents;
+    }
+
+    /** @return the (c1, c2) values of each entry of the index, by the RecordId it points to */
+    private HashMap<RecordId, List<Integer>> indexContents() throws Exception {
+        HashMap<RecordId, List<Integer>> contents = new HashMap<RecordId, List<Integer>>();
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = index.getFile().iterator(tid);
+        it.open();
+        int prev = Integer.MIN_VALUE;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int key = ((IntField) t.getField(0)).getValue();
+            assertTrue(prev <= key);
+            prev = key;
+            assertNull(contents.put(index.getRecordId(t), Arrays.asList(
+                    key, ((IntField) t.getField(1)).getValue())));
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return contents;
+    }
+
+    /**
+     * The index holds one entry for each tuple of the table, pointing to it,
+     * as tuples are inserted and deleted
+     */
+    @Test public void maintained() throws Exception {
+        assertEquals(2000, indexContents().size());
+        assertEquals(tableContents(), indexContents());
+
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> victims = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 2000 && it.hasNext(); i++) {
+            Tuple t = it.next();
+            if (i % 7 == 0)
+                victims.add(t);
+        }
+        it.close();
+        for (Tuple t : victims)
+            bp.deleteTuple(tid, t);
+        for (int i = 0; i < 300; i++) {
+            Tuple t = new Tuple(hf.getTupleDesc());
+            for (int j = 0; j < 6; j++)
+                t.setField(j, new IntField(i + j));
+            bp.insertTuple(tid, hf.getId(), t);
+        }
+        bp.transactionComplete(tid);
+
+        assertEquals(2000 - victims.size() + 300, indexContents().size());
+        assertEquals(tableContents(), indexContents());
+    }
+
+    /**
+     * An index-only scan with a predicate on the key returns the covered
+     * fields of the matching tuples
+     */
+    @Test public void indexOnlyScan() throws Exception {
+        int expected = 0;
+        for (List<Integer> values : tableContents().values()) {
+            if (values.get(0) == 42)
+                expected++;
+        }
+        TransactionId tid = new TransactionId();
+        IndexOnlyScan scan = new IndexOnlyScan(tid, index, "t",
+                new IndexPredicate(Predicate.Op.EQUALS, new IntField(42)));
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals(1, scan.getTupleDesc().fieldNameToIndex("t.c2"));
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            assertEquals(new IntField(42), scan.next().getField(0));
+            count++;
+        }
+        scan.close();
+        assertEquals(expected, count);
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The planner reads a table through an index that covers every field
+     * the query reads, and the table otherwise
+     */
+    @Test public void planner() throws Exception {
+        String name = Database.getCatalog().getTableName(hf.getId());
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addProjectField("t.c2", null);
+        lp.addProjectField("t.c1", null);
+        OpIterator plan = lp.physicalPlan(tid, new HashMap<String, TableStats>(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof IndexOnlyScan);
+        plan.open();
+        int count = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            count++;
+        }
+        plan.close();
+        assertEquals(2000, count);
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(hf.getId(), 0)));
+        Database.getBufferPool().transactionComplete(tid);
+
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), name);
+        lp.addProjectField(name + ".c1", null);
+        lp.addProjectField(name + ".c3", null);
+        plan = lp.physicalPlan(new TransactionId(), new HashMap<String, TableStats>(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof SeqScan);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private final Random rand = new Random(5);
+
+    /** @return n two-field tuples whose first field is drawn from [0, keys) */
+    private List<Tuple> tuples(int n, int keys) {
+        ArrayList<Tuple> result = new ArrayList<Tuple>();
+        for (int i = 0; i < n; i++)
+            result.add(Utility.getHeapTuple(new int[] { rand.nextInt(keys), i }));
+        return result;
+    }
+
+    private void check(List<Tuple> left, List<Tuple> right, Predicate.Op op, int memoryPages)
+            throws Exception {
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        SortMergeJoin join = new SortMergeJoin(p, new TupleIterator(Utility.getTupleDesc(2), left),
+                new TupleIterator(Utility.getTupleDesc(2), right), memoryPages);
+        List<String> expected = TestUtil.joinStrings(left, right, p);
+        assertEquals(expected, TestUtil.sortedTupleStrings(join));
+        join.open();
+        join.next();
+        join.rewind();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        join.close();
+        assertEquals(expected.size(), count);
+    }
+
+    /**
+     * An equality join merges inputs sorted externally, including groups of
+     * equal tuples too large for memory
+     */
+    @Test public void equiJoin() throws Exception {
+        check(tuples(3000, 1000), tuples(4000, 1000), Predicate.Op.EQUALS, 1024);
+        // 8 pages sort in runs, and a group holds 512 tuples before spilling
+        List<Tuple> right = tuples(5000, 50);
+        right.addAll(tuples(1500, 1));
+        check(tuples(1000, 50), right, Predicate.Op.EQUALS, 8);
+    }
+
+    /**
+     * A range join keeps the growing prefix of matches of each tuple,
+     * including prefixes too large for memory
+     */
+    @Test public void rangeJoin() throws Exception {
+        for (Predicate.Op op : new Predicate.Op[] { Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+                Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+            check(tuples(300, 100), tuples(400, 100), op, 8);
+        }
+        // the prefixes grow past the 512 tuples a group holds in 8 pages
+        check(tuples(800, 1000), tuples(900, 1000), Predicate.Op.LESS_THAN, 8);
+        check(tuples(900, 1000), tuples(800, 1000), Predicate.Op.GREATER_THAN_OR_EQ, 8);
+        try {
+            new SortMergeJoin(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0),
+                    new TupleIterator(Utility.getTupleDesc(2), tuples(1, 1)),
+                    new TupleIterator(Utility.getTupleDesc(2), tuples(1, 1)));
+            fail("a sort-merge join cannot join on inequality");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Scans of B+ trees keyed on the join field and ascending OrderBys are
+     * read as they are, without a sort
+     */
+    @Test public void sortedInputs() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, 500, null, rows, 0);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1000, 500, null, null);
+        TransactionId tid = new TransactionId();
+
+        BTreeScan bscan = new BTreeScan(tid, bf.getId(), "b", null);
+        assertTrue(SortMergeJoin.isSortedOn(bscan, 0));
+        assertFalse(SortMergeJoin.isSortedOn(bscan, 1));
+        OrderBy ordered = new OrderBy(1, true, new SeqScan(tid, hf.getId(), "h"));
+        assertTrue(SortMergeJoin.isSortedOn(ordered, 1));
+        assertFalse(SortMergeJoin.isSortedOn(new OrderBy(1, false, new SeqScan(tid, hf.getId(), "h")), 1));
+        assertFalse(SortMergeJoin.isSortedOn(new SeqScan(tid, hf.getId(), "h"), 0));
+
+        ArrayList<Tuple> left = new ArrayList<Tuple>();
+        for (ArrayList<Integer> row : rows)
+            left.add(Utility.getHeapTuple(new int[] { row.get(0), row.get(1) }));
+        ArrayList<Tuple> right = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            right.add(it.next());
+        it.close();
+
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+        assertEquals(TestUtil.joinStrings(left, right, p),
+                TestUtil.sortedTupleStrings(new SortMergeJoin(p, bscan, ordered)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The optimizer costs an inequality join below a nested-loops join, and
+     * instantiates it as a sort-merge join
+     */
+    @Test public void optimizer() throws Exception {
+        HeapFile h1 = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, null, "a");
+        HeapFile h2 = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, null, "b");
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(h1.getId(), "x");
+        lp.addScan(h2.getId(), "y");
+        JoinOptimizer jo = new JoinOptimizer(lp, new Vector<LogicalJoinNode>());
+        LogicalJoinNode lj = new LogicalJoinNode("x", "y", "a0", "b0", Predicate.Op.LESS_THAN);
+        double cost1 = 2 * 1000, cost2 = 2 * 1000;
+        assertTrue(jo.estimateJoinCost(lj, 1000, 1000, cost1, cost2)
+                < cost1 + 1000 * cost2 + 1000 * 1000);
+
+        TransactionId tid = new TransactionId();
+        lj = new LogicalJoinNode("x", "y", "x.a0", "y.b0", Predicate.Op.LESS_THAN);
+        OpIterator j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, h1.getId(), "x"),
+                new SeqScan(tid, h2.getId(), "y"));
+        assertTrue(j instanceof SortMergeJoin);
+        lj = new LogicalJoinNode("x", "y", "x.a0", "y.b0", Predicate.Op.NOT_EQUALS);
+        j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, h1.getId(), "x"),
+                new SeqScan(tid, h2.getId(), "y"));
+        assertTrue(j instanceof Join);
+
+        // once costed, the join uses the algorithm that was cheapest for it
+        lj = new LogicalJoinNode("x", "y", "a0", "b0", Predicate.Op.LESS_THAN);
+        jo.estimateJoinCost(lj, 1000, 1000, cost1, cost2);
+        assertEquals(JoinOptimizer.Algorithm.SORT_MERGE, lj.algorithm);
+        j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, h1.getId(), "x"),
+                new SeqScan(tid, h2.getId(), "y"));
+        assertTrue(j instanceof SortMergeJoin);
+        // sorting is not worth it for a single tuple on each side
+        jo.estimateJoinCost(lj, 1, 1, cost1, cost2);
+        assertEquals(JoinOptimizer.Algorithm.NESTED_LOOPS, lj.algorithm);
+        j = JoinOptimizer.instantiateJoin(lj, new SeqScan(tid, h1.getId(), "x"),
+                new SeqScan(tid, h2.getId(), "y"));
+        assertTrue(j instanceof Join);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
@@ -166,6 +166,59 @@ public class TestUtil {
         }
     }
 
+    /**
+     * @return the values of the remaining tuples of an open OpIterator, in
+     *   the order it returns them
+     */
+    public static List<String> tupleStrings(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        ArrayList<String> result = new ArrayList<String>();
+        while (it.hasNext())
+            result.add(it.next().toString());
+        return result;
+    }
+
+    /**
+     * Open the OpIterator, read all of its tuples and close it.
+     * @return the sorted values of the tuples
+     */
+    public static List<String> sortedTupleStrings(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        it.open();
+        List<String> result = tupleStrings(it);
+        it.close();
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * @return the sorted values of the join of two lists of tuples on p,
+     *   computed by comparing every pair; these are what a join operator
+     *   must return, in some order
+     */
+    public static List<String> joinStrings(List<Tuple> left, List<Tuple> right,
+            JoinPredicate p) {
+        ArrayList<String> result = new ArrayList<String>();
+        if (left.isEmpty() || right.isEmpty())
+            return result;
+        TupleDesc td = TupleDesc.merge(left.get(0).getTupleDesc(), right.get(0).getTupleDesc());
+        int n1 = left.get(0).getTupleDesc().numFields();
+        for (Tuple l : left) {
+            for (Tuple r : right) {
+                if (!p.filter(l, r))
+                    continue;
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < n1; i++)
+                    t.setField(i, l.getField(i));
+                for (int i = 0; i < r.getTupleDesc().numFields(); i++)
+                    t.setField(n1 + i, r.getField(i));
+                result.add(t.toString());
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */